@@ -0,0 +1,101 @@
+/*
+ * Copyright 2025 Piotr Przybył
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.przybyl.rag.example.demos;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.przybyl.rag.example.utils.ElasticsearchConnector;
+import org.przybyl.rag.example.utils.SearchResult;
+import org.przybyl.rag.example.utils.Searcher;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+/// Runs many queries in one go, e.g. for offline evaluation or to warm up caches, writing results as JSON lines.
+///
+/// Queries are read from a file, one per line, and searched in groups of `BATCH_GROUP_SIZE`: each group is
+/// embedded in batches and searched with a single `_msearch` request, see [Searcher#searchAll(String, List)].
+public class BatchQueryRunner {
+
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.out.println("Usage: BatchQueryRunner <queries_file> [results_file]");
+            return;
+        }
+        Path queriesPath = Path.of(args[0]);
+        Path resultsPath = Path.of(args.length > 1 ? args[1] : "results.jsonl");
+        String searchIndex = System.getenv("SEARCH_INDEX");
+        int groupSize = Integer.parseInt(System.getenv().getOrDefault("BATCH_GROUP_SIZE", "50"));
+
+        try {
+            // Create shared ObjectMapper instance
+            var objectMapper = new ObjectMapper();
+            var searcher = VectorSearch.createSearcher(objectMapper, new ElasticsearchConnector(objectMapper));
+
+            List<String> queries = Files.readAllLines(queriesPath).stream()
+                .map(String::trim)
+                .filter(query -> !query.isEmpty())
+                .toList();
+            System.out.printf("Running %d queries in groups of %d%n", queries.size(), groupSize);
+
+            long[] groupLatencies = new long[(queries.size() + groupSize - 1) / groupSize];
+            long start = System.nanoTime();
+            try (BufferedWriter writer = Files.newBufferedWriter(resultsPath)) {
+                for (int from = 0, group = 0; from < queries.size(); from += groupSize, group++) {
+                    List<String> groupQueries = queries.subList(from, Math.min(from + groupSize, queries.size()));
+
+                    long groupStart = System.nanoTime();
+                    List<List<SearchResult>> results = searcher.searchAll(searchIndex, groupQueries);
+                    groupLatencies[group] = System.nanoTime() - groupStart;
+
+                    for (int i = 0; i < groupQueries.size(); i++) {
+                        writer.write(objectMapper.writeValueAsString(new QueryResults(groupQueries.get(i), results.get(i))));
+                        writer.newLine();
+                    }
+                    System.out.printf("Searched %d/%d queries%n", from + groupQueries.size(), queries.size());
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+
+            Arrays.sort(groupLatencies);
+            System.out.printf("Done: %d queries in %.1f s, %.1f queries/s%n",
+                queries.size(), elapsed / 1e9, queries.size() * 1e9 / Math.max(elapsed, 1));
+            System.out.printf("Latency per group of up to %d queries: p50 %d ms, p90 %d ms, p99 %d ms, max %d ms%n", groupSize,
+                percentile(groupLatencies, 0.5), percentile(groupLatencies, 0.9), percentile(groupLatencies, 0.99), percentile(groupLatencies, 1));
+            System.out.println("Query cache: " + searcher.queryCacheStats());
+            System.out.println("Results written to " + resultsPath);
+        } catch (IOException | InterruptedException e) {
+            System.err.println("Error: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /// @return the given percentile of the sorted latencies, in milliseconds
+    private static long percentile(long[] sortedNanos, double percentile) {
+        if (sortedNanos.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile * sortedNanos.length) - 1;
+        return sortedNanos[Math.max(index, 0)] / 1_000_000;
+    }
+
+    private record QueryResults(String query, List<SearchResult> results) {
+    }
+}
@@ -18,16 +18,36 @@ package org.przybyl.rag.example.demos;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import org.przybyl.rag.example.utils.BulkProcessor;
+import org.przybyl.rag.example.utils.DenseVectorMapping;
 import org.przybyl.rag.example.utils.ElasticsearchConnector;
+import org.przybyl.rag.example.utils.ElasticsearchVectorStore;
+import org.przybyl.rag.example.utils.EmbeddingCache;
 import org.przybyl.rag.example.utils.Encoder;
+import org.przybyl.rag.example.utils.FlatVectorFile;
 import org.przybyl.rag.example.utils.OllamaEmbeddingService;
+import org.przybyl.rag.example.utils.PipelineStage;
+import org.przybyl.rag.example.utils.PointInTimeReader;
 import org.przybyl.rag.example.utils.TextSplitter;
+import org.przybyl.rag.example.utils.VectorDocument;
 
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
 
 public class DocumentEnricher {
 
@@ -35,20 +55,31 @@ public class DocumentEnricher {
 
         String sourceIndexName = System.getenv("CRAWL_INDEX");
         String targetIndexName = System.getenv("SEARCH_INDEX");
+        String cachePath = System.getenv("EMBEDDING_CACHE_PATH");
+        int cacheCapacity = Integer.parseInt(System.getenv().getOrDefault("EMBEDDING_CACHE_CAPACITY", "200000"));
 
-        try {
+        try (EmbeddingCache cache = cachePath == null ? null : EmbeddingCache.open(Path.of(cachePath), cacheCapacity)) {
             // Create shared ObjectMapper instance
             ObjectMapper objectMapper = new ObjectMapper();
 
             // Create enricher
             DocumentEnricher enricher = new DocumentEnricher(
-                new Encoder(new OllamaEmbeddingService(), objectMapper),
+                new Encoder(new OllamaEmbeddingService(), objectMapper, cache),
                 new ElasticsearchConnector(objectMapper),
                 objectMapper,
                 new TextSplitter()
             );
 
-            enricher.processDocuments(sourceIndexName, targetIndexName);
+            if ("incremental".equals(System.getenv().getOrDefault("ENRICH_MODE", "full"))) {
+                Path watermarkPath = Path.of(System.getenv().getOrDefault("ENRICH_WATERMARK_PATH", targetIndexName + ".watermark"));
+                enricher.processDocumentsIncrementally(sourceIndexName, targetIndexName, watermarkPath);
+            } else {
+                enricher.processDocuments(sourceIndexName, targetIndexName);
+            }
+
+            if (cache != null) {
+                System.out.println("Embedding cache: " + cache.stats());
+            }
         } catch (Exception e) {
             System.err.println("Error while processing documents: " + e.getMessage());
             e.printStackTrace();
@@ -57,144 +88,397 @@ public class DocumentEnricher {
     }
 
 
-    private static final Map<String, String> VECTOR_FIELDS_MAPPING = Map.of(
-        "titleEmbedding",
-        """
-            {
-                "type": "dense_vector",
-                "dims": 384
-            }""",
-        "bodyChunks",
-        """
-            {
-                "type": "nested",
-                "properties": {
-                    "passage": {
-                        "type": "text",
-                        "index": false
-                    },
-                    "predictedValue": {
-                        "type": "dense_vector",
-                        "dims": 384
-                    }
-                }
-              }
-            """);
+    private static final String CRAWL_TIMESTAMP_FIELD = System.getenv().getOrDefault("CRAWL_TIMESTAMP_FIELD", "last_crawled_at");
+
+    /// Embedded to find out the number of dimensions of the model
+    private static final String DIMENSIONS_PROBE = "How many dimensions?";
+
+    private static final int ID_PAGE_SIZE = 1000;
+    private static final int DELETE_BATCH_SIZE = 1000;
 
     private final ElasticsearchConnector esClient;
+    private final ElasticsearchVectorStore vectorStore;
     private final TextSplitter textSplitter;
     private final Encoder encoder;
     private final ObjectMapper objectMapper;
+    private final Semaphore embeddingPermits;
+    private final Settings settings;
 
     public DocumentEnricher(Encoder encoder, ElasticsearchConnector esClient, ObjectMapper objectMapper, TextSplitter textSplitter) {
+        this(encoder, esClient, objectMapper, textSplitter, Settings.fromEnvironment());
+    }
+
+    public DocumentEnricher(Encoder encoder, ElasticsearchConnector esClient, ObjectMapper objectMapper, TextSplitter textSplitter, Settings settings) {
+        this.settings = settings;
         this.esClient = esClient;
+        this.vectorStore = new ElasticsearchVectorStore(esClient, objectMapper);
         this.textSplitter = textSplitter;
         this.encoder = encoder;
         this.objectMapper = objectMapper;
+        this.embeddingPermits = new Semaphore(settings.embedWorkers());
+    }
+
+    /// Sizes of the ingestion pipeline stages.
+    ///
+    /// @param pageSize      number of source documents read per page, and at most embedded together
+    /// @param splitWorkers  number of workers splitting bodies into passages
+    /// @param embedWorkers  number of batches of documents embedded at the same time, which is also the maximum number
+    ///                      of embedding requests in flight
+    /// @param queueCapacity capacity of the queue in front of each stage
+    /// @param bulk          settings of the bulk requests writing enriched documents
+    /// @param flatVectorPath where to write passages and their embeddings as a [FlatVectorFile] too, `null` for nowhere
+    public record Settings(int pageSize, int splitWorkers, int embedWorkers, int queueCapacity, BulkProcessor.Settings bulk, Path flatVectorPath) {
+
+        public Settings {
+            if (pageSize < 1 || splitWorkers < 1 || embedWorkers < 1 || queueCapacity < 1) {
+                throw new IllegalArgumentException("All enrichment settings must be at least 1");
+            }
+        }
+
+        public Settings(int pageSize, int splitWorkers, int embedWorkers, int queueCapacity, BulkProcessor.Settings bulk) {
+            this(pageSize, splitWorkers, embedWorkers, queueCapacity, bulk, null);
+        }
+
+        public static Settings fromEnvironment() {
+            return new Settings(
+                Integer.parseInt(System.getenv().getOrDefault("ENRICH_PAGE_SIZE", "10")),
+                Integer.parseInt(System.getenv().getOrDefault("ENRICH_SPLIT_WORKERS", "2")),
+                Integer.parseInt(System.getenv().getOrDefault("ENRICH_CONCURRENCY", "4")),
+                Integer.parseInt(System.getenv().getOrDefault("ENRICH_QUEUE_CAPACITY", "50")),
+                BulkProcessor.Settings.fromEnvironment(),
+                System.getenv("FLAT_VECTOR_PATH") == null ? null : Path.of(System.getenv("FLAT_VECTOR_PATH")));
+        }
     }
 
     public void processDocuments(String sourceIndexName, String targetIndexName) throws IOException, InterruptedException {
+        enrichAll(sourceIndexName, targetIndexName);
+    }
+
+    private Outcome enrichAll(String sourceIndexName, String targetIndexName) throws IOException, InterruptedException {
 
         createTargetIndex(sourceIndexName, targetIndexName);
 
-        // Process documents in batches
-        int from = 0;
-        final int size = 10;
-        int totalProcessed = 0;
-        long totalHits = 0;
-
-        while (true) {
-            // Fetch documents from source index
-            String searchResponseBatch = esClient.search(sourceIndexName, from, size);
-            JsonNode hits = objectMapper.readTree(searchResponseBatch).path("hits");
-
-            if (totalHits == 0) {
-                totalHits = hits.path("total").path("value").asLong();
-                System.out.printf("Total documents to process: %d%n", totalHits);
-            }
+        // Read the source index with a point in time, page by page
+        try (PointInTimeReader reader = new PointInTimeReader(esClient, objectMapper, sourceIndexName, settings.pageSize())) {
+            return enrichAndIndex(reader, targetIndexName, doc -> true, settings.flatVectorPath());
+        }
+    }
 
-            List<JsonNode> documents = new ArrayList<>();
-            hits.path("hits").forEach(documents::add);
+    /// Keeps the target index and enriches only documents crawled after the watermark of the previous run,
+    /// skipping those whose content hash hasn't changed. Documents which vanished from the source are deleted
+    /// from the target. The watermark is saved only once the run succeeds and every document got indexed: if any
+    /// failed to be enriched or indexed, the previous watermark is kept, so that the next run tries them again.
+    /// Without a target index, all documents are enriched, like in [#processDocuments(String, String)].
+    public void processDocumentsIncrementally(String sourceIndexName, String targetIndexName, Path watermarkPath) throws IOException, InterruptedException {
+        // Taken before reading, so documents crawled in the meantime are picked up by the next run
+        String latestCrawl = latestCrawlTimestamp(sourceIndexName);
+
+        if (!esClient.indexExists(targetIndexName)) {
+            System.out.printf("Target index %s doesn't exist, enriching all documents%n", targetIndexName);
+            Outcome outcome = enrichAll(sourceIndexName, targetIndexName);
+            saveWatermark(watermarkPath, outcome, latestCrawl);
+            return;
+        }
 
-            if (documents.isEmpty()) {
-                break;
-            }
+        String watermark = Files.exists(watermarkPath) ? Files.readString(watermarkPath).trim() : "";
+        Map<String, String> targetHashes = readContentHashes(targetIndexName);
+        Set<String> sourceIds = readDocumentIds(sourceIndexName);
 
-            List<Map<String, Object>> enrichedDocs = new ArrayList<>();
+        String query = watermark.isEmpty()
+            ? """
+                {"match_all": {}}"""
+            : objectMapper.writeValueAsString(Map.of("range", Map.of(CRAWL_TIMESTAMP_FIELD, Map.of("gt", watermark))));
+        System.out.printf("Enriching documents crawled after %s%n", watermark.isEmpty() ? "the beginning" : watermark);
+
+        Outcome outcome;
+        try (PointInTimeReader reader = new PointInTimeReader(esClient, objectMapper, sourceIndexName, settings.pageSize(), query, null)) {
+            outcome = enrichAndIndex(reader, targetIndexName, doc -> !contentHash(doc).equals(targetHashes.get(documentId(doc))), null);
+        }
+        if (settings.flatVectorPath() != null) {
+            System.out.printf("%s holds only the documents of the last full enrichment, it's not updated incrementally%n", settings.flatVectorPath());
+        }
 
-            for (JsonNode doc : documents) {
+        List<String> vanished = targetHashes.keySet().stream()
+            .filter(id -> !sourceIds.contains(id))
+            .toList();
+        for (int from = 0; from < vanished.size(); from += DELETE_BATCH_SIZE) {
+            esClient.bulkDelete(targetIndexName, vanished.subList(from, Math.min(from + DELETE_BATCH_SIZE, vanished.size())));
+        }
+        System.out.printf("Deleted %d documents which vanished from %s%n", vanished.size(), sourceIndexName);
 
-                Map<String, Object> enrichedDoc = new HashMap<>();
+        saveWatermark(watermarkPath, outcome, latestCrawl != null ? latestCrawl : watermark);
+    }
 
-                copyFields(doc, enrichedDoc);
-                addEmbeddings(doc, enrichedDoc);
+    /// Runs the documents through a pipeline of stages: read → split → embed → write, joined by bounded queues.
+    /// Reading happens on the calling thread, the other stages have their own workers, see [Settings].
+    /// A document which fails to be enriched is reported and left out, the rest carry on.
+    ///
+    /// @param flatVectorPath if not `null`, the passages are written there too, and the file is replaced
+    ///                       only once all of them are, see [FlatVectorFile]
+    /// @return how many documents were left out
+    private Outcome enrichAndIndex(PointInTimeReader reader, String targetIndexName, Predicate<PointInTimeReader.Hit> needsEnrichment, Path flatVectorPath) throws IOException, InterruptedException {
+        long totalHits = reader.totalHits();
+        System.out.printf("Total documents to process: %d%n", totalHits);
+
+        LongAdder skipped = new LongAdder();
+        LongAdder failed = new LongAdder();
+        AtomicLong processed = new AtomicLong();
+        FlatVectorFile.Writer vectorFile = flatVectorPath == null ? null : FlatVectorFile.create(flatVectorPath, encoder.model());
+
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+             BulkProcessor bulkProcessor = vectorStore.writer(targetIndexName, settings.bulk())) {
+            PipelineStage<PointInTimeReader.Hit, SplitDocument> splitting = new PipelineStage<>("split", settings.splitWorkers(), 1, settings.queueCapacity(),
+                (docs, downstream) -> docs.forEach(doc -> downstream.accept(split(doc))));
+
+            // Texts of a whole batch of documents are embedded with one call
+            PipelineStage<SplitDocument, EnrichedDocument> embedding = new PipelineStage<>("embed", settings.embedWorkers(), settings.pageSize(), settings.queueCapacity(),
+                (docs, downstream) -> enrichBatch(docs, executor, failed).forEach(downstream));
+
+            // Adding only blocks when all bulk requests are in flight, so one worker is enough
+            PipelineStage<EnrichedDocument, Void> writing = new PipelineStage<>("write", 1, settings.pageSize(), settings.queueCapacity(),
+                (docs, downstream) -> {
+                    for (EnrichedDocument doc : docs) {
+                        bulkProcessor.add(doc.id(), doc.source());
+                        if (vectorFile != null) {
+                            writePassages(vectorFile, doc);
+                        }
+                    }
+                    System.out.printf("Processed %d/%d documents (%d unchanged, %d failed), %d indexed%n",
+                        processed.addAndGet(docs.size()), totalHits, skipped.sum(), failed.sum(), bulkProcessor.stats().indexed());
+                });
+
+            splitting.then(embedding).then(writing);
+            splitting.start(executor);
+
+            long read = 0;
+            long readStart = System.nanoTime();
+            try {
+                while (reader.hasNext()) {
+                    PointInTimeReader.Hit doc = reader.next();
+                    read++;
+                    if (needsEnrichment.test(doc)) {
+                        splitting.put(doc);
+                    } else {
+                        skipped.increment();
+                    }
+                }
+                long readNanos = System.nanoTime() - readStart;
+                splitting.finish();
+                splitting.awaitCompletion();
+                bulkProcessor.close();
+                if (vectorFile != null) {
+                    vectorFile.close();
+                    System.out.printf("Wrote %d passages to %s%n", vectorFile.count(), flatVectorPath);
+                }
 
-                enrichedDocs.add(enrichedDoc);
+                System.out.printf("Done: %d processed, %d unchanged, %d failed to enrich%n", processed.get(), skipped.sum(), failed.sum());
+                System.out.println("Bulk: " + bulkProcessor.stats());
+                System.out.printf("read   %2d workers, %8d items, %8.1f items/s%n", 1, read, read * 1e9 / Math.max(readNanos, 1));
+                for (PipelineStage<?, ?> stage : List.<PipelineStage<?, ?>>of(splitting, embedding, writing)) {
+                    System.out.println(stage.stats());
+                }
+                return new Outcome(failed.sum(), bulkProcessor.stats().failed());
+            } catch (Exception e) {
+                // Workers would wait for more input forever, and closing the executor waits for them
+                executor.shutdownNow();
+                if (vectorFile != null) {
+                    vectorFile.abort();
+                }
+                throw e;
             }
+        }
+    }
 
-            // Index processed documents
-            esClient.bulkIndex(targetIndexName, enrichedDocs);
+    private String latestCrawlTimestamp(String sourceIndexName) throws IOException, InterruptedException {
+        String query = objectMapper.writeValueAsString(Map.of(
+            "size", 0,
+            "aggs", Map.of("latest", Map.of("max", Map.of("field", CRAWL_TIMESTAMP_FIELD)))));
+        JsonNode latest = objectMapper.readTree(esClient.searchWithCustomQuery(sourceIndexName, query))
+            .path("aggregations").path("latest").path("value_as_string");
+        return latest.isTextual() ? latest.asText() : null;
+    }
 
-            totalProcessed += enrichedDocs.size();
-            System.out.printf("Processed and reindexed %d/%d documents%n", totalProcessed, totalHits);
+    private Map<String, String> readContentHashes(String targetIndexName) {
+        Map<String, String> hashes = new HashMap<>();
+        try (PointInTimeReader reader = new PointInTimeReader(esClient, objectMapper, targetIndexName, ID_PAGE_SIZE, """
+            {"match_all": {}}""", List.of("contentHash"))) {
+            reader.forEachRemaining(hit -> hashes.put(hit.id(), hit.source().path("contentHash").asText()));
+        }
+        return hashes;
+    }
 
-            from += size;
+    private Set<String> readDocumentIds(String sourceIndexName) {
+        Set<String> ids = new HashSet<>();
+        try (PointInTimeReader reader = new PointInTimeReader(esClient, objectMapper, sourceIndexName, ID_PAGE_SIZE, """
+            {"match_all": {}}""", List.of("id"))) {
+            reader.forEachRemaining(hit -> ids.add(documentId(hit)));
         }
+        return ids;
     }
 
-    private void createTargetIndex(String sourceIndexName, String targetIndexName) throws IOException, InterruptedException {
-        // Get source index mapping and merge it with additional fields
-        String sourceMapping = esClient.getIndexMapping(sourceIndexName);
-        String mergedMapping = esClient.mergeMapping(sourceMapping, VECTOR_FIELDS_MAPPING);
-
-        // Create target index with merged mapping
-        esClient.createIndex(targetIndexName, mergedMapping);
-    }
-
-    private void copyFields(JsonNode doc, Map<String, Object> enrichedDoc) {
-
-        doc.path("_source").fields().forEachRemaining(field -> {
-            JsonNode value = field.getValue();
-            Object fieldValue;
-            if (value.isTextual()) {
-                fieldValue = value.asText();
-            } else if (value.isNumber()) {
-                fieldValue = value.numberValue();
-            } else if (value.isBoolean()) {
-                fieldValue = value.asBoolean();
-            } else if (value.isNull()) {
-                fieldValue = null;
-            } else {
-                // For arrays, objects and other types, preserve the structure
-                fieldValue = value;
-            }
-            enrichedDoc.put(field.getKey(), fieldValue);
-        });
+    private static void saveWatermark(Path watermarkPath, Outcome outcome, String watermark) throws IOException {
+        if (!outcome.complete()) {
+            System.out.printf("%d documents failed to be enriched and %d to be indexed, keeping the previous watermark so that they're retried%n",
+                outcome.failed(), outcome.notIndexed());
+            return;
+        }
+        if (watermark != null) {
+            Files.writeString(watermarkPath, watermark);
+        }
     }
 
-    private void addEmbeddings(JsonNode doc, Map<String, Object> enrichedDoc) {
-        JsonNode source = doc.path("_source");
+    /// Target documents are indexed under the `id` of the crawled document, see [ElasticsearchConnector#bulkIndex(String, List)]
+    private static String documentId(PointInTimeReader.Hit doc) {
+        return doc.source().path("id").asText(doc.id());
+    }
+
+    private static String contentHash(PointInTimeReader.Hit doc) {
+        return ElasticsearchVectorStore.contentHash(doc.source().path("title").asText(), doc.source().path("body").asText());
+    }
+
+    private SplitDocument split(PointInTimeReader.Hit hit) {
+        JsonNode source = hit.source();
         String title = source.path("title").asText();
-        if (title != null && !title.trim().isEmpty()) {
-            double[] titleEmbedding = encoder.encode(title);
-            enrichedDoc.put("titleEmbedding", titleEmbedding);
-        }
 
-        // Process body
         String body = source.path("body").asText();
-        List<Map<String, Object>> bodyChunks = new ArrayList<>();
-
+        List<String> passages = List.of();
         if (body != null && !body.trim().isEmpty()) {
-            List<String> passages = textSplitter.splitIntoPassages(body);
-            System.out.printf("Processing %d passages from document %s (%s)%n", passages.size(), doc.path("_id"), source.path("url").asText());
-
-            for (String passage : passages) {
-                Map<String, Object> chunk = new HashMap<>();
-                chunk.put("passage", passage);
-                chunk.put("predictedValue", encoder.encode(passage));
-                bodyChunks.add(chunk);
+            passages = textSplitter.splitIntoPassages(body);
+        }
+        return new SplitDocument(hit, title != null && !title.trim().isEmpty() ? title : null, passages);
+    }
+
+    /// The enriched document is the original `_source` with the vector fields added, see [ElasticsearchVectorStore#source(VectorDocument, byte[], JsonNode)].
+    /// Embeddings come in the order of [#texts(SplitDocument)].
+    private EnrichedDocument enrich(SplitDocument doc, List<float[]> embeddings) throws IOException {
+        JsonNode source = doc.hit().source();
+        int offset = doc.title() != null ? 1 : 0;
+        VectorDocument document = new VectorDocument(documentId(doc.hit()), source.path("title").asText(), source.path("url").asText(null),
+            source.path("body").asText(), embeddings.subList(offset, embeddings.size()), doc.passages(), doc.title() != null ? embeddings.getFirst() : null);
+        return new EnrichedDocument(document.id(), vectorStore.source(document, doc.hit().rawSource(), source), doc, embeddings);
+    }
+
+    /// Embeds the texts of all the documents with one call, so that [Encoder#encodeAll(List)] batches texts of similar
+    /// length from different documents together, and splits the embeddings back per document.
+    /// If embedding fails, the documents are embedded one by one, so that only the failing ones are left out.
+    private List<EnrichedDocument> enrichBatch(List<SplitDocument> docs, ExecutorService executor, LongAdder failed) throws InterruptedException {
+        List<List<String>> textsPerDoc = docs.stream().map(DocumentEnricher::texts).toList();
+        List<float[]> embeddings;
+        try {
+            embeddings = embed(textsPerDoc.stream().flatMap(List::stream).toList(), executor);
+        } catch (InterruptedException e) {
+            throw e;
+        } catch (Exception e) {
+            if (docs.size() == 1) {
+                failed.increment();
+                System.err.printf("Failed to enrich document %s: %s%n", docs.getFirst().hit().id(), e);
+                return List.of();
+            }
+            List<EnrichedDocument> enriched = new ArrayList<>(docs.size());
+            for (SplitDocument doc : docs) {
+                enriched.addAll(enrichBatch(List.of(doc), executor, failed));
+            }
+            return enriched;
+        }
+
+        List<EnrichedDocument> enriched = new ArrayList<>(docs.size());
+        int from = 0;
+        for (int i = 0; i < docs.size(); i++) {
+            SplitDocument doc = docs.get(i);
+            int to = from + textsPerDoc.get(i).size();
+            try {
+                enriched.add(enrich(doc, embeddings.subList(from, to)));
+            } catch (Exception e) {
+                failed.increment();
+                System.err.printf("Failed to enrich document %s: %s%n", doc.hit().id(), e);
+            }
+            from = to;
+        }
+        return enriched;
+    }
+
+    private void createTargetIndex(String sourceIndexName, String targetIndexName) throws IOException, InterruptedException {
+        DenseVectorMapping vectorMapping = DenseVectorMapping.fromEnvironment(encoder.encode(DIMENSIONS_PROBE).length, encoder.normalizes());
+        System.out.println("Vector mapping: " + vectorMapping);
+        // Target index has the fields of the source index, along with the vector fields
+        vectorStore.createIndex(targetIndexName, vectorMapping, sourceIndexName);
+    }
+
+    private static List<String> texts(SplitDocument doc) {
+        List<String> texts = new ArrayList<>();
+        if (doc.title() != null) {
+            texts.add(doc.title());
+        }
+        List<String> passages = doc.passages();
+        if (!passages.isEmpty()) {
+            System.out.printf("Processing %d passages from document %s (%s)%n", passages.size(), doc.hit().id(), doc.hit().source().path("url").asText());
+            texts.addAll(passages);
+        }
+        return texts;
+    }
+
+    /// Passages are written with their embeddings, which come in the order of [#texts(SplitDocument)]
+    private static void writePassages(FlatVectorFile.Writer vectorFile, EnrichedDocument doc) throws IOException {
+        SplitDocument split = doc.split();
+        int offset = split.title() != null ? 1 : 0;
+        String url = split.hit().source().path("url").asText(null);
+        for (int i = 0; i < split.passages().size(); i++) {
+            vectorFile.add(doc.id(), split.title(), url, split.passages().get(i), doc.embeddings().get(offset + i));
+        }
+    }
+
+    /// Embeds all the texts with one batch call if the encoder supports it,
+    /// otherwise each text is embedded on its own virtual thread.
+    private List<float[]> embed(List<String> texts, ExecutorService executor) throws InterruptedException, ExecutionException {
+        if (texts.isEmpty()) {
+            return List.of();
+        }
+        if (encoder.supportsBatch()) {
+            embeddingPermits.acquire();
+            try {
+                return encoder.encodeAll(texts);
+            } finally {
+                embeddingPermits.release();
             }
         }
-        enrichedDoc.put("bodyChunks", bodyChunks);
+
+        List<Future<float[]>> futures = new ArrayList<>(texts.size());
+        for (String text : texts) {
+            futures.add(executor.submit(() -> encodeWithPermit(text)));
+        }
+        List<float[]> embeddings = new ArrayList<>(texts.size());
+        for (Future<float[]> future : futures) {
+            embeddings.add(future.get());
+        }
+        return embeddings;
+    }
+
+    private float[] encodeWithPermit(String text) throws InterruptedException {
+        embeddingPermits.acquire();
+        try {
+            return encoder.encode(text);
+        } finally {
+            embeddingPermits.release();
+        }
+    }
+
+    /// What an enrichment run left undone, a watermark is saved only if nothing was
+    ///
+    /// @param failed     documents which failed to be enriched
+    /// @param notIndexed documents which [BulkProcessor] gave up on
+    private record Outcome(long failed, long notIndexed) {
+
+        boolean complete() {
+            return failed == 0 && notIndexed == 0;
+        }
+    }
+
+    /// A source document with its body split into passages, `title` is `null` if blank
+    private record SplitDocument(PointInTimeReader.Hit hit, String title, List<String> passages) {
+    }
+
+    /// A document ready to be indexed, with its `_source` serialized as a single line of JSON,
+    /// and the embeddings it was enriched with, in the order of [#texts(SplitDocument)]
+    private record EnrichedDocument(String id, byte[] source, SplitDocument split, List<float[]> embeddings) {
     }
 }
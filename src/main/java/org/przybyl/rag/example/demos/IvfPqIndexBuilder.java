@@ -0,0 +1,78 @@
+/*
+ * Copyright 2025 Piotr Przybył
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.przybyl.rag.example.demos;
+
+import org.przybyl.rag.example.utils.FlatVectorFile;
+import org.przybyl.rag.example.utils.IvfPqIndex;
+import org.przybyl.rag.example.utils.VectorMath;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/// Builds an [IvfPqIndex] of the vectors [DocumentEnricher] wrote to `FLAT_VECTOR_PATH`, saves it to `IVF_PQ_PATH`,
+/// and reports how much memory it takes and how its recall compares to exact search, for a few `nprobe` values
+/// around `IVF_NPROBE`, so that a good trade-off can be picked.
+///
+/// Recall is measured with `IVF_RECALL_QUERIES` vectors of the corpus itself as queries.
+public class IvfPqIndexBuilder {
+
+    public static void main(String[] args) {
+        String searchIndex = System.getenv("SEARCH_INDEX");
+        Path indexPath = Path.of(System.getenv().getOrDefault("IVF_PQ_PATH", searchIndex + ".ivfpq"));
+        int k = Integer.parseInt(System.getenv().getOrDefault("SEARCH_K", "3"));
+        int nprobe = Integer.parseInt(System.getenv().getOrDefault("IVF_NPROBE", "16"));
+        int shortlist = Integer.parseInt(System.getenv().getOrDefault("IVF_SHORTLIST", "200"));
+        int recallQueries = Integer.parseInt(System.getenv().getOrDefault("IVF_RECALL_QUERIES", "100"));
+
+        try (FlatVectorFile file = VectorSearch.openFlatVectorFile(searchIndex, null)) {
+            IvfPqIndex.Settings settings = IvfPqIndex.Settings.fromEnvironment(file.dims());
+            System.out.println("Building IVF-PQ index: " + settings);
+            long start = System.nanoTime();
+            IvfPqIndex index = IvfPqIndex.build(file, settings);
+            System.out.printf("Built in %d s%n", (System.nanoTime() - start) / 1_000_000_000);
+            index.save(indexPath);
+
+            long rawBytes = (long) file.count() * file.dims() * Float.BYTES;
+            System.out.printf("Index takes %d MB, %.1f%% of %d MB of full vectors%n",
+                index.memoryBytes() >> 20, 100.0 * index.memoryBytes() / Math.max(rawBytes, 1), rawBytes >> 20);
+
+            List<float[]> queries = sampleQueries(file, recallQueries);
+            for (int probes : List.of(Math.max(1, nprobe / 4), nprobe, Math.min(index.lists(), nprobe * 4))) {
+                long searchStart = System.nanoTime();
+                double recall = index.recall(file, queries, k, probes, shortlist);
+                System.out.printf("nprobe %4d, shortlist %d: recall@%d %.3f (%.1f ms per query, including exact search)%n",
+                    probes, shortlist, k, recall, (System.nanoTime() - searchStart) / 1e6 / Math.max(queries.size(), 1));
+            }
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private static List<float[]> sampleQueries(FlatVectorFile file, int count) {
+        Random random = new Random(7);
+        long vectorBytes = (long) file.dims() * Float.BYTES;
+        List<float[]> queries = new ArrayList<>(count);
+        for (int i = 0; i < Math.min(count, file.count()); i++) {
+            queries.add(file.vectors().asSlice(random.nextInt(file.count()) * vectorBytes, vectorBytes).toArray(VectorMath.FLOAT));
+        }
+        return queries;
+    }
+}
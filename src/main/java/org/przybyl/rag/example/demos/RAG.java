@@ -17,22 +17,21 @@
 package org.przybyl.rag.example.demos;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
-import org.jetbrains.annotations.NotNull;
+import org.przybyl.rag.example.utils.ContextAssembler;
 import org.przybyl.rag.example.utils.ElasticsearchConnector;
-import org.przybyl.rag.example.utils.Encoder;
-import org.przybyl.rag.example.utils.OllamaEmbeddingService;
 import org.przybyl.rag.example.utils.OllamaTextGenerationService;
 import org.przybyl.rag.example.utils.SearchResult;
-import org.przybyl.rag.example.utils.Searcher;
+import org.przybyl.rag.example.utils.SemanticAnswerCache;
+import static org.przybyl.rag.example.demos.VectorSearch.createSearcher;
 import static org.przybyl.rag.example.demos.VectorSearch.displaySearchResults;
 import static org.przybyl.rag.example.demos.VectorSearch.performSearch;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
 
 public class RAG {
     public static void main(String[] args) {
@@ -40,11 +39,11 @@ public class RAG {
             boolean debugMode = args.length > 0 && List.of(args).contains("--debug");
             // Create shared ObjectMapper instance
             var objectMapper = new ObjectMapper();
-            var searcher = new Searcher(
-                new Encoder(new OllamaEmbeddingService(), objectMapper),
-                new ElasticsearchConnector(objectMapper),
-                objectMapper);
+            var esConnector = new ElasticsearchConnector(objectMapper);
+            var searcher = createSearcher(objectMapper, esConnector);
             var generationService = new OllamaTextGenerationService(objectMapper);
+            var answerCache = SemanticAnswerCache.fromEnvironment(objectMapper);
+            var contextAssembler = ContextAssembler.fromEnvironment();
 
             // Get search query from user
             System.out.print("Enter your search query: ");
@@ -54,18 +53,36 @@ public class RAG {
 
             displaySearchResults(searchResults, debugMode);
 
-            String context = prepareContext(searchResults);
+            // A similar question answered from the same documents gets the same answer, without generating it again
+            List<String> documentIds = searchResults.stream().map(SearchResult::id).toList();
+            float[] queryEmbedding = null;
+            List<String> cachedAnswer = null;
+            if (answerCache != null) {
+                answerCache.useIndex(esConnector.getIndexUuid(System.getenv("SEARCH_INDEX")));
+                queryEmbedding = searcher.embed(query);
+                cachedAnswer = answerCache.lookup(queryEmbedding, documentIds);
+            }
+            if (cachedAnswer != null) {
+                cachedAnswer.forEach(System.out::print);
+            } else {
+                List<String> answer = new ArrayList<>();
+                generationService
+                    .generate(prompt(query, searchResults, contextAssembler), Map.of("temperature", 0.6))
+                    .peek(answer::add)
+                    .forEach(System.out::print);
 
-            String prompt = String.format("""
-                Based on the following context:
+                if (answerCache != null) {
+                    answerCache.put(queryEmbedding, documentIds, answer);
+                    answerCache.save();
+                }
+            }
 
-                %s
-
-                Answer this question: %s""", context, query);
-
-            generationService
-                .generate(prompt, Map.of("temperature", 0.6))
-                .forEach(System.out::print);
+            if (debugMode && cachedAnswer == null) {
+                System.out.println("Generation: " + generationService.metrics().snapshot().last());
+            }
+            if (debugMode && answerCache != null) {
+                System.out.println("Answer cache: " + answerCache.stats());
+            }
 
         } catch (IOException | InterruptedException e) {
             System.err.println("Error: " + e.getMessage());
@@ -73,11 +90,18 @@ public class RAG {
         }
     }
 
-    private static @NotNull String prepareContext(List<SearchResult> results) {
-        return results.stream()
-            .map(SearchResult::body)
-            .filter(body -> body != null && !body.isBlank())
-            .collect(Collectors.joining("\n\n"));
+    /// The prompt asking to answer the query based on the passages packed by [ContextAssembler], see [RagServer] too.
+    /// Its size is logged, as it's what prefill, and so the time to the first token, depends on.
+    static String prompt(String query, List<SearchResult> results, ContextAssembler contextAssembler) {
+        ContextAssembler.Context context = contextAssembler.assemble(query, results);
+        String prompt = String.format("""
+            Based on the following context:
+
+            %s
+
+            Answer this question: %s""", context.text(), query);
+        System.out.printf("Prompt of ~%d tokens, context: %s%n", ContextAssembler.estimateTokens(prompt), context);
+        return prompt;
     }
 
     private static String readUserInput() throws IOException {
@@ -0,0 +1,326 @@
+/*
+ * Copyright 2025 Piotr Przybył
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.przybyl.rag.example.demos;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.przybyl.rag.example.utils.ChatService;
+import org.przybyl.rag.example.utils.ContextAssembler;
+import org.przybyl.rag.example.utils.ElasticsearchConnector;
+import org.przybyl.rag.example.utils.GenerationMetrics;
+import org.przybyl.rag.example.utils.LatencyStats;
+import org.przybyl.rag.example.utils.OllamaChatService;
+import org.przybyl.rag.example.utils.OllamaTextGenerationService;
+import org.przybyl.rag.example.utils.SearchResult;
+import org.przybyl.rag.example.utils.Searcher;
+import org.przybyl.rag.example.utils.SemanticAnswerCache;
+import org.przybyl.rag.example.utils.TextGenerationService;
+import static org.przybyl.rag.example.demos.VectorSearch.createSearcher;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+
+/// Serves [VectorSearch] and [RAG] over HTTP from one long running process, so that the JIT, the connections
+/// and the caches stay warm between questions, instead of every question paying for a new JVM.
+///
+/// - `GET /search?q=...` returns the search results as JSON
+/// - `GET /ask?q=...` streams the answer as Server-Sent Events: a `results` event with the documents the answer
+///   is based on, a `token` event per generated chunk as soon as it arrives, and a `done` event at the end.
+///   Data of every event is JSON, so new lines in tokens don't end the event.
+/// - `GET /chat?q=...&session=...` streams the answer the same way, as a turn of a conversation, see [OllamaChatService],
+///   with a `session` event first, giving the id to send with follow-up questions
+/// - `GET /stats` returns latencies of all of them, including time to the first token of answers, and cache statistics,
+///   along with the timings of generating answers reported by Ollama, see [GenerationMetrics], and how many searches were coalesced
+///
+/// Every request is handled on a virtual thread of its own, so a long generation holds no platform thread.
+/// The server listens on `SERVER_PORT`.
+public class RagServer {
+    private static final int LATENCY_WINDOW = 1024;
+    private static final int STOP_DELAY_SECONDS = 1;
+
+    private final Searcher searcher;
+    private final TextGenerationService generationService;
+    private final ChatService chatService;
+    private final ContextAssembler contextAssembler;
+    private final SemanticAnswerCache answerCache;
+    private final ObjectMapper objectMapper;
+    private final String searchIndex;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final HttpServer server;
+    private final LatencyStats searchLatency = new LatencyStats(LATENCY_WINDOW);
+    private final LatencyStats askLatency = new LatencyStats(LATENCY_WINDOW);
+    private final LatencyStats chatLatency = new LatencyStats(LATENCY_WINDOW);
+    private final LatencyStats firstTokenLatency = new LatencyStats(LATENCY_WINDOW);
+
+    public static void main(String[] args) {
+        try {
+            // Shared by all requests, for as long as the server runs
+            var objectMapper = new ObjectMapper();
+            var esConnector = new ElasticsearchConnector(objectMapper);
+            var searcher = createSearcher(objectMapper, esConnector);
+            var generationService = new OllamaTextGenerationService(objectMapper);
+            var answerCache = SemanticAnswerCache.fromEnvironment(objectMapper);
+            String searchIndex = System.getenv("SEARCH_INDEX");
+            if (answerCache != null) {
+                // answers cached for the index as it is now, a reindex needs a restart to be noticed
+                answerCache.useIndex(esConnector.getIndexUuid(searchIndex));
+            }
+
+            int port = Integer.parseInt(System.getenv().getOrDefault("SERVER_PORT", "8080"));
+            var chatService = new OllamaChatService(objectMapper);
+            var server = new RagServer(searcher, generationService, chatService, ContextAssembler.fromEnvironment(), answerCache, objectMapper, searchIndex, new InetSocketAddress(port));
+            server.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
+            System.out.printf("Serving %s at http://localhost:%d, see /search?q=..., /ask?q=..., /chat?q=...&session=... and /stats%n", searchIndex, server.address().getPort());
+        } catch (IOException | InterruptedException e) {
+            System.err.println("Error: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /// @param answerCache cache of answers, may be `null`
+    /// @param address     where to listen, with port `0` for any free one
+    public RagServer(Searcher searcher, TextGenerationService generationService, ChatService chatService, ContextAssembler contextAssembler,
+                     SemanticAnswerCache answerCache, ObjectMapper objectMapper, String searchIndex, InetSocketAddress address) throws IOException {
+        this.searcher = searcher;
+        this.generationService = generationService;
+        this.chatService = chatService;
+        this.contextAssembler = contextAssembler;
+        this.answerCache = answerCache;
+        this.objectMapper = objectMapper;
+        this.searchIndex = searchIndex;
+        this.server = HttpServer.create(address, 0);
+        server.setExecutor(executor);
+        server.createContext("/search", timed(searchLatency, this::search));
+        server.createContext("/ask", timed(askLatency, this::ask));
+        server.createContext("/chat", timed(chatLatency, this::chat));
+        server.createContext("/stats", exchange -> {
+            try (exchange) {
+                sendJson(exchange, 200, stats());
+            }
+        });
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    /// Stops accepting requests, lets the ones in progress finish for a moment, and saves the answer cache.
+    public void stop() {
+        server.stop(STOP_DELAY_SECONDS);
+        executor.close();
+        if (answerCache != null) {
+            // saved once here, rather than after every answer, which would rewrite the file on each request
+            try {
+                answerCache.save();
+            } catch (IOException e) {
+                System.err.println("Failed to save answer cache: " + e.getMessage());
+            }
+        }
+    }
+
+    public InetSocketAddress address() {
+        return server.getAddress();
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("search", searchLatency.snapshot());
+        stats.put("ask", askLatency.snapshot());
+        stats.put("chat", chatLatency.snapshot());
+        stats.put("firstToken", firstTokenLatency.snapshot());
+        stats.put("queryCache", searcher.queryCacheStats());
+        stats.put("searchCoalescing", searcher.searchCoalescingStats());
+        stats.put("embeddingCoalescing", searcher.embeddingCoalescingStats());
+        stats.put("answerCache", answerCache == null ? null : answerCache.stats());
+        stats.put("chatSessions", chatService.stats());
+        stats.put("generation", generationService.metrics().snapshot());
+        stats.put("chatGeneration", chatService.metrics().snapshot());
+        return stats;
+    }
+
+    private void search(HttpExchange exchange, String query, long start) throws IOException, InterruptedException {
+        sendJson(exchange, 200, searcher.search(searchIndex, query));
+    }
+
+    private void ask(HttpExchange exchange, String query, long start) throws IOException, InterruptedException {
+        List<SearchResult> results = searcher.search(searchIndex, query);
+
+        OutputStream out = startEvents(exchange);
+        try {
+            sendEvent(out, "results", results);
+
+            // A similar question answered from the same documents gets the same answer, as in RAG
+            List<String> documentIds = results.stream().map(SearchResult::id).toList();
+            float[] queryEmbedding = null;
+            List<String> cachedAnswer = null;
+            if (answerCache != null) {
+                queryEmbedding = searcher.embed(query);
+                cachedAnswer = answerCache.lookup(queryEmbedding, documentIds);
+            }
+            if (cachedAnswer != null) {
+                for (String token : cachedAnswer) {
+                    sendEvent(out, "token", token);
+                }
+            } else {
+                List<String> answer;
+                try (Stream<String> tokens = generationService.generate(RAG.prompt(query, results, contextAssembler), Map.of("temperature", 0.6))) {
+                    answer = sendTokens(out, tokens, start);
+                }
+                if (answerCache != null) {
+                    answerCache.put(queryEmbedding, documentIds, answer);
+                }
+            }
+            sendEvent(out, "done", Map.of("cached", cachedAnswer != null));
+        } catch (IOException | RuntimeException e) {
+            sendError(out, e);
+            throw e;
+        }
+    }
+
+    /// Like [#ask(HttpExchange, String, long)], within the conversation given by the `session` parameter,
+    /// or a new one, whose id comes in the first event. Answers aren't cached, as they depend on the conversation.
+    private void chat(HttpExchange exchange, String query, long start) throws IOException, InterruptedException {
+        String session = queryParameter(exchange, "session");
+        String sessionId = session == null || session.isBlank() ? UUID.randomUUID().toString() : session;
+        List<SearchResult> results = searcher.search(searchIndex, query);
+
+        OutputStream out = startEvents(exchange);
+        try {
+            sendEvent(out, "session", Map.of("id", sessionId));
+            sendEvent(out, "results", results);
+            // the context goes with this question only, so that the history of the session holds just the conversation
+            ContextAssembler.Context context = contextAssembler.assemble(query, results);
+            System.out.printf("Chat context: %s%n", context);
+            try (Stream<String> tokens = chatService.chat(sessionId, query, context.text(), Map.of("temperature", 0.6))) {
+                sendTokens(out, tokens, start);
+            }
+            sendEvent(out, "done", Map.of("cached", false));
+        } catch (IOException | RuntimeException e) {
+            sendError(out, e);
+            throw e;
+        }
+    }
+
+    private static OutputStream startEvents(HttpExchange exchange) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "text/event-stream; charset=utf-8");
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        // length 0 means chunked, so every event goes out as soon as it's flushed
+        exchange.sendResponseHeaders(200, 0);
+        return exchange.getResponseBody();
+    }
+
+    /// Sends every token as soon as it's generated, and records the time to the first one.
+    private List<String> sendTokens(OutputStream out, Stream<String> tokens, long start) throws IOException {
+        List<String> answer = new ArrayList<>();
+        for (Iterator<String> iterator = tokens.iterator(); iterator.hasNext(); ) {
+            String token = iterator.next();
+            if (answer.isEmpty()) {
+                firstTokenLatency.record(System.nanoTime() - start, false);
+            }
+            answer.add(token);
+            sendEvent(out, "token", token);
+        }
+        return answer;
+    }
+
+    /// The status has been sent already, so the client learns about the failure from an event
+    private void sendError(OutputStream out, Exception e) {
+        try {
+            sendEvent(out, "error", Map.of("error", String.valueOf(e.getMessage())));
+        } catch (IOException closed) {
+            e.addSuppressed(closed);
+        }
+    }
+
+    @FunctionalInterface
+    private interface QueryHandler {
+        void handle(HttpExchange exchange, String query, long start) throws IOException, InterruptedException;
+    }
+
+    /// Takes the query from the `q` parameter, and records how long handling it took and whether it failed.
+    private HttpHandler timed(LatencyStats latency, QueryHandler handler) {
+        return exchange -> {
+            long start = System.nanoTime();
+            boolean failed = true;
+            try {
+                if (!"GET".equals(exchange.getRequestMethod())) {
+                    sendJson(exchange, 405, Map.of("error", "Only GET is supported"));
+                    return;
+                }
+                String query = queryParameter(exchange, "q");
+                if (query == null || query.isBlank()) {
+                    sendJson(exchange, 400, Map.of("error", "Missing query parameter q"));
+                    return;
+                }
+                handler.handle(exchange, query.trim(), start);
+                failed = false;
+            } catch (IOException | RuntimeException e) {
+                System.err.printf("Failed to handle %s: %s%n", exchange.getRequestURI(), e);
+                // -1 until the status is sent
+                if (exchange.getResponseCode() == -1) {
+                    sendJson(exchange, 500, Map.of("error", String.valueOf(e.getMessage())));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                exchange.close();
+                latency.record(System.nanoTime() - start, failed);
+            }
+        };
+    }
+
+    private static String queryParameter(HttpExchange exchange, String name) {
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null) {
+            return null;
+        }
+        for (String parameter : query.split("&")) {
+            int equals = parameter.indexOf('=');
+            if (equals > 0 && URLDecoder.decode(parameter.substring(0, equals), StandardCharsets.UTF_8).equals(name)) {
+                return URLDecoder.decode(parameter.substring(equals + 1), StandardCharsets.UTF_8);
+            }
+        }
+        return null;
+    }
+
+    private void sendJson(HttpExchange exchange, int status, Object body) throws IOException {
+        byte[] json = objectMapper.writeValueAsBytes(body);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, json.length);
+        exchange.getResponseBody().write(json);
+    }
+
+    private void sendEvent(OutputStream out, String event, Object data) throws IOException {
+        out.write(("event: " + event + "\ndata: " + objectMapper.writeValueAsString(data) + "\n\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+}
@@ -18,14 +18,23 @@ package org.przybyl.rag.example.demos;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.przybyl.rag.example.utils.ElasticsearchConnector;
+import org.przybyl.rag.example.utils.ElasticsearchVectorStore;
 import org.przybyl.rag.example.utils.Encoder;
+import org.przybyl.rag.example.utils.FlatVectorFile;
+import org.przybyl.rag.example.utils.FlatVectorStore;
+import org.przybyl.rag.example.utils.HnswVectorStore;
+import org.przybyl.rag.example.utils.IvfPqIndex;
 import org.przybyl.rag.example.utils.OllamaEmbeddingService;
+import org.przybyl.rag.example.utils.QueryEmbeddingCache;
 import org.przybyl.rag.example.utils.SearchResult;
 import org.przybyl.rag.example.utils.Searcher;
+import org.przybyl.rag.example.utils.VectorMath;
+import org.przybyl.rag.example.utils.VectorStore;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.file.Path;
 import java.util.List;
 
 public class VectorSearch {
@@ -34,10 +43,7 @@ public class VectorSearch {
             boolean debugMode = args.length > 0 && List.of(args).contains("--debug");
             // Create shared ObjectMapper instance
             var objectMapper = new ObjectMapper();
-            var searcher = new Searcher(
-                new Encoder(new OllamaEmbeddingService(), objectMapper),
-                new ElasticsearchConnector(objectMapper),
-                objectMapper);
+            var searcher = createSearcher(objectMapper, new ElasticsearchConnector(objectMapper));
 
             // Get search query from user
             System.out.print("Enter your search query: ");
@@ -53,6 +59,48 @@ public class VectorSearch {
         }
     }
 
+    /// Creates a searcher with kNN running where `VECTOR_STORE` says:
+    /// - `elasticsearch`, the default
+    /// - `hnsw`, in memory of this process, with the `SEARCH_INDEX` copied from Elasticsearch first
+    /// - `flat`, exactly, over the file written by [DocumentEnricher] to `FLAT_VECTOR_PATH`, mapped for as long as the process runs
+    /// - `ivfpq`, over the same file, with the index built by [IvfPqIndexBuilder] to `IVF_PQ_PATH`
+    public static Searcher createSearcher(ObjectMapper objectMapper, ElasticsearchConnector esConnector) throws IOException {
+        var encoder = new Encoder(new OllamaEmbeddingService(), objectMapper);
+        String searchIndex = System.getenv("SEARCH_INDEX");
+        long start = System.nanoTime();
+        VectorStore vectorStore = switch (System.getenv().getOrDefault("VECTOR_STORE", "elasticsearch")) {
+            case "hnsw" -> {
+                HnswVectorStore hnswStore = HnswVectorStore.fromEnvironment();
+                hnswStore.copyFrom(esConnector, objectMapper, searchIndex);
+                System.out.printf("Copied %d documents of %s to memory in %d ms%n",
+                    hnswStore.size(searchIndex), searchIndex, (System.nanoTime() - start) / 1_000_000);
+                yield hnswStore;
+            }
+            case "flat" -> new FlatVectorStore(openFlatVectorFile(searchIndex, encoder), VectorMath.Similarity.COSINE);
+            case "ivfpq" -> {
+                FlatVectorFile file = openFlatVectorFile(searchIndex, encoder);
+                IvfPqIndex index = IvfPqIndex.load(Path.of(System.getenv().getOrDefault("IVF_PQ_PATH", searchIndex + ".ivfpq")));
+                System.out.printf("Loaded IVF-PQ index of %d lists taking %d MB in %d ms%n",
+                    index.lists(), index.memoryBytes() >> 20, (System.nanoTime() - start) / 1_000_000);
+                yield new FlatVectorStore(file, index,
+                    Integer.parseInt(System.getenv().getOrDefault("IVF_NPROBE", "16")),
+                    Integer.parseInt(System.getenv().getOrDefault("IVF_SHORTLIST", "200")));
+            }
+            default -> new ElasticsearchVectorStore(esConnector, objectMapper);
+        };
+        return new Searcher(encoder, esConnector, objectMapper, QueryEmbeddingCache.fromEnvironment(), vectorStore);
+    }
+
+    public static FlatVectorFile openFlatVectorFile(String searchIndex, Encoder encoder) throws IOException {
+        long start = System.nanoTime();
+        FlatVectorFile file = FlatVectorFile.open(Path.of(System.getenv().getOrDefault("FLAT_VECTOR_PATH", searchIndex + ".vectors")));
+        System.out.printf("Opened %d vectors of %d dimensions in %.3f ms%n", file.count(), file.dims(), (System.nanoTime() - start) / 1e6);
+        if (encoder != null && !file.model().equals(encoder.model())) {
+            System.err.printf("Vectors were embedded with %s, but queries are embedded with %s%n", file.model(), encoder.model());
+        }
+        return file;
+    }
+
     public static void displaySearchResults(List<SearchResult> results, boolean debugMode) {
         // Display results
         System.out.println("\nSearch Results:");
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2025 Piotr Przybył
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.przybyl.rag.example.utils;
+
+import java.lang.foreign.MemorySegment;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.stream.IntStream;
+
+/// Exact top-k search, comparing the query with every vector, with [VectorMath].
+///
+/// The vectors are split into ranges scanned in parallel, each keeping its best `k` in a heap of its own,
+/// and the heaps are merged at the end, so workers share nothing while scanning. Ranges smaller than
+/// [#MIN_VECTORS_PER_WORKER] aren't worth a thread and are scanned by the caller.
+public final class BruteForceSearch {
+
+    static final int MIN_VECTORS_PER_WORKER = 4096;
+
+    private BruteForceSearch() {
+    }
+
+    /// @return indices of at most `k` vectors closest to the query with their scores, the closest first
+    public static List<Match> topK(float[] query, List<float[]> vectors, int k, VectorMath.Similarity similarity) {
+        return topK(vectors.size(), k, index -> similarity.score(query, vectors.get(index)));
+    }
+
+    /// @param vectors `count` vectors stored one after another, each as many little-endian floats as the query has.
+    ///                The segment is read by many threads, so it must be accessible from any of them,
+    ///                e.g. mapped or allocated by a shared or global arena, not a confined one.
+    public static List<Match> topK(float[] query, MemorySegment vectors, int count, int k, VectorMath.Similarity similarity) {
+        long vectorBytes = (long) query.length * Float.BYTES;
+        if (vectors.byteSize() < count * vectorBytes) {
+            throw new IllegalArgumentException("Segment of " + vectors.byteSize() + " bytes doesn't hold " + count +
+                " vectors of " + query.length + " dimensions");
+        }
+        return topK(count, k, index -> similarity.score(query, vectors, index * vectorBytes));
+    }
+
+    private static List<Match> topK(int count, int k, Scorer scorer) {
+        if (k < 1 || count == 0) {
+            return List.of();
+        }
+        int workers = Math.clamp(count / MIN_VECTORS_PER_WORKER, 1, Runtime.getRuntime().availableProcessors());
+        int rangeSize = Math.ceilDiv(count, workers);
+        return IntStream.range(0, workers)
+            .parallel()
+            .mapToObj(worker -> scan(worker * rangeSize, Math.min(count, (worker + 1) * rangeSize), k, scorer))
+            .flatMap(List::stream)
+            .sorted(Comparator.comparingDouble(Match::score).reversed())
+            .limit(k)
+            .toList();
+    }
+
+    private static List<Match> scan(int from, int to, int k, Scorer scorer) {
+        // the least similar of the best k at the head, to be replaced by anything better
+        PriorityQueue<Match> heap = new PriorityQueue<>(k + 1, Comparator.comparingDouble(Match::score));
+        for (int index = from; index < to; index++) {
+            float score = scorer.score(index);
+            if (heap.size() < k) {
+                heap.add(new Match(index, score));
+            } else if (score > heap.peek().score()) {
+                heap.poll();
+                heap.add(new Match(index, score));
+            }
+        }
+        return new ArrayList<>(heap);
+    }
+
+    @FunctionalInterface
+    private interface Scorer {
+        float score(int index);
+    }
+
+    /// @param index position of the vector in the searched list or segment
+    public record Match(int index, float score) {
+    }
+}
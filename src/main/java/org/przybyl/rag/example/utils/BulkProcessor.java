@@ -0,0 +1,315 @@
+/*
+ * Copyright 2025 Piotr Przybył
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.przybyl.rag.example.utils;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/// Collects documents into bulk requests and sends them to Elasticsearch, with a limited number of requests in flight.
+///
+/// A request is sent once it reaches the current batch size or the byte size limit. The response is checked item
+/// by item: items rejected with a retryable status (e.g. 429 when ES is overloaded) are sent again with exponential
+/// backoff, while items rejected for other reasons (e.g. a mapping error) are reported and counted as failed.
+/// The batch size adapts to the observed latency: it shrinks when a request takes longer than the target latency
+/// or gets rejected, and grows back slowly when requests are fast.
+///
+/// Documents are kept as NDJSON bytes from the moment they're added until they're sent, and [#add(String, byte[])]
+/// takes an already serialized `_source`, e.g. passed through from another index, which is never parsed again.
+///
+/// Adding blocks while all the requests are in flight, so the producer can't run ahead of Elasticsearch.
+/// A request which fails in a non-retryable way is rethrown by the next add, [#flush()] or [#close()].
+public class BulkProcessor implements AutoCloseable {
+
+    private static final Set<Integer> RETRYABLE_STATUSES = Set.of(429, 502, 503, 504);
+
+    private final ElasticsearchConnector esConnector;
+    private final ObjectMapper objectMapper;
+    private final String indexName;
+    private final Settings settings;
+    private final Semaphore inFlight;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final AtomicReference<IOException> failure = new AtomicReference<>();
+
+    private final LongAdder indexed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder retried = new LongAdder();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder latencyNanos = new LongAdder();
+
+    private List<Item> buffer = new ArrayList<>();
+    private long bufferBytes;
+    private volatile int batchSize;
+
+    public BulkProcessor(ElasticsearchConnector esConnector, ObjectMapper objectMapper, String indexName, Settings settings) {
+        this.esConnector = esConnector;
+        this.objectMapper = objectMapper;
+        this.indexName = indexName;
+        this.settings = settings;
+        this.inFlight = new Semaphore(settings.maxInFlight());
+        this.batchSize = Math.max(1, settings.maxDocuments() / 2);
+    }
+
+    /// @param maxDocuments   upper limit of documents per request, the actual batch size adapts below it
+    /// @param maxBytes       a request is sent once its body reaches this size, whatever the number of documents
+    /// @param maxInFlight    number of requests sent at the same time
+    /// @param maxRetries     how many times a rejected item is retried before it's counted as failed
+    /// @param initialBackoff wait before the first retry, doubled with every next one
+    /// @param targetLatency  requests slower than that make the batch size shrink
+    public record Settings(int maxDocuments, long maxBytes, int maxInFlight, int maxRetries, Duration initialBackoff, Duration targetLatency) {
+
+        public Settings {
+            if (maxDocuments < 1 || maxBytes < 1 || maxInFlight < 1 || maxRetries < 0) {
+                throw new IllegalArgumentException("Invalid bulk settings");
+            }
+        }
+
+        public static Settings fromEnvironment() {
+            return new Settings(
+                Integer.parseInt(System.getenv().getOrDefault("BULK_MAX_DOCUMENTS", "500")),
+                Long.parseLong(System.getenv().getOrDefault("BULK_MAX_BYTES", String.valueOf(5 * 1024 * 1024))),
+                Integer.parseInt(System.getenv().getOrDefault("BULK_IN_FLIGHT", "2")),
+                Integer.parseInt(System.getenv().getOrDefault("BULK_MAX_RETRIES", "5")),
+                Duration.ofMillis(Long.parseLong(System.getenv().getOrDefault("BULK_INITIAL_BACKOFF_MS", "200"))),
+                Duration.ofMillis(Long.parseLong(System.getenv().getOrDefault("BULK_TARGET_LATENCY_MS", "2000"))));
+        }
+    }
+
+    public void add(Map<String, Object> document) throws IOException, InterruptedException {
+        add(String.valueOf(document.get("id")), objectMapper.writeValueAsBytes(document));
+    }
+
+    /// Adds a document whose `_source` is already serialized as a single line of JSON.
+    public void add(String id, byte[] source) throws IOException, InterruptedException {
+        rethrowFailure();
+        Item item = new Item(id, actionLine(id), ndjsonLine(source));
+
+        List<Item> toSend = null;
+        synchronized (this) {
+            buffer.add(item);
+            bufferBytes += item.bytes();
+            if (buffer.size() >= batchSize || bufferBytes >= settings.maxBytes()) {
+                toSend = takeBuffer();
+            }
+        }
+        if (toSend != null) {
+            send(toSend);
+        }
+    }
+
+    /// Sends whatever is buffered, without waiting for the response.
+    public void flush() throws IOException, InterruptedException {
+        rethrowFailure();
+        List<Item> toSend;
+        synchronized (this) {
+            toSend = takeBuffer();
+        }
+        if (!toSend.isEmpty()) {
+            send(toSend);
+        }
+    }
+
+    /// Flushes the buffer and waits for all requests in flight.
+    @Override
+    public void close() throws IOException, InterruptedException {
+        try {
+            flush();
+            inFlight.acquire(settings.maxInFlight());
+            inFlight.release(settings.maxInFlight());
+        } finally {
+            executor.close();
+        }
+        rethrowFailure();
+    }
+
+    public Stats stats() {
+        long sent = requests.sum();
+        return new Stats(indexed.sum(), failed.sum(), retried.sum(), sent,
+            sent == 0 ? Duration.ZERO : Duration.ofNanos(latencyNanos.sum() / sent), batchSize);
+    }
+
+    private List<Item> takeBuffer() {
+        List<Item> taken = buffer;
+        buffer = new ArrayList<>();
+        bufferBytes = 0;
+        return taken;
+    }
+
+    private void send(List<Item> items) throws InterruptedException {
+        inFlight.acquire();
+        executor.execute(() -> {
+            try {
+                sendWithRetries(items);
+            } catch (Exception e) {
+                failure.compareAndSet(null, e instanceof IOException io ? io : new IOException("Failed to send bulk request", e));
+            } finally {
+                inFlight.release();
+            }
+        });
+    }
+
+    private void sendWithRetries(List<Item> items) throws IOException, InterruptedException {
+        List<Item> pending = items;
+        for (int attempt = 0; ; attempt++) {
+            List<byte[]> body = new ArrayList<>(pending.size() * 2);
+            for (Item item : pending) {
+                body.add(item.action());
+                body.add(item.source());
+            }
+
+            long start = System.nanoTime();
+            HttpResponse<String> response = esConnector.sendBulk(body);
+            long latency = System.nanoTime() - start;
+            requests.increment();
+            latencyNanos.add(latency);
+
+            Outcome outcome;
+            if (response.statusCode() == 200) {
+                outcome = outcome(pending, objectMapper.readTree(response.body()));
+            } else if (RETRYABLE_STATUSES.contains(response.statusCode())) {
+                outcome = new Outcome(pending, 0);
+            } else {
+                throw new IOException("Failed to index documents. Status code: " + response.statusCode() +
+                    ", Response: " + response.body());
+            }
+            List<Item> rejected = outcome.retryable();
+            indexed.add(pending.size() - rejected.size() - outcome.failed());
+            failed.add(outcome.failed());
+            adaptBatchSize(latency, !rejected.isEmpty());
+
+            if (rejected.isEmpty()) {
+                return;
+            }
+            if (attempt >= settings.maxRetries()) {
+                failed.add(rejected.size());
+                System.err.printf("Giving up on %d documents after %d retries, e.g. %s%n", rejected.size(), attempt, rejected.getFirst().id());
+                return;
+            }
+            retried.add(rejected.size());
+            Thread.sleep(backoff(attempt));
+            pending = rejected;
+        }
+    }
+
+    /// Items are answered in the order they were sent. Retryable ones are returned, others are reported as failed.
+    private Outcome outcome(List<Item> sent, JsonNode response) {
+        List<Item> retryable = new ArrayList<>();
+        int failed = 0;
+        if (!response.path("errors").asBoolean()) {
+            return new Outcome(retryable, failed);
+        }
+        JsonNode results = response.path("items");
+        for (int i = 0; i < sent.size(); i++) {
+            JsonNode result = results.path(i).elements().next();
+            int status = result.path("status").asInt();
+            if (status < 300) {
+                continue;
+            }
+            Item item = sent.get(i);
+            if (RETRYABLE_STATUSES.contains(status)) {
+                retryable.add(item);
+            } else {
+                failed++;
+                System.err.printf("Failed to index document %s. Status code: %d, Error: %s%n", item.id(), status, result.path("error"));
+            }
+        }
+        return new Outcome(retryable, failed);
+    }
+
+    /// Additive increase, multiplicative decrease, like TCP congestion control
+    private void adaptBatchSize(long latencyNanos, boolean rejected) {
+        int current = batchSize;
+        if (rejected || latencyNanos > settings.targetLatency().toNanos()) {
+            batchSize = Math.max(1, current / 2);
+        } else if (latencyNanos < settings.targetLatency().toNanos() / 2) {
+            batchSize = Math.min(settings.maxDocuments(), current + Math.max(1, current / 10));
+        }
+    }
+
+    private long backoff(int attempt) {
+        long base = settings.initialBackoff().toMillis() << Math.min(attempt, 16);
+        // jitter, so that rejected requests don't come back all at the same time
+        return base + ThreadLocalRandom.current().nextLong(base / 2 + 1);
+    }
+
+    private void rethrowFailure() throws IOException {
+        IOException e = failure.get();
+        if (e != null) {
+            throw e;
+        }
+    }
+
+    private byte[] actionLine(String id) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64 + indexName.length() + id.length());
+        try (JsonGenerator generator = objectMapper.getFactory().createGenerator(out)) {
+            generator.writeStartObject();
+            generator.writeObjectFieldStart("index");
+            generator.writeStringField("_index", indexName);
+            generator.writeStringField("_id", id);
+            generator.writeEndObject();
+            generator.writeEndObject();
+            generator.writeRaw('\n');
+        }
+        return out.toByteArray();
+    }
+
+    /// New lines can only be whitespace in JSON (within strings they're escaped), so passed through documents
+    /// which happen to be pretty printed are put on a single line by replacing them with spaces.
+    private static byte[] ndjsonLine(byte[] json) {
+        byte[] line = new byte[json.length + 1];
+        for (int i = 0; i < json.length; i++) {
+            byte b = json[i];
+            line[i] = b == '\n' || b == '\r' ? (byte) ' ' : b;
+        }
+        line[json.length] = '\n';
+        return line;
+    }
+
+    private record Item(String id, byte[] action, byte[] source) {
+
+        long bytes() {
+            return action.length + source.length;
+        }
+    }
+
+    private record Outcome(List<Item> retryable, int failed) {
+    }
+
+    public record Stats(long indexed, long failed, long retried, long requests, Duration averageLatency, int batchSize) {
+
+        @Override
+        public String toString() {
+            return String.format("%d indexed, %d failed, %d retried in %d bulk requests, average latency %d ms, batch size %d",
+                indexed, failed, retried, requests, averageLatency.toMillis(), batchSize);
+        }
+    }
+}
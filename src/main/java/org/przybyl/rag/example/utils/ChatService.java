@@ -0,0 +1,68 @@
+/*
+ * Copyright 2025 Piotr Przybył
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.przybyl.rag.example.utils;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Service for multi-turn conversations with language models, which keeps the history of each session.
+ */
+public interface ChatService {
+    /**
+     * Sends the message within the session, starting the session if it doesn't exist yet.
+     * The turn, i.e. the message and the answer, is added to the history of the session once the whole answer has been read.
+     *
+     * @param sessionId Identifier of the conversation
+     * @param message The message of the user
+     * @param context The passages to base the answer on, sent with this message only and not kept in the history, may be empty
+     * @param options Configuration options for the generation (e.g., temperature, max tokens)
+     * @return A stream of generated text chunks
+     * @throws IOException if there's an error in communication
+     * @throws InterruptedException if the request is interrupted
+     */
+    Stream<String> chat(String sessionId, String message, String context, Map<String, ?> options) throws IOException, InterruptedException;
+
+    /**
+     * Forgets the history of the session.
+     */
+    void endSession(String sessionId);
+
+    /**
+     * @return timings of the answers generated so far
+     */
+    GenerationMetrics metrics();
+
+    /**
+     * @return how many sessions are kept and how their histories have grown
+     */
+    Stats stats();
+
+    /**
+     * @param sessions number of sessions kept
+     * @param turns number of questions answered in all the sessions
+     * @param compactions number of times the history of a session was compacted
+     */
+    record Stats(int sessions, long turns, long compactions) {
+
+        @Override
+        public String toString() {
+            return String.format("%d sessions, %d turns, %d compactions", sessions, turns, compactions);
+        }
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2025 Piotr Przybył
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.przybyl.rag.example.utils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/// Packs the passages most relevant to a question into a context of at most `CONTEXT_TOKEN_BUDGET` tokens,
+/// so that the prompt fits the context window of the model and prefill takes a predictable time,
+/// whatever the length of the documents found.
+///
+/// Passages are ranked across all the search results: the relevance of a passage is the score of its document,
+/// relative to the best one, times its own score, relative to the best passage of the document. The passages come
+/// from [SearchResult#passages()], or, if the search didn't return any, from splitting the body with [TextSplitter]
+/// and scoring the pieces by how many of the query terms they contain. A passage which overlaps one already packed by
+/// at least `CONTEXT_OVERLAP_THRESHOLD` of its word trigrams is dropped as a duplicate.
+///
+/// Tokens are estimated as four characters each, which is close for English text with the tokenizers of most models.
+public class ContextAssembler {
+    private static final Pattern WORD = Pattern.compile("[\\p{L}\\p{N}]+");
+    private static final int CHARS_PER_TOKEN = 4;
+    private static final int SHINGLE_WORDS = 3;
+    private static final String SEPARATOR = "\n\n";
+
+    private final int tokenBudget;
+    private final double overlapThreshold;
+    private final TextSplitter textSplitter;
+
+    /// @param overlapThreshold share of the word trigrams of the shorter passage found in the other one,
+    ///                         above which two passages are taken as duplicates
+    public ContextAssembler(int tokenBudget, double overlapThreshold, TextSplitter textSplitter) {
+        if (tokenBudget < 1) {
+            throw new IllegalArgumentException("Token budget must be at least 1, got: " + tokenBudget);
+        }
+        this.tokenBudget = tokenBudget;
+        this.overlapThreshold = overlapThreshold;
+        this.textSplitter = textSplitter;
+    }
+
+    public static ContextAssembler fromEnvironment() {
+        return new ContextAssembler(
+            Integer.parseInt(System.getenv().getOrDefault("CONTEXT_TOKEN_BUDGET", "2048")),
+            Double.parseDouble(System.getenv().getOrDefault("CONTEXT_OVERLAP_THRESHOLD", "0.5")),
+            new TextSplitter());
+    }
+
+    /// @return estimated number of tokens of the text
+    public static int estimateTokens(String text) {
+        return (text.length() + CHARS_PER_TOKEN - 1) / CHARS_PER_TOKEN;
+    }
+
+    /// Packs the passages in the order of relevance, each under the title of its document. A passage too long for
+    /// what's left of the budget is skipped, so that shorter ones may still fit. Only if even the best passage doesn't
+    /// fit on its own, it's cut short, so that the context is never empty when there's something to put into it.
+    public Context assemble(String query, List<SearchResult> results) {
+        List<Candidate> candidates = rank(query, results);
+        int budgetChars = tokenBudget * CHARS_PER_TOKEN;
+
+        StringBuilder text = new StringBuilder();
+        List<Set<String>> packed = new ArrayList<>();
+        int duplicates = 0;
+        for (Candidate candidate : candidates) {
+            if (budgetChars - text.length() <= SEPARATOR.length()) {
+                break;
+            }
+            Set<String> shingles = shingles(candidate.text());
+            if (packed.stream().anyMatch(other -> overlaps(shingles, other))) {
+                duplicates++;
+                continue;
+            }
+            String section = candidate.title() == null ? candidate.text() : "# " + candidate.title() + "\n" + candidate.text();
+            int separator = text.isEmpty() ? 0 : SEPARATOR.length();
+            if (text.length() + separator + section.length() > budgetChars) {
+                if (!text.isEmpty()) {
+                    continue;
+                }
+                section = truncate(section, budgetChars);
+            }
+            if (separator > 0) {
+                text.append(SEPARATOR);
+            }
+            text.append(section);
+            packed.add(shingles);
+        }
+        return new Context(text.toString(), packed.size(), candidates.size(), duplicates, estimateTokens(text.toString()), tokenBudget);
+    }
+
+    private List<Candidate> rank(String query, List<SearchResult> results) {
+        Set<String> queryTerms = words(query);
+        float bestScore = (float) results.stream()
+            .mapToDouble(SearchResult::score)
+            .filter(Double::isFinite)
+            .max()
+            .orElse(0);
+
+        List<Candidate> candidates = new ArrayList<>();
+        for (int rank = 0; rank < results.size(); rank++) {
+            SearchResult result = results.get(rank);
+            // without scores to compare, the order of results is all there is
+            double documentWeight = Float.isFinite(result.score()) && bestScore > 0 ? result.score() / bestScore : 1.0 / (rank + 1);
+
+            if (!result.passages().isEmpty()) {
+                double bestPassage = result.passages().stream()
+                    .mapToDouble(SearchResult.Passage::score)
+                    .filter(Double::isFinite)
+                    .max()
+                    .orElse(0);
+                for (SearchResult.Passage passage : result.passages()) {
+                    double passageWeight = Float.isFinite(passage.score()) && bestPassage > 0 ? passage.score() / bestPassage : 1;
+                    candidates.add(new Candidate(result.title(), passage.text(), documentWeight * passageWeight));
+                }
+                continue;
+            }
+
+            List<String> passages = textSplitter.splitIntoPassages(result.body());
+            double[] coverage = new double[passages.size()];
+            double bestCoverage = 0;
+            for (int i = 0; i < passages.size(); i++) {
+                coverage[i] = coverage(queryTerms, passages.get(i));
+                bestCoverage = Math.max(bestCoverage, coverage[i]);
+            }
+            for (int i = 0; i < passages.size(); i++) {
+                candidates.add(new Candidate(result.title(), passages.get(i), documentWeight * (1 + coverage[i]) / (1 + bestCoverage)));
+            }
+        }
+        // the sort is stable, so equally relevant passages stay in the order of the documents
+        candidates.sort(Comparator.comparingDouble(Candidate::relevance).reversed());
+        return candidates;
+    }
+
+    /// @return share of the query terms found in the passage
+    private static double coverage(Set<String> queryTerms, String passage) {
+        if (queryTerms.isEmpty()) {
+            return 0;
+        }
+        Set<String> passageWords = words(passage);
+        return queryTerms.stream().filter(passageWords::contains).count() / (double) queryTerms.size();
+    }
+
+    private boolean overlaps(Set<String> shingles, Set<String> other) {
+        int smaller = Math.min(shingles.size(), other.size());
+        if (smaller == 0) {
+            return shingles.isEmpty() && other.isEmpty();
+        }
+        Set<String> fewer = shingles.size() <= other.size() ? shingles : other;
+        Set<String> more = fewer == shingles ? other : shingles;
+        long shared = fewer.stream().filter(more::contains).count();
+        return shared >= overlapThreshold * smaller;
+    }
+
+    /// Word trigrams of the lower-cased text, or its words if it has fewer than three
+    private static Set<String> shingles(String text) {
+        List<String> words = words(text, new ArrayList<>());
+        Set<String> shingles = new HashSet<>();
+        if (words.size() < SHINGLE_WORDS) {
+            shingles.addAll(words);
+            return shingles;
+        }
+        for (int i = 0; i + SHINGLE_WORDS <= words.size(); i++) {
+            shingles.add(String.join(" ", words.subList(i, i + SHINGLE_WORDS)));
+        }
+        return shingles;
+    }
+
+    private static Set<String> words(String text) {
+        return words(text, new HashSet<>());
+    }
+
+    private static <C extends Collection<String>> C words(String text, C words) {
+        Matcher matcher = WORD.matcher(text);
+        while (matcher.find()) {
+            words.add(matcher.group().toLowerCase(Locale.ROOT));
+        }
+        return words;
+    }
+
+    /// Cuts the text at the last white space before the limit
+    private static String truncate(String text, int maxChars) {
+        int end = text.lastIndexOf(' ', maxChars);
+        return text.substring(0, end > 0 ? end : maxChars);
+    }
+
+    private record Candidate(String title, String text, double relevance) {
+    }
+
+    /// The context packed for a question.
+    ///
+    /// @param passages   number of passages packed into the text
+    /// @param candidates number of passages considered
+    /// @param duplicates number of passages dropped for overlapping ones packed before them
+    /// @param tokens     estimated number of tokens of the text
+    public record Context(String text, int passages, int candidates, int duplicates, int tokens, int tokenBudget) {
+
+        @Override
+        public String toString() {
+            return String.format("%d of %d passages, %d duplicates dropped, ~%d of %d tokens",
+                passages, candidates, duplicates, tokens, tokenBudget);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2025 Piotr Przybył
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.przybyl.rag.example.utils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/// Mapping of a `dense_vector` field, derived from the embedding model rather than hard-coded.
+///
+/// The number of dimensions comes from an actual embedding, so switching models just works. Vectors normalized
+/// by the [Encoder] are compared with `dot_product`, which is cheaper than `cosine` and gives the same ranking.
+/// `index_options` select the HNSW graph parameters and quantization: `int8_hnsw` keeps a quarter of the float
+/// vector size in memory, `bbq_hnsw` about 1/32, at the cost of some precision which rescoring can win back,
+/// see `SEARCH_RESCORE_OVERSAMPLE`.
+///
+/// @param indexType      e.g. `hnsw`, `int8_hnsw`, `int4_hnsw`, `bbq_hnsw` or `flat`, `null` for the Elasticsearch default
+/// @param m              number of neighbours of each node in the HNSW graph, `null` for the default
+/// @param efConstruction number of candidates considered when building the graph, `null` for the default
+public record DenseVectorMapping(int dims, String similarity, String indexType, Integer m, Integer efConstruction) {
+
+    public DenseVectorMapping {
+        if (dims < 1) {
+            throw new IllegalArgumentException("Vector dimensions must be at least 1, got: " + dims);
+        }
+    }
+
+    /// @param normalized whether vectors are of unit length, see [Encoder#normalizes()]
+    public static DenseVectorMapping fromEnvironment(int dims, boolean normalized) {
+        return new DenseVectorMapping(
+            dims,
+            normalized ? "dot_product" : "cosine",
+            System.getenv("VECTOR_INDEX_TYPE"),
+            integerOrNull(System.getenv("VECTOR_INDEX_M")),
+            integerOrNull(System.getenv("VECTOR_INDEX_EF_CONSTRUCTION")));
+    }
+
+    public String toJson(ObjectMapper objectMapper) {
+        ObjectNode mapping = objectMapper.createObjectNode()
+            .put("type", "dense_vector")
+            .put("dims", dims)
+            .put("similarity", similarity);
+        if (indexType != null) {
+            ObjectNode indexOptions = mapping.putObject("index_options").put("type", indexType);
+            // flat indices have no graph to tune
+            if (indexType.endsWith("hnsw")) {
+                if (m != null) {
+                    indexOptions.put("m", m);
+                }
+                if (efConstruction != null) {
+                    indexOptions.put("ef_construction", efConstruction);
+                }
+            }
+        }
+        return mapping.toString();
+    }
+
+    private static Integer integerOrNull(String value) {
+        return value == null || value.isBlank() ? null : Integer.valueOf(value.trim());
+    }
+}
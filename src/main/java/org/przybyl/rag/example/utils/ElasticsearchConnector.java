@@ -16,17 +16,30 @@
  */
 package org.przybyl.rag.example.utils;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.UncheckedIOException;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 
 /// This is how one can connect o Elasticsearch using vanilla Java and Jackson as the only dependency.
@@ -34,6 +47,8 @@ import java.util.Map;
 /// Please *be aware, this is not the recommended way of connecting to Elasticsearch*, it's much
 /// better to use the official and dedicated client library, which can be found on [Github](https://github.com/elastic/elasticsearch-java)
 public class ElasticsearchConnector {
+    private static final int PIPE_BUFFER_BYTES = 64 * 1024;
+
     private final String esUrl;
     private final HttpClient httpClient;
     private final ObjectMapper objectMapper;
@@ -45,7 +60,7 @@ public class ElasticsearchConnector {
     }
 
     public ElasticsearchConnector(ObjectMapper objectMapper, String esUrl) {
-        this(objectMapper, esUrl, HttpClient.newHttpClient());
+        this(objectMapper, esUrl, HttpClients.newHttpClient());
     }
 
     public ElasticsearchConnector(ObjectMapper objectMapper) {
@@ -57,7 +72,7 @@ public class ElasticsearchConnector {
         if (esUrl == null) {
             throw new IllegalStateException("Missing required environment variable ES_URL");
         }
-        this(objectMapper, esUrl, HttpClient.newHttpClient());
+        this(objectMapper, esUrl, HttpClients.newHttpClient());
 
     }
 
@@ -78,16 +93,112 @@ public class ElasticsearchConnector {
     }
 
     public void bulkIndex(String indexName, List<Map<String, Object>> documents) throws IOException, InterruptedException {
+        HttpRequest request = bulkRequest(ndjsonBody(bulkWriter(indexName, documents)));
+        checkBulkResponse(httpClient.send(request, HttpResponse.BodyHandlers.ofString()));
+    }
+
+    /// Like [#bulkIndex(String, List)], but no thread waits for Elasticsearch. The request body is serialized
+    /// up front, rather than piped by a thread of its own.
+    public CompletableFuture<Void> bulkIndexAsync(String indexName, List<Map<String, Object>> documents) {
+        HttpRequest request;
+        try {
+            request = bulkRequest(HttpRequest.BodyPublishers.ofByteArray(ndjsonBytes(bulkWriter(indexName, documents))));
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString())
+            .thenAccept(response -> {
+                try {
+                    checkBulkResponse(response);
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+            });
+    }
+
+    private HttpRequest bulkRequest(HttpRequest.BodyPublisher body) {
+        return HttpRequest.newBuilder()
+            .uri(URI.create(esUrl + "/_bulk"))
+            .header("Authorization", getAuthHeader())
+            .header("Content-Type", "application/x-ndjson")
+            .POST(body)
+            .build();
+    }
+
+    private static NdjsonWriter bulkWriter(String indexName, List<Map<String, Object>> documents) {
+        return generator -> {
+            for (Map<String, Object> doc : documents) {
+                // Create index action
+                generator.writeStartObject();
+                generator.writeObjectFieldStart("index");
+                generator.writeStringField("_index", indexName);
+                generator.writeStringField("_id", String.valueOf(doc.get("id")));
+                generator.writeEndObject();
+                generator.writeEndObject();
+                generator.writeRaw('\n');
+
+                generator.writeObject(doc);
+                generator.writeRaw('\n');
+            }
+        };
+    }
+
+    private void checkBulkResponse(HttpResponse<String> response) throws IOException {
+        if (response.statusCode() != 200) {
+            throw new IOException("Failed to index documents. Status code: " + response.statusCode() +
+                ", Response: " + response.body());
+        }
+        // A bulk request succeeds as a whole even if some of its items are rejected
+        JsonNode bulkResponse = objectMapper.readTree(response.body());
+        if (bulkResponse.path("errors").asBoolean()) {
+            for (JsonNode item : bulkResponse.path("items")) {
+                JsonNode result = item.elements().next();
+                if (result.has("error")) {
+                    throw new IOException("Failed to index document " + result.path("_id").asText() +
+                        ". Status code: " + result.path("status").asInt() + ", Error: " + result.path("error"));
+                }
+            }
+        }
+    }
+
+    /// Sends a bulk request made of the given NDJSON chunks as they are, and returns the response whatever its status,
+    /// so that the caller can handle rejected requests and items, see [BulkProcessor].
+    public HttpResponse<String> sendBulk(List<byte[]> ndjsonChunks) throws IOException, InterruptedException {
         String bulkUrl = esUrl + "/_bulk";
-        StringBuilder bulkRequestBody = new StringBuilder();
 
-        for (Map<String, Object> doc : documents) {
-            // Create index action
-            bulkRequestBody.append(String.format("""
-                {"index":{"_index":"%s","_id":"%s"}}
-                """, indexName, doc.get("id")));
+        HttpRequest request = HttpRequest.newBuilder()
+            .uri(URI.create(bulkUrl))
+            .header("Authorization", getAuthHeader())
+            .header("Content-Type", "application/x-ndjson")
+            .POST(HttpRequest.BodyPublishers.ofByteArrays(ndjsonChunks))
+            .build();
+
+        return httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+    }
+
+    public boolean indexExists(String indexName) throws IOException, InterruptedException {
+        String indexUrl = esUrl + "/" + indexName;
+        HttpRequest request = HttpRequest.newBuilder()
+            .uri(URI.create(indexUrl))
+            .header("Authorization", getAuthHeader())
+            .method("HEAD", HttpRequest.BodyPublishers.noBody())
+            .build();
+
+        HttpResponse<Void> response = httpClient.send(request, HttpResponse.BodyHandlers.discarding());
+        return switch (response.statusCode()) {
+            case 200 -> true;
+            case 404 -> false;
+            default -> throw new IOException("Failed to check index. Status code: " + response.statusCode());
+        };
+    }
+
+    public void bulkDelete(String indexName, Collection<String> ids) throws IOException, InterruptedException {
+        String bulkUrl = esUrl + "/_bulk";
+        StringBuilder bulkRequestBody = new StringBuilder();
 
-            bulkRequestBody.append(objectMapper.writeValueAsString(doc)).append("\n");
+        for (String id : ids) {
+            bulkRequestBody.append(objectMapper.writeValueAsString(
+                Map.of("delete", Map.of("_index", indexName, "_id", id)))).append("\n");
         }
 
         HttpRequest request = HttpRequest.newBuilder()
@@ -99,19 +210,67 @@ public class ElasticsearchConnector {
 
         HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
         if (response.statusCode() != 200) {
-            throw new IOException("Failed to index documents. Status code: " + response.statusCode() +
+            throw new IOException("Failed to delete documents. Status code: " + response.statusCode() +
                 ", Response: " + response.body());
         }
     }
 
-    public String search(String indexName, int from, int size) throws IOException, InterruptedException {
-        String queryJson = String.format("""
-            {
-                "query": {"match_all": {}},
-                "from": %d,
-                "size": %d
-            }""", from, size);
-        return searchWithCustomQuery(indexName, queryJson);
+    /// Opens a [point in time](https://www.elastic.co/guide/en/elasticsearch/reference/current/point-in-time-api.html)
+    /// on the given index, so that it can be read page by page with `search_after` from a consistent view.
+    ///
+    /// @return the id of the point in time
+    public String openPointInTime(String indexName, String keepAlive) throws IOException, InterruptedException {
+        String pitUrl = esUrl + "/" + indexName + "/_pit?keep_alive=" + keepAlive;
+        HttpRequest request = HttpRequest.newBuilder()
+            .uri(URI.create(pitUrl))
+            .header("Authorization", getAuthHeader())
+            .POST(HttpRequest.BodyPublishers.noBody())
+            .build();
+
+        HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() != 200) {
+            throw new IOException("Failed to open point in time. Status code: " + response.statusCode() +
+                ", Response: " + response.body());
+        }
+
+        return objectMapper.readTree(response.body()).path("id").asText();
+    }
+
+    public void closePointInTime(String pitId) throws IOException, InterruptedException {
+        String pitUrl = esUrl + "/_pit";
+        HttpRequest request = HttpRequest.newBuilder()
+            .uri(URI.create(pitUrl))
+            .header("Authorization", getAuthHeader())
+            .header("Content-Type", "application/json")
+            .method("DELETE", HttpRequest.BodyPublishers.ofString(objectMapper.writeValueAsString(Map.of("id", pitId))))
+            .build();
+
+        HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() != 200 && response.statusCode() != 404) {
+            throw new IOException("Failed to close point in time. Status code: " + response.statusCode() +
+                ", Response: " + response.body());
+        }
+    }
+
+    /// Searches within a point in time, the query has to contain the `pit` section, so no index is given.
+    /// The response is returned as raw bytes, so that parts of it can be passed on unchanged.
+    public byte[] searchWithPointInTime(byte[] queryJson) throws IOException, InterruptedException {
+        String searchUrl = esUrl + "/_search";
+
+        HttpRequest request = HttpRequest.newBuilder()
+            .uri(URI.create(searchUrl))
+            .header("Authorization", getAuthHeader())
+            .header("Content-Type", "application/json")
+            .POST(HttpRequest.BodyPublishers.ofByteArray(queryJson))
+            .build();
+
+        HttpResponse<byte[]> response = httpClient.send(request, HttpResponse.BodyHandlers.ofByteArray());
+        if (response.statusCode() != 200) {
+            throw new IOException("Failed to search documents. Status code: " + response.statusCode() +
+                ", Response: " + new String(response.body(), StandardCharsets.UTF_8));
+        }
+
+        return response.body();
     }
 
     public String searchWithCustomQuery(String indexName, String queryJson) throws IOException, InterruptedException {
@@ -133,6 +292,178 @@ public class ElasticsearchConnector {
         return response.body();
     }
 
+    /// Reads a response body as it arrives, e.g. with a streaming parser, see [#searchWithCustomQuery(String, String, ResponseReader)]
+    @FunctionalInterface
+    public interface ResponseReader<T> {
+        T read(InputStream body) throws IOException;
+    }
+
+    /// Like [#searchWithCustomQuery(String, String)], but the response is given to the reader as a stream,
+    /// without being buffered as a whole.
+    public <T> T searchWithCustomQuery(String indexName, String queryJson, ResponseReader<T> reader) throws IOException, InterruptedException {
+        return read(httpClient.send(searchRequest(indexName, queryJson), HttpResponse.BodyHandlers.ofInputStream()), reader);
+    }
+
+    /// Like [#searchWithCustomQuery(String, String, ResponseReader)], but no thread waits for Elasticsearch.
+    /// The response is buffered and given to the reader once it has arrived as a whole, since reading a stream
+    /// would block on the bytes still to come.
+    ///
+    /// Completing the returned future before the response arrives, e.g. by `orTimeout` or `cancel`, cancels the
+    /// exchange too, so it does not go on holding a connection nobody waits for.
+    public <T> CompletableFuture<T> searchAsync(String indexName, String queryJson, ResponseReader<T> reader) {
+        var exchange = httpClient.sendAsync(searchRequest(indexName, queryJson), HttpResponse.BodyHandlers.ofByteArray());
+        var result = exchange.thenApply(response -> {
+            try {
+                return read(response.statusCode(), new ByteArrayInputStream(response.body()), reader);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        });
+        result.whenComplete((ignored, failure) -> {
+            if (failure != null) {
+                exchange.cancel(true);
+            }
+        });
+        return result;
+    }
+
+    private HttpRequest searchRequest(String indexName, String queryJson) {
+        return HttpRequest.newBuilder()
+            .uri(URI.create(esUrl + "/" + indexName + "/_search"))
+            .header("Authorization", getAuthHeader())
+            .header("Content-Type", "application/json")
+            .POST(HttpRequest.BodyPublishers.ofString(queryJson))
+            .build();
+    }
+
+    /// Runs all the searches in one `_msearch` request. The response has one entry in `responses` per search,
+    /// in the same order. A search which failed has an `error` there, rather than failing the request.
+    public <T> T multiSearch(String indexName, List<String> queriesJson, ResponseReader<T> reader) throws IOException, InterruptedException {
+        String searchUrl = esUrl + "/" + indexName + "/_msearch";
+
+        // parsed up front, so that each search can be written on a single line, and an invalid one fails here
+        List<JsonNode> queries = new ArrayList<>(queriesJson.size());
+        for (String queryJson : queriesJson) {
+            queries.add(objectMapper.readTree(queryJson));
+        }
+
+        HttpRequest request = HttpRequest.newBuilder()
+            .uri(URI.create(searchUrl))
+            .header("Authorization", getAuthHeader())
+            .header("Content-Type", "application/x-ndjson")
+            .POST(ndjsonBody(generator -> {
+                for (JsonNode query : queries) {
+                    // empty header, the index is in the URL
+                    generator.writeStartObject();
+                    generator.writeEndObject();
+                    generator.writeRaw('\n');
+
+                    generator.writeTree(query);
+                    generator.writeRaw('\n');
+                }
+            }))
+            .build();
+
+        return read(httpClient.send(request, HttpResponse.BodyHandlers.ofInputStream()), reader);
+    }
+
+    private static <T> T read(HttpResponse<InputStream> response, ResponseReader<T> reader) throws IOException {
+        return read(response.statusCode(), response.body(), reader);
+    }
+
+    private static <T> T read(int statusCode, InputStream response, ResponseReader<T> reader) throws IOException {
+        try (InputStream body = response) {
+            if (statusCode != 200) {
+                throw new IOException("Failed to search documents. Status code: " + statusCode +
+                    ", Response: " + new String(body.readAllBytes(), StandardCharsets.UTF_8));
+            }
+            return reader.read(body);
+        }
+    }
+
+    @FunctionalInterface
+    private interface NdjsonWriter {
+        void write(JsonGenerator generator) throws IOException;
+    }
+
+    /// Body generated on the fly: a virtual thread writes JSON into a pipe, which the HTTP client reads from,
+    /// so the body never exists as a whole, neither as a `String` nor as bytes.
+    /// If writing fails, reading the end of the pipe fails too, so that the request fails rather than sends a truncated body.
+    private HttpRequest.BodyPublisher ndjsonBody(NdjsonWriter writer) {
+        return HttpRequest.BodyPublishers.ofInputStream(() -> {
+            WrittenBody in = new WrittenBody();
+            try {
+                PipedOutputStream out = new PipedOutputStream(in);
+                Thread.ofVirtual().start(() -> {
+                    try (JsonGenerator generator = objectMapper.getFactory().createGenerator(out)) {
+                        // the pipe is closed below, once the failure, if any, is known
+                        generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+                        // values are separated by the new lines written explicitly
+                        generator.setRootValueSeparator(null);
+                        writer.write(generator);
+                    } catch (Throwable e) {
+                        in.fail(e);
+                        // e.g. StackOverflowError on a deeply nested page, after which the body is failed too
+                        if (e instanceof Error error) {
+                            throw error;
+                        }
+                    } finally {
+                        try {
+                            out.close();
+                        } catch (IOException e) {
+                            in.fail(e);
+                        }
+                    }
+                });
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return in;
+        });
+    }
+
+    /// The reading end of the pipe, which fails at the end of the body if writing it failed.
+    private static final class WrittenBody extends PipedInputStream {
+        private volatile IOException failure;
+
+        WrittenBody() {
+            super(PIPE_BUFFER_BYTES);
+        }
+
+        void fail(Throwable e) {
+            if (failure == null) {
+                failure = new IOException("Failed to write request body: " + e.getMessage(), e);
+            }
+        }
+
+        @Override
+        public synchronized int read() throws IOException {
+            return checked(super.read());
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            return checked(super.read(b, off, len));
+        }
+
+        private int checked(int read) throws IOException {
+            if (read < 0 && failure != null) {
+                throw failure;
+            }
+            return read;
+        }
+    }
+
+    /// Body serialized into bytes as a whole, for requests sent without a thread writing them, see [#ndjsonBody(NdjsonWriter)].
+    private byte[] ndjsonBytes(NdjsonWriter writer) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (JsonGenerator generator = objectMapper.getFactory().createGenerator(out)) {
+            generator.setRootValueSeparator(null);
+            writer.write(generator);
+        }
+        return out.toByteArray();
+    }
+
     private String getAuthHeader() {
         return "ApiKey " + System.getenv("ES_APIKEY");
     }
@@ -154,6 +485,29 @@ public class ElasticsearchConnector {
         return response.body();
     }
 
+    /// The UUID changes whenever the index is deleted and created again, so it tells index generations apart.
+    /// For an alias, the names and UUIDs of all its indices are returned.
+    public String getIndexUuid(String indexName) throws IOException, InterruptedException {
+        String settingsUrl = esUrl + "/" + indexName + "/_settings/index.uuid";
+        HttpRequest request = HttpRequest.newBuilder()
+            .uri(URI.create(settingsUrl))
+            .header("Authorization", getAuthHeader())
+            .GET()
+            .build();
+
+        HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() != 200) {
+            throw new IOException("Failed to get index settings. Status code: " + response.statusCode() +
+                ", Response: " + response.body());
+        }
+
+        List<String> uuids = new ArrayList<>();
+        objectMapper.readTree(response.body()).fields().forEachRemaining(index ->
+            uuids.add(index.getKey() + "/" + index.getValue().path("settings").path("index").path("uuid").asText()));
+        Collections.sort(uuids);
+        return String.join(",", uuids);
+    }
+
     public String mergeMapping(String sourceMapping, Map<String, String> additionalFields) throws IOException {
         // Parse source mapping to get properties
         JsonNode sourceMappingNode = objectMapper.readTree(sourceMapping);
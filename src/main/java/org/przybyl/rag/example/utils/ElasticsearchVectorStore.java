@@ -0,0 +1,345 @@
+/*
+ * Copyright 2025 Piotr Przybył
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.przybyl.rag.example.utils;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/// [WritableVectorStore] backed by an Elasticsearch index, with the passage vectors in the nested `bodyChunks` field,
+/// the layout [org.przybyl.rag.example.demos.DocumentEnricher] writes through it.
+public class ElasticsearchVectorStore implements WritableVectorStore {
+
+    /// Fields added to every document, see [#vectorFieldsMapping(DenseVectorMapping)]
+    private static final List<String> VECTOR_FIELDS = List.of("contentHash", "titleEmbedding", "bodyChunks");
+
+    private final ElasticsearchConnector esConnector;
+    private final ObjectMapper objectMapper;
+
+    public ElasticsearchVectorStore(ElasticsearchConnector esConnector, ObjectMapper objectMapper) {
+        this.esConnector = esConnector;
+        this.objectMapper = objectMapper;
+    }
+
+    /// Creates the index with `title`, `url` and `body` fields, along with the vector fields.
+    @Override
+    public void createIndex(String indexName, DenseVectorMapping mapping) throws IOException, InterruptedException {
+        String documentMapping = """
+            {"%s": {"mappings": {"properties": {"title": {"type": "text"}, "url": {"type": "keyword"}, "body": {"type": "text"}}}}}"""
+            .formatted(indexName);
+        esConnector.createIndex(indexName, esConnector.mergeMapping(documentMapping, vectorFieldsMapping(mapping)));
+    }
+
+    /// Creates the index with the fields of the source index, along with the vector fields, for documents
+    /// which keep their original `_source`, see [#source(VectorDocument, byte[], JsonNode)].
+    public void createIndex(String indexName, DenseVectorMapping mapping, String sourceIndexName) throws IOException, InterruptedException {
+        esConnector.createIndex(indexName, esConnector.mergeMapping(esConnector.getIndexMapping(sourceIndexName), vectorFieldsMapping(mapping)));
+    }
+
+    /// Passages are stored, but not indexed, next to their vectors, so that search can return the best ones as inner hits.
+    private Map<String, String> vectorFieldsMapping(DenseVectorMapping mapping) {
+        String vectorField = mapping.toJson(objectMapper);
+        return Map.of(
+            "contentHash",
+            """
+                {
+                    "type": "keyword"
+                }""",
+            "titleEmbedding",
+            vectorField,
+            "bodyChunks",
+            """
+                {
+                    "type": "nested",
+                    "properties": {
+                        "passage": {
+                            "type": "text",
+                            "index": false
+                        },
+                        "predictedValue": %s
+                    }
+                }
+                """.formatted(vectorField));
+    }
+
+    /// Writes the documents with a [BulkProcessor] set up from the environment, and waits for all of them.
+    @Override
+    public void upsert(String indexName, List<VectorDocument> documents) throws IOException, InterruptedException {
+        if (documents.isEmpty()) {
+            return;
+        }
+        BulkProcessor bulkProcessor = writer(indexName, BulkProcessor.Settings.fromEnvironment());
+        try (bulkProcessor) {
+            for (VectorDocument document : documents) {
+                bulkProcessor.add(document.id(), source(document));
+            }
+        }
+        long failed = bulkProcessor.stats().failed();
+        if (failed > 0) {
+            throw new IOException(failed + " of " + documents.size() + " documents failed to be indexed into " + indexName);
+        }
+    }
+
+    /// For writing many documents, serialized with [#source(VectorDocument)] or [#source(VectorDocument, byte[], JsonNode)],
+    /// e.g. by many threads, while the returned processor sends them in the background. Failed documents are
+    /// counted in [BulkProcessor#stats()], rather than thrown like by [#upsert(String, List)].
+    public BulkProcessor writer(String indexName, BulkProcessor.Settings settings) {
+        return new BulkProcessor(esConnector, objectMapper, indexName, settings);
+    }
+
+    /// @return `_source` of the document: the vector fields, then `id`, `title`, `url` and `body`
+    public byte[] source(VectorDocument document) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(estimatedSize(document) + 256);
+        try (JsonGenerator generator = objectMapper.getFactory().createGenerator(out)) {
+            generator.writeStartObject();
+            writeVectorFields(generator, document);
+            generator.writeStringField("id", document.id());
+            generator.writeStringField("title", document.title());
+            generator.writeStringField("url", document.url());
+            generator.writeStringField("body", document.body());
+            generator.writeEndObject();
+        }
+        return out.toByteArray();
+    }
+
+    /// The original `_source`, byte for byte, with the vector fields added. These are generated as the beginning
+    /// of an object, which is then closed by the original fields, so neither the original document nor the vectors
+    /// ever go through a `String` or a `Map`.
+    ///
+    /// A source which has any of the vector fields already, e.g. one enriched before, is rewritten from
+    /// `parsedSource` without them instead, as splicing would repeat them, and Elasticsearch rejects duplicate keys.
+    ///
+    /// @param originalSource `_source` of the document, e.g. as read from another index, with its other fields
+    /// @param parsedSource   the same `_source`, parsed
+    public byte[] source(VectorDocument document, byte[] originalSource, JsonNode parsedSource) throws IOException {
+        boolean enrichedBefore = VECTOR_FIELDS.stream().anyMatch(parsedSource::has);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(originalSource.length + estimatedSize(document) + 256);
+        try (JsonGenerator generator = objectMapper.getFactory().createGenerator(out)) {
+            // the object is closed by the original source, not by the generator
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_JSON_CONTENT);
+            generator.writeStartObject();
+            writeVectorFields(generator, document);
+            if (enrichedBefore) {
+                // the previous vector fields are replaced, the other fields are kept as they are
+                var fields = parsedSource.fields();
+                while (fields.hasNext()) {
+                    var field = fields.next();
+                    if (!VECTOR_FIELDS.contains(field.getKey())) {
+                        generator.writeFieldName(field.getKey());
+                        generator.writeTree(field.getValue());
+                    }
+                }
+                generator.writeEndObject();
+            }
+            generator.flush();
+        }
+        if (!enrichedBefore) {
+            if (hasFields(originalSource)) {
+                out.write(',');
+            }
+            // everything after the opening brace of the original source
+            out.write(originalSource, 1, originalSource.length - 1);
+        }
+        return out.toByteArray();
+    }
+
+    /// Hash of the fields embeddings are computed from, so any change there requires new embeddings.
+    /// Documents are written with it in the `contentHash` field.
+    public static String contentHash(String title, String body) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update((title == null ? "" : title).getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update((body == null ? "" : body).getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /// Passages come with their vectors in `bodyChunks`, in the order of [VectorDocument#passages()]
+    private static void writeVectorFields(JsonGenerator generator, VectorDocument document) throws IOException {
+        generator.writeStringField("contentHash", contentHash(document.title(), document.body()));
+        if (document.titleVector() != null) {
+            generator.writeFieldName("titleEmbedding");
+            FloatVectors.write(generator, document.titleVector());
+        }
+        generator.writeArrayFieldStart("bodyChunks");
+        for (int i = 0; i < document.vectors().size(); i++) {
+            generator.writeStartObject();
+            if (!document.passages().isEmpty()) {
+                generator.writeStringField("passage", document.passages().get(i));
+            }
+            generator.writeFieldName("predictedValue");
+            FloatVectors.write(generator, document.vectors().get(i));
+            generator.writeEndObject();
+        }
+        generator.writeEndArray();
+    }
+
+    /// Each vector takes roughly 11 bytes per dimension, and each passage about its length
+    private static int estimatedSize(VectorDocument document) {
+        int dimensions = document.vectors().isEmpty() ? 0 : document.vectors().getFirst().length;
+        int passages = document.passages().stream().mapToInt(String::length).sum();
+        return (document.vectors().size() + 1) * dimensions * 11 + passages;
+    }
+
+    private static boolean hasFields(byte[] json) {
+        for (int i = 1; i < json.length; i++) {
+            if (!Character.isWhitespace(json[i])) {
+                return json[i] != '}';
+            }
+        }
+        return false;
+    }
+
+    /// With `SEARCH_EXACT_RESCORE` set to `true`, see [#searchAndRescore(String, float[], int)].
+    @Override
+    public List<SearchResult> search(String indexName, float[] queryVector, int k) throws IOException, InterruptedException {
+        if (Boolean.parseBoolean(System.getenv().getOrDefault("SEARCH_EXACT_RESCORE", "false"))) {
+            return searchAndRescore(indexName, queryVector, k);
+        }
+        // Parse response as it arrives and return top k results
+        return esConnector.searchWithCustomQuery(indexName, knnQuery(queryVector, k, false), SearchResponses.searchReader(objectMapper));
+    }
+
+    /// Gets all `SEARCH_NUM_CANDIDATES` hits of the approximate search along with their passage vectors, and ranks
+    /// them by exact cosine similarity computed here, with [BruteForceSearch]. It costs sending the vectors over,
+    /// but fixes the ranking whatever the index type and quantization, with no work for the cluster.
+    public List<SearchResult> searchAndRescore(String indexName, float[] queryVector, int k) throws IOException, InterruptedException {
+        List<SearchResponses.Candidate> candidates = esConnector.searchWithCustomQuery(indexName,
+            knnQuery(queryVector, numCandidates(k), true), SearchResponses.candidatesReader(objectMapper));
+        return rescore(queryVector, candidates, k);
+    }
+
+    /// Sends the same query as [#search(String, float[], int)], without waiting for the response.
+    /// Completing the returned future early cancels the request, as in [ElasticsearchConnector#searchAsync].
+    @Override
+    public CompletableFuture<List<SearchResult>> searchAsync(String indexName, float[] queryVector, int k) {
+        if (Boolean.parseBoolean(System.getenv().getOrDefault("SEARCH_EXACT_RESCORE", "false"))) {
+            var candidates = esConnector.searchAsync(indexName, knnQuery(queryVector, numCandidates(k), true), SearchResponses.candidatesReader(objectMapper));
+            var results = candidates.thenApply(found -> rescore(queryVector, found, k));
+            results.whenComplete((ignored, failure) -> {
+                if (failure != null) {
+                    candidates.cancel(true);
+                }
+            });
+            return results;
+        }
+        return esConnector.searchAsync(indexName, knnQuery(queryVector, k, false), SearchResponses.searchReader(objectMapper));
+    }
+
+    private static int numCandidates(int k) {
+        return Math.max(k, Integer.parseInt(System.getenv().getOrDefault("SEARCH_NUM_CANDIDATES", "100")));
+    }
+
+    private static List<SearchResult> rescore(float[] queryVector, List<SearchResponses.Candidate> candidates, int k) {
+        List<float[]> vectors = new ArrayList<>();
+        List<SearchResult> owners = new ArrayList<>();
+        for (SearchResponses.Candidate candidate : candidates) {
+            for (float[] vector : candidate.vectors()) {
+                vectors.add(vector);
+                owners.add(candidate.result());
+            }
+        }
+        // a document scores as its closest passage, which comes first
+        Map<String, SearchResult> rescored = new LinkedHashMap<>();
+        for (BruteForceSearch.Match match : BruteForceSearch.topK(queryVector, vectors, vectors.size(), VectorMath.Similarity.COSINE)) {
+            SearchResult owner = owners.get(match.index());
+            rescored.putIfAbsent(owner.id(), new SearchResult(owner.id(), owner.title(), owner.url(), owner.body(), match.score(), owner.passages()));
+        }
+        // hits without vectors in _source keep their score, which Elasticsearch computes the same way
+        candidates.forEach(candidate -> rescored.putIfAbsent(candidate.result().id(), candidate.result()));
+        return rescored.values().stream()
+            .sorted(Comparator.comparingDouble(SearchResult::score).reversed())
+            .limit(k)
+            .toList();
+    }
+
+    /// Searches for all the query vectors with one `_msearch` request.
+    ///
+    /// @return results of each query, in the order of queries, a query whose search failed has an error instead
+    List<SearchResponses.Response> searchAll(String indexName, List<float[]> queryVectors, int k) throws IOException, InterruptedException {
+        List<String> searches = new ArrayList<>(queryVectors.size());
+        for (float[] queryVector : queryVectors) {
+            searches.add(knnQuery(queryVector, k, false));
+        }
+        return esConnector.multiSearch(indexName, searches, SearchResponses.multiSearchReader(objectMapper));
+    }
+
+    /// The best `SEARCH_PASSAGES_PER_DOCUMENT` passages of each document come back as its inner hits, see [SearchResult#passages()].
+    ///
+    /// @param withVectors whether to return the passage vectors in `_source`, for rescoring
+    private String knnQuery(float[] queryVector, int k, boolean withVectors) {
+        // Convert queryVector to JSON array as string, floats are written with just the digits they hold
+        String vector;
+        try {
+            vector = objectMapper.writeValueAsString(queryVector);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Failed to serialize query vector", e);
+        }
+
+        return String.format("""
+                {
+                  "_source": %s,
+                  "fields": ["title", "url", "body"],
+                  "size": %s,
+                  "knn": {
+                    "field": "bodyChunks.predictedValue",
+                    "k": %s,
+                    "num_candidates": %s,
+                    "inner_hits": {"size": %s, "_source": false, "fields": ["bodyChunks.passage"]},
+                    "query_vector": %s%s
+                  }
+                }
+                """,
+            withVectors ? "[\"bodyChunks.predictedValue\"]" : "false",
+            // without it, only the default 10 hits come back, whatever k is
+            k,
+            k,
+            numCandidates(k),
+            Integer.parseInt(System.getenv().getOrDefault("SEARCH_PASSAGES_PER_DOCUMENT", "3")),
+            vector,
+            withVectors ? "" : rescoreVector()
+        );
+    }
+
+    /// With quantized vectors, the top `k * oversample` candidates are rescored using the original float vectors,
+    /// which wins back the precision lost to quantization.
+    private static String rescoreVector() {
+        String oversample = System.getenv("SEARCH_RESCORE_OVERSAMPLE");
+        if (oversample == null || oversample.isBlank()) {
+            return "";
+        }
+        return ",\n    \"rescore_vector\": {\"oversample\": " + Float.parseFloat(oversample) + "}";
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright 2025 Piotr Przybył
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.przybyl.rag.example.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/// Disk-backed cache of embeddings, addressed by the model name and the hash of the embedded text.
+///
+/// Vectors are kept as fixed-width float32 slots in a memory-mapped file, so a hit is read straight
+/// from the mapping, with no deserialization. The index from keys to slots lives on heap and is rebuilt
+/// by scanning the slots when the file is opened. Once all slots are taken, the least recently used
+/// entry is evicted.
+///
+/// File layout: a header of `magic`, `version`, `dims` and `capacity` (all ints), followed by `capacity`
+/// slots of two longs (the key) and `dims` floats. A slot with a zero key is free.
+/// The number of dimensions is taken from the first stored embedding, embeddings of other sizes are not cached.
+public class EmbeddingCache implements AutoCloseable {
+
+    private static final int MAGIC = 0x52414745;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 4 * Integer.BYTES;
+    private static final int KEY_BYTES = 2 * Long.BYTES;
+
+    private final Path path;
+    private final LinkedHashMap<Key, Integer> index = new LinkedHashMap<>(1024, 0.75f, true);
+    private final Deque<Integer> freeSlots = new ArrayDeque<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    private int capacity;
+    private int dims = -1;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+
+    private EmbeddingCache(Path path, int capacity) {
+        this.path = path;
+        this.capacity = capacity;
+    }
+
+    /// Opens the cache stored in the given file, or prepares a new one if the file doesn't exist yet.
+    /// The capacity of an existing file is kept, the given one is used only for new files.
+    public static EmbeddingCache open(Path path, int capacity) throws IOException {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be at least 1, got: " + capacity);
+        }
+        EmbeddingCache cache = new EmbeddingCache(path, capacity);
+        if (Files.exists(path) && Files.size(path) >= HEADER_BYTES) {
+            cache.load();
+        }
+        return cache;
+    }
+
+    /// @return the cached embedding, or `null` if there is none for the text embedded with the model
+    public synchronized float[] get(String model, String text) {
+        Integer slot = index.get(Key.of(model, text));
+        if (slot == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+
+        float[] embedding = new float[dims];
+        int offset = slotOffset(slot) + KEY_BYTES;
+        for (int i = 0; i < dims; i++) {
+            embedding[i] = buffer.getFloat(offset + i * Float.BYTES);
+        }
+        return embedding;
+    }
+
+    public synchronized void put(String model, String text, float[] embedding) {
+        try {
+            if (buffer == null) {
+                create(embedding.length);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to create embedding cache " + path, e);
+        }
+        if (embedding.length != dims) {
+            return;
+        }
+
+        Key key = Key.of(model, text);
+        Integer slot = index.get(key);
+        if (slot == null) {
+            slot = freeSlots.poll();
+        }
+        if (slot == null) {
+            Iterator<Map.Entry<Key, Integer>> eldest = index.entrySet().iterator();
+            slot = eldest.next().getValue();
+            eldest.remove();
+            evictions.increment();
+        }
+
+        int offset = slotOffset(slot);
+        for (int i = 0; i < dims; i++) {
+            buffer.putFloat(offset + KEY_BYTES + i * Float.BYTES, embedding[i]);
+        }
+        buffer.putLong(offset, key.high());
+        buffer.putLong(offset + Long.BYTES, key.low());
+        index.put(key, slot);
+    }
+
+    public synchronized Stats stats() {
+        return new Stats(hits.sum(), misses.sum(), evictions.sum(), index.size(), capacity);
+    }
+
+    private void create(int dims) throws IOException {
+        long size = HEADER_BYTES + (long) capacity * slotBytes(dims);
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Embedding cache of " + capacity + " vectors of " + dims + " dimensions exceeds 2GB");
+        }
+        this.dims = dims;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(Integer.BYTES, VERSION);
+        buffer.putInt(2 * Integer.BYTES, dims);
+        buffer.putInt(3 * Integer.BYTES, capacity);
+        for (int slot = 0; slot < capacity; slot++) {
+            freeSlots.add(slot);
+        }
+    }
+
+    private void load() throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        channel.read(header, 0);
+        if (header.getInt(0) != MAGIC || header.getInt(Integer.BYTES) != VERSION) {
+            channel.close();
+            throw new IOException("Not an embedding cache file: " + path);
+        }
+        this.dims = header.getInt(2 * Integer.BYTES);
+        this.capacity = header.getInt(3 * Integer.BYTES);
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES + (long) capacity * slotBytes(dims));
+
+        for (int slot = 0; slot < capacity; slot++) {
+            int offset = slotOffset(slot);
+            long high = buffer.getLong(offset);
+            long low = buffer.getLong(offset + Long.BYTES);
+            if (high == 0 && low == 0) {
+                freeSlots.add(slot);
+            } else {
+                index.put(new Key(high, low), slot);
+            }
+        }
+    }
+
+    private int slotOffset(int slot) {
+        return HEADER_BYTES + slot * slotBytes(dims);
+    }
+
+    private static int slotBytes(int dims) {
+        return KEY_BYTES + dims * Float.BYTES;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel == null) {
+            return;
+        }
+        buffer.force();
+        channel.close();
+        channel = null;
+        buffer = null;
+    }
+
+    /// 128 bits of SHA-256 of the model name and the text, zero is reserved for free slots.
+    private record Key(long high, long low) {
+
+        static Key of(String model, String text) {
+            try {
+                MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                digest.update(model.getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+                ByteBuffer hash = ByteBuffer.wrap(digest.digest(text.getBytes(StandardCharsets.UTF_8)));
+                long high = hash.getLong();
+                long low = hash.getLong();
+                return high == 0 && low == 0 ? new Key(0, 1) : new Key(high, low);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 is not available", e);
+            }
+        }
+    }
+
+    public record Stats(long hits, long misses, long evictions, int size, int capacity) {
+
+        public double hitRate() {
+            long lookups = hits + misses;
+            return lookups == 0 ? 0 : (double) hits / lookups;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d hits, %d misses (%.1f%% hit rate), %d evictions, %d/%d entries",
+                hits, misses, hitRate() * 100, evictions, size, capacity);
+        }
+    }
+}
@@ -17,6 +17,7 @@
 package org.przybyl.rag.example.utils;
 
 import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Service for creating vector embeddings from text using external embedding models.
@@ -31,4 +32,46 @@ public interface EmbeddingService {
      * @throws InterruptedException if the request is interrupted
      */
     String requestEmbedding(String requestBody) throws IOException, InterruptedException;
+
+    /**
+     * Sends a request embedding many texts at once and returns the response.
+     *
+     * @param requestBody JSON request body containing the model configuration and the array of texts to embed
+     * @return JSON response containing one embedding vector per text, in the same order
+     * @throws IOException if there's an error in communication
+     * @throws InterruptedException if the request is interrupted
+     * @throws UnsupportedOperationException if the service can't embed texts in batches, see {@link #supportsBatch()}
+     */
+    default String requestEmbeddings(String requestBody) throws IOException, InterruptedException {
+        throw new UnsupportedOperationException("Batch embedding is not supported by " + getClass().getSimpleName());
+    }
+
+    /**
+     * Like {@link #requestEmbedding(String)}, but without blocking the calling thread.
+     * By default the blocking call runs in {@link HttpClients#executor()}.
+     *
+     * @param requestBody JSON request body containing the text to embed and model configuration
+     * @return future JSON response containing the embedding vectors
+     */
+    default CompletableFuture<String> requestEmbeddingAsync(String requestBody) {
+        return HttpClients.supplyAsync(() -> requestEmbedding(requestBody));
+    }
+
+    /**
+     * Like {@link #requestEmbeddings(String)}, but without blocking the calling thread.
+     * By default the blocking call runs in {@link HttpClients#executor()}.
+     *
+     * @param requestBody JSON request body containing the model configuration and the array of texts to embed
+     * @return future JSON response containing one embedding vector per text, in the same order
+     */
+    default CompletableFuture<String> requestEmbeddingsAsync(String requestBody) {
+        return HttpClients.supplyAsync(() -> requestEmbeddings(requestBody));
+    }
+
+    /**
+     * @return whether {@link #requestEmbeddings(String)} can be used
+     */
+    default boolean supportsBatch() {
+        return false;
+    }
 }
\ No newline at end of file
@@ -18,42 +18,240 @@ package org.przybyl.rag.example.utils;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.stream.IntStream;
 
 public class Encoder {
 
     private final String model;
     private final EmbeddingService embeddingService;
     private final ObjectMapper objectMapper;
+    private final int batchSize;
+    private final EmbeddingCache cache;
+    private final boolean normalize;
+    private final SingleFlight<String, float[]> flights = new SingleFlight<>();
 
     public Encoder(EmbeddingService embeddingService, ObjectMapper objectMapper) {
+        this(embeddingService, objectMapper, (EmbeddingCache) null);
+    }
+
+    public Encoder(EmbeddingService embeddingService, ObjectMapper objectMapper, EmbeddingCache cache) {
         this(embeddingService,
             objectMapper,
-            System.getenv().getOrDefault("OLLAMA_EMBEDDING_MODEL", "all-minilm"));
+            System.getenv().getOrDefault("OLLAMA_EMBEDDING_MODEL", "all-minilm"),
+            Integer.parseInt(System.getenv().getOrDefault("EMBEDDING_BATCH_SIZE", "32")),
+            cache,
+            Boolean.parseBoolean(System.getenv().getOrDefault("EMBEDDING_NORMALIZE", "false")));
     }
 
     public Encoder(EmbeddingService embeddingService, ObjectMapper objectMapper, String model) {
+        this(embeddingService,
+            objectMapper,
+            model,
+            Integer.parseInt(System.getenv().getOrDefault("EMBEDDING_BATCH_SIZE", "32")));
+    }
+
+    public Encoder(EmbeddingService embeddingService, ObjectMapper objectMapper, String model, int batchSize) {
+        this(embeddingService, objectMapper, model, batchSize, null);
+    }
+
+    public Encoder(EmbeddingService embeddingService, ObjectMapper objectMapper, String model, int batchSize, EmbeddingCache cache) {
+        this(embeddingService, objectMapper, model, batchSize, cache, false);
+    }
+
+    /// @param cache     consulted before the embedding service is called, may be `null`
+    /// @param normalize whether embeddings are scaled to unit length, so they can be compared with `dot_product`
+    public Encoder(EmbeddingService embeddingService, ObjectMapper objectMapper, String model, int batchSize, EmbeddingCache cache, boolean normalize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1, got: " + batchSize);
+        }
         this.embeddingService = embeddingService;
         this.objectMapper = objectMapper;
         this.model = model;
+        this.batchSize = batchSize;
+        this.cache = cache;
+        this.normalize = normalize;
+    }
+
+    public String model() {
+        return model;
+    }
+
+    /// @return whether embeddings are of unit length, see [DenseVectorMapping]
+    public boolean normalizes() {
+        return normalize;
+    }
+
+    /// @return how many calls of [#encode(String)] and [#encodeAsync(String)] shared the request of another one
+    public SingleFlight.Stats coalescingStats() {
+        return flights.stats();
+    }
+
+    /// @return whether [#encodeAll(List)] embeds many texts per request, rather than one by one
+    public boolean supportsBatch() {
+        return embeddingService.supportsBatch();
     }
 
-    public double[] encode(String text) {
+    /// Encodes the text, sharing the request with concurrent calls for the same text, see [SingleFlight].
+    public float[] encode(String text) {
         if (text == null) {
             throw new NullPointerException("Text to encode cannot be null");
         }
+        try {
+            return flights.execute(text, () -> encodeOnce(text));
+        } catch (IOException | InterruptedException e) {
+            throw new RuntimeException("Failed to encode text", e);
+        }
+    }
+
+    private float[] encodeOnce(String text) {
+        if (supportsBatch()) {
+            return encodeAll(List.of(text)).getFirst();
+        }
+        float[] cached = cached(text);
+        if (cached != null) {
+            return normalized(cached);
+        }
         try {
             EncodingRequest request = new EncodingRequest(model, text);
             String requestBody = objectMapper.writeValueAsString(request);
             String responseBody = embeddingService.requestEmbedding(requestBody);
             EncodingResponse response = objectMapper.readValue(responseBody, EncodingResponse.class);
-            return response.embedding();
+            cache(text, response.embedding());
+            return normalized(response.embedding());
         } catch (IOException | InterruptedException e) {
             throw new RuntimeException("Failed to encode text", e);
         }
     }
 
+    /// Like [#encode(String)], but no thread waits for the embedding service: the embedding is parsed
+    /// once its response arrives. An embedding found in the cache is returned as a completed future.
+    public CompletableFuture<float[]> encodeAsync(String text) {
+        if (text == null) {
+            throw new NullPointerException("Text to encode cannot be null");
+        }
+        return flights.executeAsync(text, () -> encodeOnceAsync(text));
+    }
+
+    private CompletableFuture<float[]> encodeOnceAsync(String text) {
+        float[] cached = cached(text);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(normalized(cached));
+        }
+        CompletableFuture<float[]> embedding;
+        try {
+            if (supportsBatch()) {
+                String requestBody = objectMapper.writeValueAsString(new BatchEncodingRequest(model, List.of(text)));
+                embedding = embeddingService.requestEmbeddingsAsync(requestBody)
+                    .thenApply(responseBody -> {
+                        float[][] embeddings = parse(responseBody, BatchEncodingResponse.class).embeddings();
+                        if (embeddings == null || embeddings.length != 1) {
+                            throw new CompletionException(new IOException("Expected 1 embedding, got: " +
+                                (embeddings == null ? 0 : embeddings.length)));
+                        }
+                        return embeddings[0];
+                    });
+            } else {
+                String requestBody = objectMapper.writeValueAsString(new EncodingRequest(model, text));
+                embedding = embeddingService.requestEmbeddingAsync(requestBody)
+                    .thenApply(responseBody -> parse(responseBody, EncodingResponse.class).embedding());
+            }
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(new RuntimeException("Failed to encode text", e));
+        }
+        return embedding.thenApply(result -> {
+            cache(text, result);
+            return normalized(result);
+        });
+    }
+
+    private <T> T parse(String responseBody, Class<T> type) {
+        try {
+            return objectMapper.readValue(responseBody, type);
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    /// Encodes all the texts, returning their embeddings in the same order.
+    ///
+    /// When the embedding service supports batches, texts are sorted by length and sent in batches of up to
+    /// `EMBEDDING_BATCH_SIZE`, so texts of similar length share a forward pass and little is wasted on padding.
+    /// Otherwise texts are encoded one by one. Texts found in the cache are not sent at all.
+    public List<float[]> encodeAll(List<String> texts) {
+        if (texts.stream().anyMatch(Objects::isNull)) {
+            throw new NullPointerException("Text to encode cannot be null");
+        }
+        if (!supportsBatch()) {
+            return texts.stream().map(this::encode).toList();
+        }
+
+        float[][] embeddings = new float[texts.size()][];
+        for (int i = 0; i < texts.size(); i++) {
+            embeddings[i] = cached(texts.get(i));
+        }
+
+        int[] byLength = IntStream.range(0, texts.size())
+            .filter(i -> embeddings[i] == null)
+            .boxed()
+            .sorted(Comparator.comparingInt(i -> texts.get(i).length()))
+            .mapToInt(Integer::intValue)
+            .toArray();
+
+        try {
+            for (int start = 0; start < byLength.length; start += batchSize) {
+                int[] bucket = Arrays.copyOfRange(byLength, start, Math.min(start + batchSize, byLength.length));
+                List<String> input = Arrays.stream(bucket).mapToObj(texts::get).toList();
+
+                String requestBody = objectMapper.writeValueAsString(new BatchEncodingRequest(model, input));
+                String responseBody = embeddingService.requestEmbeddings(requestBody);
+                BatchEncodingResponse response = objectMapper.readValue(responseBody, BatchEncodingResponse.class);
+                if (response.embeddings() == null || response.embeddings().length != bucket.length) {
+                    throw new IOException("Expected " + bucket.length + " embeddings, got: " +
+                        (response.embeddings() == null ? 0 : response.embeddings().length));
+                }
+
+                for (int i = 0; i < bucket.length; i++) {
+                    embeddings[bucket[i]] = response.embeddings()[i];
+                    cache(texts.get(bucket[i]), response.embeddings()[i]);
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            throw new RuntimeException("Failed to encode texts", e);
+        }
+        for (int i = 0; i < embeddings.length; i++) {
+            embeddings[i] = normalized(embeddings[i]);
+        }
+        return Arrays.asList(embeddings);
+    }
+
+    /// A copy of the embedding scaled to unit length, if normalization is on. The cache keeps embeddings
+    /// as the model returned them, so that it can be shared by encoders with and without normalization.
+    private float[] normalized(float[] embedding) {
+        if (!normalize || embedding == null) {
+            return embedding;
+        }
+        return VectorMath.normalize(embedding);
+    }
+
+    private float[] cached(String text) {
+        return cache == null ? null : cache.get(model, text);
+    }
+
+    private void cache(String text, float[] embedding) {
+        if (cache != null && embedding != null) {
+            cache.put(model, text, embedding);
+        }
+    }
+
     private record EncodingRequest(
         String model,
         String prompt
@@ -62,7 +260,21 @@ public class Encoder {
 
     private record EncodingResponse(
         @JsonProperty("embedding")
-        double[] embedding
+        @JsonDeserialize(using = FloatVectors.Deserializer.class)
+        float[] embedding
+    ) {
+    }
+
+    private record BatchEncodingRequest(
+        String model,
+        List<String> input
+    ) {
+    }
+
+    private record BatchEncodingResponse(
+        @JsonProperty("embeddings")
+        @JsonDeserialize(using = FloatVectors.MatrixDeserializer.class)
+        float[][] embeddings
     ) {
     }
 }
@@ -0,0 +1,279 @@
+/*
+ * Copyright 2025 Piotr Przybył
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.przybyl.rag.example.utils;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+/// Passages and their embeddings in a single file, memory-mapped for reading.
+///
+/// Opening the file maps it and reads the header, nothing else, so it takes the same time whatever the size,
+/// and vectors are searched right in the mapping, off the Java heap, see [BruteForceSearch]. Only the passages
+/// which are found get decoded.
+///
+/// File layout, all numbers little-endian:
+/// - header: `magic`, `version`, `dims` and `count` (ints), the offsets of the vector, offset and record blocks (longs),
+///   the length of the model name (int) and the model name in UTF-8, padded to [#BLOCK_ALIGNMENT] bytes
+/// - vector block: `count` vectors of `dims` floats, one after another
+/// - offset table: `count + 1` longs, record `i` spans from offset `i` to offset `i + 1` of the record block
+/// - record block: for each vector, its document id, title, url and passage, each as an int length and UTF-8 bytes
+public final class FlatVectorFile implements AutoCloseable {
+
+    private static final int MAGIC = 0x46564543;
+    private static final int VERSION = 1;
+    private static final int BLOCK_ALIGNMENT = 64;
+    private static final int FIXED_HEADER_BYTES = 4 * Integer.BYTES + 3 * Long.BYTES + Integer.BYTES;
+    private static final ValueLayout.OfInt INT = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final ValueLayout.OfLong LONG = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+    private final Arena arena;
+    private final String model;
+    private final int dims;
+    private final int count;
+    private final MemorySegment vectors;
+    private final MemorySegment offsets;
+    private final MemorySegment records;
+
+    private FlatVectorFile(Arena arena, MemorySegment file) throws IOException {
+        this.arena = arena;
+        if (file.byteSize() < FIXED_HEADER_BYTES || file.get(INT, 0) != MAGIC || file.get(INT, Integer.BYTES) != VERSION) {
+            throw new IOException("Not a flat vector file");
+        }
+        this.dims = file.get(INT, 2 * Integer.BYTES);
+        this.count = file.get(INT, 3 * Integer.BYTES);
+        long vectorsOffset = file.get(LONG, 4 * Integer.BYTES);
+        long offsetsOffset = file.get(LONG, 4 * Integer.BYTES + Long.BYTES);
+        long recordsOffset = file.get(LONG, 4 * Integer.BYTES + 2 * Long.BYTES);
+        int modelLength = file.get(INT, 4 * Integer.BYTES + 3 * Long.BYTES);
+        this.model = string(file, FIXED_HEADER_BYTES, modelLength);
+        this.vectors = file.asSlice(vectorsOffset, (long) count * dims * Float.BYTES);
+        this.offsets = file.asSlice(offsetsOffset, (count + 1L) * Long.BYTES);
+        this.records = file.asSlice(recordsOffset);
+    }
+
+    /// Maps the file, it stays mapped until [#close()], and can be searched from many threads.
+    public static FlatVectorFile open(Path path) throws IOException {
+        Arena arena = Arena.ofShared();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            // the mapping outlives the channel
+            return new FlatVectorFile(arena, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), arena));
+        } catch (IOException | RuntimeException e) {
+            arena.close();
+            throw e;
+        }
+    }
+
+    /// Starts writing a new file, which replaces the one at the path only once the writer is closed.
+    public static Writer create(Path path, String model) throws IOException {
+        return new Writer(path, model);
+    }
+
+    public String model() {
+        return model;
+    }
+
+    public int dims() {
+        return dims;
+    }
+
+    /// @return number of vectors, which is also the number of passages
+    public int count() {
+        return count;
+    }
+
+    /// @return all vectors, one after another, see [VectorMath#FLOAT]
+    public MemorySegment vectors() {
+        return vectors;
+    }
+
+    public Passage passage(int index) {
+        long from = offsets.getAtIndex(LONG, index);
+        long to = offsets.getAtIndex(LONG, index + 1L);
+        MemorySegment record = records.asSlice(from, to - from);
+        String[] fields = new String[4];
+        long position = 0;
+        for (int i = 0; i < fields.length; i++) {
+            int length = record.get(INT, position);
+            fields[i] = length < 0 ? null : string(record, position + Integer.BYTES, length);
+            position += Integer.BYTES + Math.max(length, 0);
+        }
+        return new Passage(fields[0], fields[1], fields[2], fields[3]);
+    }
+
+    /// @return at most `k` passages closest to the query, with their indices and scores, the closest first
+    public List<BruteForceSearch.Match> search(float[] query, int k, VectorMath.Similarity similarity) {
+        if (query.length != dims) {
+            throw new IllegalArgumentException("Query has " + query.length + " dimensions, the file holds vectors of " + dims);
+        }
+        return BruteForceSearch.topK(query, vectors, count, k, similarity);
+    }
+
+    private static String string(MemorySegment segment, long offset, int length) {
+        return new String(segment.asSlice(offset, length).toArray(ValueLayout.JAVA_BYTE), StandardCharsets.UTF_8);
+    }
+
+    /// Unmaps the file, segments returned by [#vectors()] can't be used any more.
+    @Override
+    public void close() {
+        arena.close();
+    }
+
+    /// A passage stored with a vector, `title` and `url` may be `null`
+    public record Passage(String documentId, String title, String url, String text) {
+    }
+
+    /// Writes vectors straight to their block, and records to a file of their own, appended with the offset table
+    /// when the writer is closed. Not thread-safe.
+    public static final class Writer implements AutoCloseable {
+        private final Path path;
+        private final Path vectorsPath;
+        private final Path recordsPath;
+        private final FileChannel vectorsChannel;
+        private final FileChannel recordsChannel;
+        private final byte[] model;
+        private final long vectorsOffset;
+        private long[] offsets = new long[1024];
+        private int count;
+        private int dims = -1;
+        private ByteBuffer buffer = ByteBuffer.allocate(64 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+
+        private Writer(Path path, String model) throws IOException {
+            this.path = path;
+            this.vectorsPath = path.resolveSibling(path.getFileName() + ".tmp");
+            this.recordsPath = path.resolveSibling(path.getFileName() + ".records.tmp");
+            this.model = model.getBytes(StandardCharsets.UTF_8);
+            this.vectorsOffset = align(FIXED_HEADER_BYTES + this.model.length);
+            this.vectorsChannel = FileChannel.open(vectorsPath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            this.recordsChannel = FileChannel.open(recordsPath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            vectorsChannel.position(vectorsOffset);
+        }
+
+        /// The number of dimensions is taken from the first vector, all the others must have the same.
+        public void add(String documentId, String title, String url, String passage, float[] vector) throws IOException {
+            if (dims < 0) {
+                dims = vector.length;
+            } else if (vector.length != dims) {
+                throw new IllegalArgumentException("Vector has " + vector.length + " dimensions, the file holds vectors of " + dims);
+            }
+
+            buffer.clear();
+            ensureCapacity(vector.length * Float.BYTES);
+            buffer.asFloatBuffer().put(vector);
+            buffer.limit(vector.length * Float.BYTES);
+            writeFully(vectorsChannel, buffer);
+
+            buffer.clear();
+            for (String field : new String[]{documentId, title, url, passage}) {
+                byte[] bytes = field == null ? null : field.getBytes(StandardCharsets.UTF_8);
+                ensureCapacity(buffer.position() + Integer.BYTES + (bytes == null ? 0 : bytes.length));
+                buffer.putInt(bytes == null ? -1 : bytes.length);
+                if (bytes != null) {
+                    buffer.put(bytes);
+                }
+            }
+            buffer.flip();
+            writeFully(recordsChannel, buffer);
+
+            if (count + 1 == offsets.length) {
+                offsets = Arrays.copyOf(offsets, offsets.length * 2);
+            }
+            offsets[++count] = recordsChannel.position();
+        }
+
+        public int count() {
+            return count;
+        }
+
+        /// Appends the offset table and the records to the vectors, writes the header and moves the file in place.
+        @Override
+        public void close() throws IOException {
+            try (vectorsChannel; recordsChannel) {
+                long offsetsOffset = align(vectorsChannel.position());
+                ByteBuffer table = ByteBuffer.allocate((count + 1) * Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+                table.asLongBuffer().put(offsets, 0, count + 1);
+                vectorsChannel.position(offsetsOffset);
+                writeFully(vectorsChannel, table);
+
+                long recordsOffset = vectorsChannel.position();
+                long recordsSize = recordsChannel.position();
+                try (FileChannel records = FileChannel.open(recordsPath, StandardOpenOption.READ)) {
+                    for (long copied = 0; copied < recordsSize; ) {
+                        copied += records.transferTo(copied, recordsSize - copied, vectorsChannel);
+                    }
+                }
+
+                ByteBuffer header = ByteBuffer.allocate(FIXED_HEADER_BYTES + model.length).order(ByteOrder.LITTLE_ENDIAN)
+                    .putInt(MAGIC)
+                    .putInt(VERSION)
+                    .putInt(Math.max(dims, 0))
+                    .putInt(count)
+                    .putLong(vectorsOffset)
+                    .putLong(offsetsOffset)
+                    .putLong(recordsOffset)
+                    .putInt(model.length)
+                    .put(model)
+                    .flip();
+                vectorsChannel.position(0);
+                writeFully(vectorsChannel, header);
+                vectorsChannel.force(true);
+            }
+            Files.delete(recordsPath);
+            Files.move(vectorsPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        /// Gives up writing, the file at the path, if any, is left as it was.
+        public void abort() {
+            try (vectorsChannel; recordsChannel) {
+                Files.deleteIfExists(vectorsPath);
+                Files.deleteIfExists(recordsPath);
+            } catch (IOException e) {
+                System.err.println("Failed to delete temporary files of " + path + ": " + e.getMessage());
+            }
+        }
+
+        private void ensureCapacity(int bytes) {
+            if (bytes > buffer.capacity()) {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(bytes, buffer.capacity() * 2)).order(ByteOrder.LITTLE_ENDIAN);
+                buffer.flip();
+                bigger.put(buffer);
+                buffer = bigger;
+            }
+        }
+
+        private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    private static long align(long offset) {
+        return (offset + BLOCK_ALIGNMENT - 1) / BLOCK_ALIGNMENT * BLOCK_ALIGNMENT;
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2025 Piotr Przybył
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.przybyl.rag.example.utils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/// [VectorStore] over a [FlatVectorFile], written by [org.przybyl.rag.example.demos.DocumentEnricher]
+/// for the index given in `FLAT_VECTOR_PATH`, and searched either exactly or with an [IvfPqIndex].
+/// The file holds a single index, so the index name is ignored.
+///
+/// The best `SEARCH_NUM_CANDIDATES` passages are found first and then collapsed to their documents,
+/// so the body of each result is its closest passage rather than the whole document body.
+public class FlatVectorStore implements VectorStore {
+    private final FlatVectorFile file;
+    private final PassageSearch passageSearch;
+
+    /// Searches all the vectors, see [FlatVectorFile#search(float[], int, VectorMath.Similarity)].
+    public FlatVectorStore(FlatVectorFile file, VectorMath.Similarity similarity) {
+        this(file, (queryVector, numCandidates) -> file.search(queryVector, numCandidates, similarity));
+    }
+
+    /// Searches only the lists of the index closest to the query, see [IvfPqIndex#search(FlatVectorFile, float[], int, int, int)].
+    public FlatVectorStore(FlatVectorFile file, IvfPqIndex index, int nprobe, int shortlist) {
+        this(file, (queryVector, numCandidates) -> index.search(file, queryVector, numCandidates, nprobe, shortlist));
+    }
+
+    private FlatVectorStore(FlatVectorFile file, PassageSearch passageSearch) {
+        this.file = file;
+        this.passageSearch = passageSearch;
+    }
+
+    /// Up to `SEARCH_PASSAGES_PER_DOCUMENT` of the candidate passages of each document come with it, see [SearchResult#passages()].
+    @Override
+    public List<SearchResult> search(String indexName, float[] queryVector, int k) {
+        int numCandidates = Math.max(k, Integer.parseInt(System.getenv().getOrDefault("SEARCH_NUM_CANDIDATES", "100")));
+        int passagesPerDocument = Math.max(1, Integer.parseInt(System.getenv().getOrDefault("SEARCH_PASSAGES_PER_DOCUMENT", "3")));
+        Map<String, FlatVectorFile.Passage> documents = new LinkedHashMap<>();
+        Map<String, List<SearchResult.Passage>> passages = new HashMap<>();
+        for (BruteForceSearch.Match match : passageSearch.search(queryVector, numCandidates)) {
+            FlatVectorFile.Passage passage = file.passage(match.index());
+            if (documents.size() == k && !documents.containsKey(passage.documentId())) {
+                continue;
+            }
+            documents.putIfAbsent(passage.documentId(), passage);
+            List<SearchResult.Passage> documentPassages = passages.computeIfAbsent(passage.documentId(), id -> new ArrayList<>());
+            if (documentPassages.size() < passagesPerDocument) {
+                documentPassages.add(new SearchResult.Passage(passage.text(), match.score()));
+            }
+        }
+        List<SearchResult> results = new ArrayList<>(documents.size());
+        for (FlatVectorFile.Passage closest : documents.values()) {
+            List<SearchResult.Passage> documentPassages = passages.get(closest.documentId());
+            results.add(new SearchResult(closest.documentId(), closest.title(), closest.url(), closest.text(),
+                documentPassages.getFirst().score(), documentPassages));
+        }
+        return results;
+    }
+
+    /// Finds the passages closest to the query, the closest first
+    @FunctionalInterface
+    private interface PassageSearch {
+        List<BruteForceSearch.Match> search(float[] queryVector, int numCandidates);
+    }
+}
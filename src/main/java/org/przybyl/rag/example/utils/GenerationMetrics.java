@@ -0,0 +1,100 @@
+/*
+ * Copyright 2025 Piotr Przybył
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.przybyl.rag.example.utils;
+
+/// Timings of generated answers, for monitoring: the time to the first token and the total latency as seen by
+/// the client, and how long the model spent on the prompt and on generating, as reported by Ollama.
+///
+/// Like in [LatencyStats], counts and rates cover the whole lifetime, percentiles the last `windowSize` answers.
+public class GenerationMetrics {
+    private final LatencyStats firstToken;
+    private final LatencyStats promptEval;
+    private final LatencyStats total;
+    private long promptTokens;
+    private long promptEvalNanos;
+    private long evalTokens;
+    private long evalNanos;
+    private Generation last;
+
+    public GenerationMetrics(int windowSize) {
+        this.firstToken = new LatencyStats(windowSize);
+        this.promptEval = new LatencyStats(windowSize);
+        this.total = new LatencyStats(windowSize);
+    }
+
+    public void record(Generation generation) {
+        firstToken.record(generation.firstTokenNanos(), false);
+        promptEval.record(generation.promptEvalNanos(), false);
+        total.record(generation.totalNanos(), false);
+        synchronized (this) {
+            promptTokens += generation.promptTokens();
+            promptEvalNanos += generation.promptEvalNanos();
+            evalTokens += generation.evalTokens();
+            evalNanos += generation.evalNanos();
+            last = generation;
+        }
+    }
+
+    public Snapshot snapshot() {
+        LatencyStats.Snapshot firstToken = this.firstToken.snapshot();
+        LatencyStats.Snapshot promptEval = this.promptEval.snapshot();
+        LatencyStats.Snapshot total = this.total.snapshot();
+        synchronized (this) {
+            return new Snapshot(firstToken, promptEval, total,
+                evalTokens, rate(evalTokens, evalNanos), rate(promptTokens, promptEvalNanos), last);
+        }
+    }
+
+    private static double rate(long tokens, long nanos) {
+        return nanos == 0 ? 0 : tokens * 1e9 / nanos;
+    }
+
+    /// Timings of a single answer, all in nanoseconds.
+    ///
+    /// @param firstTokenNanos from sending the request to receiving the first token
+    /// @param promptTokens    `prompt_eval_count`, tokens of the prompt which were evaluated, i.e. not taken from the cache
+    /// @param promptEvalNanos `prompt_eval_duration`
+    /// @param evalTokens      `eval_count`, generated tokens
+    /// @param evalNanos       `eval_duration`
+    /// @param totalNanos      from sending the request to receiving the last token
+    public record Generation(long firstTokenNanos, int promptTokens, long promptEvalNanos, int evalTokens, long evalNanos, long totalNanos) {
+
+        public double tokensPerSecond() {
+            return rate(evalTokens, evalNanos);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("first token after %.1f ms, prompt of %d tokens evaluated in %.1f ms, %d tokens at %.1f tokens/s, %.1f ms in total",
+                firstTokenNanos / 1e6, promptTokens, promptEvalNanos / 1e6, evalTokens, tokensPerSecond(), totalNanos / 1e6);
+        }
+    }
+
+    /// @param generatedTokens       all the tokens generated
+    /// @param tokensPerSecond       generation rate over all the answers
+    /// @param promptTokensPerSecond prompt evaluation rate over all the answers
+    /// @param last                  timings of the latest answer, `null` until there is one
+    public record Snapshot(LatencyStats.Snapshot firstToken, LatencyStats.Snapshot promptEval, LatencyStats.Snapshot total,
+                           long generatedTokens, double tokensPerSecond, double promptTokensPerSecond, Generation last) {
+
+        @Override
+        public String toString() {
+            return String.format("first token: %s; prompt eval: %s; total: %s; %d tokens generated at %.1f tokens/s, prompts evaluated at %.1f tokens/s",
+                firstToken, promptEval, total, generatedTokens, tokensPerSecond, promptTokensPerSecond);
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2025 Piotr Przybył
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.przybyl.rag.example.utils;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/// Reads the tokens of a streamed Ollama response, of `/api/generate` or `/api/chat`, with one streaming parser
+/// going over all the JSON objects of the response, straight from the HTTP body.
+///
+/// Field names are canonicalized by the parser, so the only thing allocated per token is its text. Other fields,
+/// like the `context` of the final object, are skipped without being read. The timings of the final object are
+/// passed to the given consumer, along with the time to the first token and the total latency seen by the client.
+final class GenerationStream implements Iterator<String> {
+    private final JsonParser parser;
+    private final long start;
+    private final Consumer<GenerationMetrics.Generation> onDone;
+
+    private String next;
+    private boolean done;
+    private long firstTokenNanos = -1;
+    private GenerationMetrics.Generation generation;
+
+    private GenerationStream(JsonParser parser, long start, Consumer<GenerationMetrics.Generation> onDone) {
+        this.parser = parser;
+        this.start = start;
+        this.onDone = onDone;
+    }
+
+    /// @param start  [System#nanoTime()] when the request was sent
+    /// @param onDone called once the token of the final object has been consumed, that is when the stream has no more tokens
+    /// @return the tokens, the last one followed by a new line, closing the body when the stream is closed
+    static Stream<String> tokens(ObjectMapper objectMapper, InputStream body, long start, Consumer<GenerationMetrics.Generation> onDone) throws IOException {
+        GenerationStream tokens = new GenerationStream(objectMapper.createParser(body), start, onDone);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(tokens, Spliterator.ORDERED | Spliterator.NONNULL), false)
+            .onClose(tokens::close);
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null && !done) {
+            try {
+                next = read();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e.getMessage(), e);
+            }
+        }
+        if (next == null && generation != null) {
+            onDone.accept(generation);
+            generation = null;
+        }
+        return next != null;
+    }
+
+    @Override
+    public String next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        String token = next;
+        next = null;
+        return token;
+    }
+
+    /// @return the token of the next object, or `null` if the response has ended
+    private String read() throws IOException {
+        JsonToken token = parser.nextToken();
+        if (token == null) {
+            done = true;
+            return null;
+        }
+        if (token != JsonToken.START_OBJECT) {
+            throw new IOException("Expected an object, got: " + token);
+        }
+
+        String text = "";
+        String error = null;
+        boolean last = false;
+        int promptTokens = 0, evalTokens = 0;
+        long promptEvalNanos = 0, evalNanos = 0;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            parser.nextToken();
+            switch (field) {
+                case "response" -> text = parser.getValueAsString("");
+                case "message" -> text = readContent();
+                case "done" -> last = parser.getValueAsBoolean();
+                case "error" -> error = parser.getValueAsString();
+                case "prompt_eval_count" -> promptTokens = parser.getValueAsInt();
+                case "prompt_eval_duration" -> promptEvalNanos = parser.getValueAsLong();
+                case "eval_count" -> evalTokens = parser.getValueAsInt();
+                case "eval_duration" -> evalNanos = parser.getValueAsLong();
+                default -> parser.skipChildren();
+            }
+        }
+        if (error != null) {
+            throw new IOException("Failed to generate: " + error);
+        }
+
+        long now = System.nanoTime();
+        if (firstTokenNanos < 0 && (!text.isEmpty() || last)) {
+            firstTokenNanos = now - start;
+        }
+        if (!last) {
+            return text;
+        }
+        done = true;
+        generation = new GenerationMetrics.Generation(firstTokenNanos, promptTokens, promptEvalNanos, evalTokens, evalNanos, now - start);
+        return text + "\n";
+    }
+
+    /// Reads `content` of the `message` of `/api/chat`.
+    private String readContent() throws IOException {
+        String content = "";
+        if (parser.currentToken() != JsonToken.START_OBJECT) {
+            parser.skipChildren();
+            return content;
+        }
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            parser.nextToken();
+            if ("content".equals(field)) {
+                content = parser.getValueAsString("");
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return content;
+    }
+
+    private void close() {
+        try {
+            parser.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to close response", e);
+        }
+    }
+}
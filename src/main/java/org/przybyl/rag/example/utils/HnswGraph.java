@@ -0,0 +1,262 @@
+/*
+ * Copyright 2025 Piotr Przybył
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.przybyl.rag.example.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/// Hierarchical navigable small world graph (Malkov and Yashunin) for approximate nearest neighbour search
+/// by cosine similarity, kept in memory.
+///
+/// Every vector becomes a node on layer 0 and, with exponentially decreasing probability, on layers above it.
+/// A search greedily descends from the single entry point on the top layer, and on layer 0 keeps `ef` best
+/// candidates while walking the graph, so a larger `ef` gives better recall for more time.
+///
+/// Inserts may run concurrently: a node is published before it's linked, and neighbour lists are replaced
+/// under the lock of their node, never modified in place. Searches take no locks at all, they just read
+/// whichever neighbour lists are there, and can't see a node that isn't fully built.
+///
+/// @param <T> the value found with each vector
+public class HnswGraph<T> {
+
+    private static final int[] NO_NEIGHBOURS = new int[0];
+
+    private final int m;
+    private final int efConstruction;
+    private final double levelMultiplier;
+    private final Object growLock = new Object();
+    private final Object entryLock = new Object();
+
+    private volatile Node<T>[] nodes;
+    private volatile int size;
+    private volatile EntryPoint entryPoint;
+
+    /// @param m              number of neighbours of each node on the layers above 0, layer 0 keeps twice as many
+    /// @param efConstruction number of candidates considered when choosing neighbours of a new node
+    @SuppressWarnings("unchecked")
+    public HnswGraph(int m, int efConstruction) {
+        if (m < 2) {
+            throw new IllegalArgumentException("M must be at least 2, got: " + m);
+        }
+        if (efConstruction < 1) {
+            throw new IllegalArgumentException("efConstruction must be at least 1, got: " + efConstruction);
+        }
+        this.m = m;
+        this.efConstruction = Math.max(efConstruction, m);
+        this.levelMultiplier = 1 / Math.log(m);
+        this.nodes = (Node<T>[]) new Node[1024];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /// Adds the vector, which is normalized, so the caller's array is neither kept nor modified.
+    public void add(float[] vector, T value) {
+        float[] unit = VectorMath.normalize(vector);
+        int level = (int) (-Math.log(1 - ThreadLocalRandom.current().nextDouble()) * levelMultiplier);
+        Node<T> node = new Node<>(unit, value, level);
+        int id = store(node);
+
+        EntryPoint entry = entryPoint;
+        if (entry == null) {
+            synchronized (entryLock) {
+                if (entryPoint == null) {
+                    entryPoint = new EntryPoint(id, level);
+                    return;
+                }
+                entry = entryPoint;
+            }
+        }
+
+        int current = entry.node();
+        for (int layer = entry.level(); layer > level; layer--) {
+            current = greedy(unit, current, layer);
+        }
+        for (int layer = Math.min(level, entry.level()); layer >= 0; layer--) {
+            List<Candidate> candidates = searchLayer(unit, current, efConstruction, layer);
+            int[] neighbours = candidates.stream()
+                .mapToInt(Candidate::node)
+                .filter(candidate -> candidate != id)
+                .limit(m)
+                .toArray();
+            connect(node, layer, neighbours);
+            for (int neighbour : neighbours) {
+                connect(node(neighbour), layer, id);
+            }
+            current = candidates.getFirst().node();
+        }
+
+        if (level > entry.level()) {
+            synchronized (entryLock) {
+                if (level > entryPoint.level()) {
+                    entryPoint = new EntryPoint(id, level);
+                }
+            }
+        }
+    }
+
+    /// @param ef number of candidates kept while searching, at least `k` are
+    /// @return at most `k` values closest to the query, the closest first
+    public List<Match<T>> search(float[] query, int k, int ef) {
+        EntryPoint entry = entryPoint;
+        if (entry == null || k < 1) {
+            return List.of();
+        }
+        float[] unit = VectorMath.normalize(query);
+        int current = entry.node();
+        for (int layer = entry.level(); layer > 0; layer--) {
+            current = greedy(unit, current, layer);
+        }
+        List<Candidate> candidates = searchLayer(unit, current, Math.max(ef, k), 0);
+        List<Match<T>> matches = new ArrayList<>(Math.min(k, candidates.size()));
+        for (Candidate candidate : candidates.subList(0, Math.min(k, candidates.size()))) {
+            matches.add(new Match<>(node(candidate.node()).value, candidate.similarity()));
+        }
+        return matches;
+    }
+
+    private int store(Node<T> node) {
+        synchronized (growLock) {
+            int id = size;
+            if (id == nodes.length) {
+                nodes = Arrays.copyOf(nodes, id * 2);
+            }
+            nodes[id] = node;
+            size = id + 1;
+            return id;
+        }
+    }
+
+    private Node<T> node(int id) {
+        return nodes[id];
+    }
+
+    /// Adds the nodes to the neighbours of the node on the layer, keeping only the most similar if there are too many.
+    /// Other inserts may be connecting to the same node at the same time, hence the lock.
+    private void connect(Node<T> node, int layer, int... added) {
+        int maxNeighbours = layer == 0 ? 2 * m : m;
+        synchronized (node) {
+            int[] neighbours = node.neighbours(layer);
+            int[] connected = Arrays.copyOf(neighbours, neighbours.length + added.length);
+            System.arraycopy(added, 0, connected, neighbours.length, added.length);
+            connected = Arrays.stream(connected).distinct().toArray();
+            if (connected.length > maxNeighbours) {
+                connected = Arrays.stream(connected)
+                    .mapToObj(neighbour -> new Candidate(neighbour, VectorMath.dot(node.vector, node(neighbour).vector)))
+                    .sorted(Comparator.comparingDouble(Candidate::similarity).reversed())
+                    .limit(maxNeighbours)
+                    .mapToInt(Candidate::node)
+                    .toArray();
+            }
+            node.neighbours.set(layer, connected);
+        }
+    }
+
+    /// Moves to the most similar neighbour for as long as there is one more similar than the current node.
+    private int greedy(float[] query, int start, int layer) {
+        int current = start;
+        float best = VectorMath.dot(query, node(current).vector);
+        boolean moved = true;
+        while (moved) {
+            moved = false;
+            for (int neighbour : node(current).neighbours(layer)) {
+                float similarity = VectorMath.dot(query, node(neighbour).vector);
+                if (similarity > best) {
+                    best = similarity;
+                    current = neighbour;
+                    moved = true;
+                }
+            }
+        }
+        return current;
+    }
+
+    /// @return up to `ef` nodes closest to the query found on the layer, the closest first
+    private List<Candidate> searchLayer(float[] query, int start, int ef, int layer) {
+        BitSet visited = new BitSet(size);
+        visited.set(start);
+        Candidate first = new Candidate(start, VectorMath.dot(query, node(start).vector));
+        // candidates to expand, most similar first, and results found so far, least similar first
+        PriorityQueue<Candidate> candidates = new PriorityQueue<>(Comparator.comparingDouble(Candidate::similarity).reversed());
+        PriorityQueue<Candidate> results = new PriorityQueue<>(Comparator.comparingDouble(Candidate::similarity));
+        candidates.add(first);
+        results.add(first);
+
+        while (!candidates.isEmpty()) {
+            Candidate candidate = candidates.poll();
+            if (results.size() >= ef && candidate.similarity() < results.peek().similarity()) {
+                break;
+            }
+            for (int neighbour : node(candidate.node()).neighbours(layer)) {
+                if (visited.get(neighbour)) {
+                    continue;
+                }
+                visited.set(neighbour);
+                float similarity = VectorMath.dot(query, node(neighbour).vector);
+                if (results.size() < ef || similarity > results.peek().similarity()) {
+                    Candidate found = new Candidate(neighbour, similarity);
+                    candidates.add(found);
+                    results.add(found);
+                    if (results.size() > ef) {
+                        results.poll();
+                    }
+                }
+            }
+        }
+
+        List<Candidate> closest = new ArrayList<>(results);
+        closest.sort(Comparator.comparingDouble(Candidate::similarity).reversed());
+        return closest;
+    }
+
+    /// @param similarity cosine similarity to the query, from -1 to 1
+    public record Match<T>(T value, float similarity) {
+    }
+
+    private record Candidate(int node, float similarity) {
+    }
+
+    private record EntryPoint(int node, int level) {
+    }
+
+    private static final class Node<T> {
+        final float[] vector;
+        final T value;
+        /// neighbours on each layer of the node, replaced as a whole, see [HnswGraph#connect(Node, int, int...)]
+        final AtomicReferenceArray<int[]> neighbours;
+
+        Node(float[] vector, T value, int level) {
+            this.vector = vector;
+            this.value = value;
+            this.neighbours = new AtomicReferenceArray<>(level + 1);
+            for (int layer = 0; layer <= level; layer++) {
+                neighbours.set(layer, NO_NEIGHBOURS);
+            }
+        }
+
+        int[] neighbours(int layer) {
+            return neighbours.get(layer);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2025 Piotr Przybył
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.przybyl.rag.example.utils;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/// [WritableVectorStore] kept in the memory of this process, with an [HnswGraph] per index, so that retrieval from
+/// corpora fitting in memory costs no network hop and no Elasticsearch cluster.
+///
+/// Every vector of a document is a node of the graph. Replacing a document adds new nodes, the old ones stay in
+/// the graph for navigation but are no longer returned. Scores are `(1 + cosine) / 2`, the same as the `cosine`
+/// similarity of Elasticsearch gives.
+public class HnswVectorStore implements WritableVectorStore {
+    private static final int COPY_PAGE_SIZE = 500;
+
+    private final int m;
+    private final int efConstruction;
+    private final int efSearch;
+    private final Map<String, Index> indices = new ConcurrentHashMap<>();
+
+    /// @param efSearch number of candidates kept while searching, see [HnswGraph#search(float[], int, int)]
+    public HnswVectorStore(int m, int efConstruction, int efSearch) {
+        if (efSearch < 1) {
+            throw new IllegalArgumentException("efSearch must be at least 1, got: " + efSearch);
+        }
+        this.m = m;
+        this.efConstruction = efConstruction;
+        this.efSearch = efSearch;
+    }
+
+    public static HnswVectorStore fromEnvironment() {
+        return new HnswVectorStore(
+            Integer.parseInt(System.getenv().getOrDefault("HNSW_M", "16")),
+            Integer.parseInt(System.getenv().getOrDefault("HNSW_EF_CONSTRUCTION", "100")),
+            Integer.parseInt(System.getenv().getOrDefault("HNSW_EF_SEARCH", "50")));
+    }
+
+    @Override
+    public void createIndex(String indexName, DenseVectorMapping mapping) {
+        if (indices.putIfAbsent(indexName, new Index(mapping.dims(), new HnswGraph<>(m, efConstruction), new ConcurrentHashMap<>())) != null) {
+            throw new IllegalStateException("Index " + indexName + " already exists");
+        }
+    }
+
+    /// Safe to call from many threads at once, also for the same index.
+    @Override
+    public void upsert(String indexName, List<VectorDocument> documents) {
+        Index index = index(indexName);
+        for (VectorDocument document : documents) {
+            for (float[] vector : document.vectors()) {
+                if (vector.length != index.dims()) {
+                    throw new IllegalArgumentException("Document " + document.id() + " has a vector of " + vector.length +
+                        " dimensions, index " + indexName + " expects " + index.dims());
+                }
+            }
+            // the document is visible from now on, before its vectors are in the graph, which is fine for search
+            index.documents().put(document.id(), document);
+            for (float[] vector : document.vectors()) {
+                index.graph().add(vector, document);
+            }
+        }
+    }
+
+    @Override
+    public List<SearchResult> search(String indexName, float[] queryVector, int k) {
+        Index index = index(indexName);
+        // documents have many passages, so more nodes than k are needed to find k distinct documents
+        List<HnswGraph.Match<VectorDocument>> matches = index.graph().search(queryVector, Math.max(efSearch, k), Math.max(efSearch, k));
+        List<SearchResult> results = new ArrayList<>(k);
+        Set<String> found = new HashSet<>();
+        for (HnswGraph.Match<VectorDocument> match : matches) {
+            VectorDocument document = match.value();
+            // skip vectors of replaced documents and further passages of documents already found
+            if (index.documents().get(document.id()) != document || !found.add(document.id())) {
+                continue;
+            }
+            results.add(new SearchResult(document.id(), document.title(), document.url(), document.body(), (1 + match.similarity()) / 2));
+            if (results.size() == k) {
+                break;
+            }
+        }
+        return results;
+    }
+
+    /// Copies an Elasticsearch index written by [org.przybyl.rag.example.demos.DocumentEnricher] into an index of
+    /// the same name in this store. Each page read is inserted in parallel. The index is there afterwards
+    /// even if no document had vectors.
+    public void copyFrom(ElasticsearchConnector esConnector, ObjectMapper objectMapper, String indexName) {
+        List<VectorDocument> page = new ArrayList<>(COPY_PAGE_SIZE);
+        try (var reader = new PointInTimeReader(esConnector, objectMapper, indexName, COPY_PAGE_SIZE, """
+            {"match_all": {}}""", List.of("title", "url", "body", "bodyChunks.predictedValue"))) {
+            while (reader.hasNext()) {
+                VectorDocument document = toDocument(reader.next(), objectMapper);
+                if (document.vectors().isEmpty()) {
+                    continue;
+                }
+                if (!indices.containsKey(indexName)) {
+                    createIndex(indexName, new DenseVectorMapping(document.vectors().getFirst().length, "cosine", "hnsw", m, efConstruction));
+                }
+                page.add(document);
+                if (page.size() == COPY_PAGE_SIZE) {
+                    page.parallelStream().forEach(parallel -> upsert(indexName, List.of(parallel)));
+                    page.clear();
+                }
+            }
+        }
+        page.parallelStream().forEach(parallel -> upsert(indexName, List.of(parallel)));
+        // nothing had vectors, so the number of dimensions is unknown: the index stays empty, and searches find nothing rather than fail
+        indices.putIfAbsent(indexName, new Index(0, new HnswGraph<>(m, efConstruction), new ConcurrentHashMap<>()));
+    }
+
+    private static VectorDocument toDocument(PointInTimeReader.Hit hit, ObjectMapper objectMapper) {
+        JsonNode source = hit.source();
+        List<float[]> vectors = new ArrayList<>();
+        for (JsonNode chunk : source.path("bodyChunks")) {
+            if (chunk.path("predictedValue").isArray()) {
+                vectors.add(objectMapper.convertValue(chunk.path("predictedValue"), float[].class));
+            }
+        }
+        return new VectorDocument(hit.id(), source.path("title").asText(null), source.path("url").asText(null), source.path("body").asText(""), vectors);
+    }
+
+    /// @return number of documents in the index
+    public int size(String indexName) {
+        return index(indexName).documents().size();
+    }
+
+    private Index index(String indexName) {
+        Index index = indices.get(indexName);
+        if (index == null) {
+            throw new IllegalArgumentException("No such index: " + indexName);
+        }
+        return index;
+    }
+
+    private record Index(int dims, HnswGraph<VectorDocument> graph, Map<String, VectorDocument> documents) {
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2025 Piotr Przybył
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.przybyl.rag.example.utils;
+
+import java.net.http.HttpClient;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+
+/// The executor shared by the `*Async` methods, and HTTP clients which use it.
+///
+/// `ASYNC_EXECUTOR` picks it: `virtual` (the default) starts a virtual thread per task, `common` uses
+/// the common fork-join pool, and a number gives a fixed pool of that many platform threads.
+/// Whichever it is, no thread waits for a response in flight: the HTTP client runs the stages depending
+/// on `sendAsync` in its executor once the response has arrived.
+public final class HttpClients {
+
+    private HttpClients() {
+    }
+
+    /// @return the executor configured with `ASYNC_EXECUTOR`, created once
+    public static Executor executor() {
+        return Holder.EXECUTOR;
+    }
+
+    /// @return a new HTTP client running in [#executor()]
+    public static HttpClient newHttpClient() {
+        return newHttpClient(executor());
+    }
+
+    public static HttpClient newHttpClient(Executor executor) {
+        return HttpClient.newBuilder()
+            .executor(executor)
+            .build();
+    }
+
+    /// Runs a blocking call in [#executor()], for the services which have no asynchronous API of their own.
+    static <T> CompletableFuture<T> supplyAsync(BlockingCall<T> call) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return call.call();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CompletionException(e);
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, executor());
+    }
+
+    @FunctionalInterface
+    interface BlockingCall<T> {
+        T call() throws Exception;
+    }
+
+    private static Executor create(String executor) {
+        return switch (executor) {
+            case "virtual" -> Executors.newVirtualThreadPerTaskExecutor();
+            case "common" -> ForkJoinPool.commonPool();
+            default -> {
+                int threads;
+                try {
+                    threads = Integer.parseInt(executor);
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Unknown ASYNC_EXECUTOR: " + executor + ", expected virtual, common or a number of threads");
+                }
+                // daemon threads, so that the pool doesn't keep the JVM running
+                yield Executors.newFixedThreadPool(threads, Thread.ofPlatform().name("async-", 0).daemon().factory());
+            }
+        };
+    }
+
+    private static class Holder {
+        private static final Executor EXECUTOR = create(System.getenv().getOrDefault("ASYNC_EXECUTOR", "virtual"));
+    }
+}
@@ -0,0 +1,406 @@
+/*
+ * Copyright 2025 Piotr Przybył
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.przybyl.rag.example.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.IntStream;
+
+/// Inverted file index with product quantization (IVF-PQ) of the vectors of a [FlatVectorFile],
+/// for corpora whose vectors don't fit in memory.
+///
+/// Vectors are normalized and clustered with k-means into `lists`, each vector goes to the list of its closest
+/// coarse centroid. What's left of the vector after subtracting the centroid, the residual, is split into
+/// `subspaces` parts, and each part is replaced by the number of the closest of 256 centroids trained for
+/// its subspace, so a vector of 384 floats (1536 bytes) takes e.g. 48 bytes.
+///
+/// A query probes `nprobe` lists closest to it. For each list a table of distances from the query residual
+/// to every subspace centroid is computed once, and then the distance to any vector in the list is just
+/// a sum of `subspaces` table lookups (asymmetric distance computation). Only the `shortlist` best by that
+/// approximate distance are rescored with their full vectors, read from the memory-mapped file.
+public final class IvfPqIndex {
+
+    private static final int MAGIC = 0x49565051;
+    private static final int VERSION = 1;
+    private static final int CODEBOOK_SIZE = 256;
+
+    private final int dims;
+    private final int subspaces;
+    private final int subDims;
+    private final int count;
+    private final float[][] centroids;
+    /// for each subspace, [#CODEBOOK_SIZE] centroids of `subDims` floats, one after another
+    private final float[][] codebooks;
+    private final int[][] listIds;
+    /// for each list, `subspaces` codes of each of its vectors, in the order of `listIds`
+    private final byte[][] listCodes;
+
+    private IvfPqIndex(int dims, int subspaces, int count, float[][] centroids, float[][] codebooks, int[][] listIds, byte[][] listCodes) {
+        this.dims = dims;
+        this.subspaces = subspaces;
+        this.subDims = dims / subspaces;
+        this.count = count;
+        this.centroids = centroids;
+        this.codebooks = codebooks;
+        this.listIds = listIds;
+        this.listCodes = listCodes;
+    }
+
+    /// @param lists          number of coarse centroids, i.e. inverted lists
+    /// @param subspaces      number of parts each vector is split into for quantization, has to divide the dimensions
+    /// @param trainingSample number of vectors k-means is trained on
+    /// @param iterations     number of k-means iterations
+    public record Settings(int lists, int subspaces, int trainingSample, int iterations, long seed) {
+
+        public Settings {
+            if (lists < 1 || subspaces < 1 || trainingSample < 1 || iterations < 1) {
+                throw new IllegalArgumentException("All IVF-PQ settings must be at least 1");
+            }
+        }
+
+        /// By default each subspace has 8 dimensions, so codes take 1/16 of the float vectors
+        public static Settings fromEnvironment(int dims) {
+            return new Settings(
+                Integer.parseInt(System.getenv().getOrDefault("IVF_LISTS", "1024")),
+                Integer.parseInt(System.getenv().getOrDefault("IVF_PQ_SUBSPACES", String.valueOf(Math.max(1, dims / 8)))),
+                Integer.parseInt(System.getenv().getOrDefault("IVF_TRAINING_SAMPLE", "65536")),
+                Integer.parseInt(System.getenv().getOrDefault("IVF_TRAINING_ITERATIONS", "10")),
+                42);
+        }
+    }
+
+    /// Trains the centroids and codebooks on a sample of the vectors of the file, and encodes all of them.
+    public static IvfPqIndex build(FlatVectorFile file, Settings settings) {
+        int dims = file.dims();
+        if (dims % settings.subspaces() != 0) {
+            throw new IllegalArgumentException(settings.subspaces() + " subspaces don't divide " + dims + " dimensions");
+        }
+        int count = file.count();
+        if (count == 0) {
+            throw new IllegalArgumentException("There are no vectors to index");
+        }
+        int subspaces = settings.subspaces();
+        int subDims = dims / subspaces;
+        Random random = new Random(settings.seed());
+
+        IntStream sampled = count <= settings.trainingSample()
+            ? IntStream.range(0, count)
+            : random.ints(0, count).distinct().limit(settings.trainingSample());
+        List<float[]> sample = sampled
+            .mapToObj(index -> vector(file, index))
+            .toList();
+        float[][] centroids = kMeans(sample, Math.min(settings.lists(), sample.size()), settings.iterations(), random);
+
+        float[][] codebooks = new float[subspaces][];
+        List<float[]> residuals = sample.stream().map(vector -> residual(vector, centroids[nearest(vector, centroids)])).toList();
+        for (int subspace = 0; subspace < subspaces; subspace++) {
+            int from = subspace * subDims;
+            List<float[]> parts = residuals.stream().map(residual -> Arrays.copyOfRange(residual, from, from + subDims)).toList();
+            float[][] codebook = kMeans(parts, Math.min(CODEBOOK_SIZE, parts.size()), settings.iterations(), random);
+            codebooks[subspace] = new float[CODEBOOK_SIZE * subDims];
+            for (int code = 0; code < codebook.length; code++) {
+                System.arraycopy(codebook[code], 0, codebooks[subspace], code * subDims, subDims);
+            }
+            // unused codes of tiny samples stay far away, so no part is ever encoded with them
+            Arrays.fill(codebooks[subspace], codebook.length * subDims, codebooks[subspace].length, Float.MAX_VALUE);
+        }
+
+        int[] lists = new int[count];
+        byte[] codes = new byte[count * subspaces];
+        IntStream.range(0, count).parallel().forEach(index -> {
+            float[] vector = vector(file, index);
+            lists[index] = nearest(vector, centroids);
+            float[] residual = residual(vector, centroids[lists[index]]);
+            for (int subspace = 0; subspace < subspaces; subspace++) {
+                codes[index * subspaces + subspace] = (byte) nearestCode(residual, subspace * subDims, codebooks[subspace], subDims);
+            }
+        });
+
+        int[] sizes = new int[centroids.length];
+        for (int list : lists) {
+            sizes[list]++;
+        }
+        int[][] listIds = new int[centroids.length][];
+        byte[][] listCodes = new byte[centroids.length][];
+        for (int list = 0; list < centroids.length; list++) {
+            listIds[list] = new int[sizes[list]];
+            listCodes[list] = new byte[sizes[list] * subspaces];
+        }
+        int[] filled = new int[centroids.length];
+        for (int index = 0; index < count; index++) {
+            int list = lists[index];
+            int position = filled[list]++;
+            listIds[list][position] = index;
+            System.arraycopy(codes, index * subspaces, listCodes[list], position * subspaces, subspaces);
+        }
+        return new IvfPqIndex(dims, subspaces, count, centroids, codebooks, listIds, listCodes);
+    }
+
+    /// @param file      the file the index was built from, for rescoring
+    /// @param nprobe    number of lists searched
+    /// @param shortlist number of vectors rescored with their full vectors, at least `k` are
+    /// @return indices of at most `k` vectors closest to the query with their exact cosine scores, the closest first
+    public List<BruteForceSearch.Match> search(FlatVectorFile file, float[] query, int k, int nprobe, int shortlist) {
+        if (file.count() != count || file.dims() != dims) {
+            throw new IllegalArgumentException("The index was built from another file: " + count + " vectors of " + dims + " dimensions");
+        }
+        float[] unit = VectorMath.normalize(query);
+        int candidates = Math.max(k, shortlist);
+        // the least close of the shortlist at the head, to be replaced by anything closer
+        PriorityQueue<Approximate> best = new PriorityQueue<>(candidates + 1, Comparator.comparingDouble(Approximate::distance).reversed());
+        float[] table = new float[subspaces * CODEBOOK_SIZE];
+        for (BruteForceSearch.Match probe : BruteForceSearch.topK(unit, Arrays.asList(centroids), nprobe, VectorMath.Similarity.L2_NORM)) {
+            int list = probe.index();
+            distanceTable(residual(unit, centroids[list]), table);
+            int[] ids = listIds[list];
+            byte[] codes = listCodes[list];
+            for (int position = 0; position < ids.length; position++) {
+                float distance = 0;
+                for (int subspace = 0, offset = position * subspaces; subspace < subspaces; subspace++) {
+                    distance += table[subspace * CODEBOOK_SIZE + (codes[offset + subspace] & 0xFF)];
+                }
+                if (best.size() < candidates) {
+                    best.add(new Approximate(ids[position], distance));
+                } else if (distance < best.peek().distance()) {
+                    best.poll();
+                    best.add(new Approximate(ids[position], distance));
+                }
+            }
+        }
+
+        long vectorBytes = (long) dims * Float.BYTES;
+        return best.stream()
+            .map(approximate -> new BruteForceSearch.Match(approximate.id(),
+                VectorMath.Similarity.COSINE.score(query, file.vectors(), approximate.id() * vectorBytes)))
+            .sorted(Comparator.comparingDouble(BruteForceSearch.Match::score).reversed())
+            .limit(k)
+            .toList();
+    }
+
+    /// @return share of the exact top `k` of each query that the index finds, from 0 to 1
+    public double recall(FlatVectorFile file, List<float[]> queries, int k, int nprobe, int shortlist) {
+        long found = 0;
+        long expected = 0;
+        for (float[] query : queries) {
+            Set<Integer> exact = new HashSet<>();
+            file.search(query, k, VectorMath.Similarity.COSINE).forEach(match -> exact.add(match.index()));
+            expected += exact.size();
+            found += search(file, query, k, nprobe, shortlist).stream().filter(match -> exact.contains(match.index())).count();
+        }
+        return expected == 0 ? 1 : (double) found / expected;
+    }
+
+    /// @return bytes taken on the heap by centroids, codebooks, ids and codes, the full vectors stay in the file
+    public long memoryBytes() {
+        long bytes = (long) centroids.length * dims * Float.BYTES;
+        bytes += (long) subspaces * CODEBOOK_SIZE * subDims * Float.BYTES;
+        for (int list = 0; list < listIds.length; list++) {
+            bytes += (long) listIds[list].length * Integer.BYTES + listCodes[list].length;
+        }
+        return bytes;
+    }
+
+    public int lists() {
+        return centroids.length;
+    }
+
+    public int subspaces() {
+        return subspaces;
+    }
+
+    /// Squared distances from each part of the residual to each centroid of its subspace
+    private void distanceTable(float[] residual, float[] table) {
+        for (int subspace = 0; subspace < subspaces; subspace++) {
+            float[] codebook = codebooks[subspace];
+            for (int code = 0; code < CODEBOOK_SIZE; code++) {
+                table[subspace * CODEBOOK_SIZE + code] = squareDistance(residual, subspace * subDims, codebook, code * subDims, subDims);
+            }
+        }
+    }
+
+    public void save(Path path) throws IOException {
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(dims);
+            out.writeInt(subspaces);
+            out.writeInt(count);
+            out.writeInt(centroids.length);
+            for (float[] centroid : centroids) {
+                writeFloats(out, centroid);
+            }
+            for (float[] codebook : codebooks) {
+                writeFloats(out, codebook);
+            }
+            for (int list = 0; list < centroids.length; list++) {
+                out.writeInt(listIds[list].length);
+                for (int id : listIds[list]) {
+                    out.writeInt(id);
+                }
+                out.write(listCodes[list]);
+            }
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public static IvfPqIndex load(Path path) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not an IVF-PQ index file: " + path);
+            }
+            int dims = in.readInt();
+            int subspaces = in.readInt();
+            int count = in.readInt();
+            float[][] centroids = new float[in.readInt()][];
+            for (int list = 0; list < centroids.length; list++) {
+                centroids[list] = readFloats(in, dims);
+            }
+            float[][] codebooks = new float[subspaces][];
+            for (int subspace = 0; subspace < subspaces; subspace++) {
+                codebooks[subspace] = readFloats(in, CODEBOOK_SIZE * (dims / subspaces));
+            }
+            int[][] listIds = new int[centroids.length][];
+            byte[][] listCodes = new byte[centroids.length][];
+            for (int list = 0; list < centroids.length; list++) {
+                listIds[list] = new int[in.readInt()];
+                for (int position = 0; position < listIds[list].length; position++) {
+                    listIds[list][position] = in.readInt();
+                }
+                listCodes[list] = in.readNBytes(listIds[list].length * subspaces);
+            }
+            return new IvfPqIndex(dims, subspaces, count, centroids, codebooks, listIds, listCodes);
+        }
+    }
+
+    private static void writeFloats(DataOutputStream out, float[] values) throws IOException {
+        for (float value : values) {
+            out.writeFloat(value);
+        }
+    }
+
+    private static float[] readFloats(DataInputStream in, int length) throws IOException {
+        float[] values = new float[length];
+        for (int i = 0; i < length; i++) {
+            values[i] = in.readFloat();
+        }
+        return values;
+    }
+
+    /// Lloyd's algorithm starting from distinct random points, a cluster left empty starts again from a random point
+    private static float[][] kMeans(List<float[]> points, int k, int iterations, Random random) {
+        List<float[]> shuffled = new ArrayList<>(points);
+        Collections.shuffle(shuffled, random);
+        float[][] centroids = new float[k][];
+        for (int cluster = 0; cluster < k; cluster++) {
+            centroids[cluster] = shuffled.get(cluster).clone();
+        }
+        int dims = centroids[0].length;
+        int[] assignments = new int[points.size()];
+        for (int iteration = 0; iteration < iterations; iteration++) {
+            IntStream.range(0, points.size()).parallel().forEach(point -> assignments[point] = nearest(points.get(point), centroids));
+
+            float[][] sums = new float[k][dims];
+            int[] sizes = new int[k];
+            for (int point = 0; point < points.size(); point++) {
+                float[] vector = points.get(point);
+                float[] sum = sums[assignments[point]];
+                for (int i = 0; i < dims; i++) {
+                    sum[i] += vector[i];
+                }
+                sizes[assignments[point]]++;
+            }
+            for (int cluster = 0; cluster < k; cluster++) {
+                if (sizes[cluster] == 0) {
+                    centroids[cluster] = points.get(random.nextInt(points.size())).clone();
+                    continue;
+                }
+                for (int i = 0; i < dims; i++) {
+                    sums[cluster][i] /= sizes[cluster];
+                }
+                centroids[cluster] = sums[cluster];
+            }
+        }
+        return centroids;
+    }
+
+    private static int nearest(float[] vector, float[][] centroids) {
+        int nearest = 0;
+        float nearestDistance = Float.MAX_VALUE;
+        for (int centroid = 0; centroid < centroids.length; centroid++) {
+            float distance = VectorMath.l2(vector, centroids[centroid]);
+            if (distance < nearestDistance) {
+                nearestDistance = distance;
+                nearest = centroid;
+            }
+        }
+        return nearest;
+    }
+
+    private static int nearestCode(float[] residual, int from, float[] codebook, int subDims) {
+        int nearest = 0;
+        float nearestDistance = Float.MAX_VALUE;
+        for (int code = 0; code < CODEBOOK_SIZE; code++) {
+            float distance = squareDistance(residual, from, codebook, code * subDims, subDims);
+            if (distance < nearestDistance) {
+                nearestDistance = distance;
+                nearest = code;
+            }
+        }
+        return nearest;
+    }
+
+    private static float squareDistance(float[] a, int aFrom, float[] b, int bFrom, int length) {
+        float sum = 0;
+        for (int i = 0; i < length; i++) {
+            float difference = a[aFrom + i] - b[bFrom + i];
+            sum += difference * difference;
+        }
+        return sum;
+    }
+
+    private static float[] vector(FlatVectorFile file, int index) {
+        long vectorBytes = (long) file.dims() * Float.BYTES;
+        return VectorMath.normalize(file.vectors().asSlice(index * vectorBytes, vectorBytes).toArray(VectorMath.FLOAT));
+    }
+
+    private static float[] residual(float[] vector, float[] centroid) {
+        float[] residual = new float[vector.length];
+        for (int i = 0; i < vector.length; i++) {
+            residual[i] = vector[i] - centroid[i];
+        }
+        return residual;
+    }
+
+    private record Approximate(int id, float distance) {
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2025 Piotr Przybył
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.przybyl.rag.example.utils;
+
+import java.util.Arrays;
+
+/// Latencies of requests served by a long running process, for monitoring.
+///
+/// Counts cover the whole lifetime, while percentiles are computed over the last `windowSize` requests only,
+/// so that they follow the current load rather than averaging it with the cold start.
+public class LatencyStats {
+    private final long[] window;
+    private int next;
+    private int size;
+    private long count;
+    private long failures;
+    private long totalNanos;
+
+    public LatencyStats(int windowSize) {
+        if (windowSize < 1) {
+            throw new IllegalArgumentException("Window size must be at least 1, got: " + windowSize);
+        }
+        this.window = new long[windowSize];
+    }
+
+    public synchronized void record(long nanos, boolean failed) {
+        window[next] = nanos;
+        next = (next + 1) % window.length;
+        size = Math.min(size + 1, window.length);
+        count++;
+        totalNanos += nanos;
+        if (failed) {
+            failures++;
+        }
+    }
+
+    public Snapshot snapshot() {
+        long[] sorted;
+        long count, failures, totalNanos;
+        synchronized (this) {
+            sorted = Arrays.copyOf(window, size);
+            count = this.count;
+            failures = this.failures;
+            totalNanos = this.totalNanos;
+        }
+        // sorted outside the lock, so that requests being recorded don't wait for it
+        Arrays.sort(sorted);
+        return new Snapshot(count, failures, count == 0 ? 0 : totalNanos / 1e6 / count,
+            percentile(sorted, 0.5), percentile(sorted, 0.9), percentile(sorted, 0.99), percentile(sorted, 1));
+    }
+
+    /// @return the given percentile of the sorted latencies, in milliseconds
+    private static double percentile(long[] sortedNanos, double percentile) {
+        if (sortedNanos.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile * sortedNanos.length) - 1;
+        return sortedNanos[Math.max(index, 0)] / 1e6;
+    }
+
+    /// @param meanMs mean latency over the whole lifetime, percentiles are over the recent requests
+    public record Snapshot(long count, long failures, double meanMs, double p50Ms, double p90Ms, double p99Ms, double maxMs) {
+
+        @Override
+        public String toString() {
+            return String.format("%d requests, %d failed, mean %.1f ms, p50 %.1f ms, p90 %.1f ms, p99 %.1f ms, max %.1f ms",
+                count, failures, meanMs, p50Ms, p90Ms, p99Ms, maxMs);
+        }
+    }
+}
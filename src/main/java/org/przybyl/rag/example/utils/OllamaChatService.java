@@ -0,0 +1,190 @@
+/*
+ * Copyright 2025 Piotr Przybył
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.przybyl.rag.example.utils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/// [ChatService] using Ollama's [/api/chat](https://github.com/ollama/ollama/blob/main/docs/api.md#generate-a-chat-completion).
+///
+/// Every request starts with the same system message, followed by the history of the session: the questions exactly
+/// as they were asked, and the answers. The context retrieved for the new question comes in a message of its own after
+/// the history, and is not kept, so a turn adds only its question and answer to the history, not the passages.
+/// The prompt of a follow-up question therefore shares with the previous one everything up to that one's context.
+/// Ollama keeps the KV cache of the last prompt, so only the last answer, the new context and question are prefilled,
+/// as long as the model stays loaded, which `keep_alive` asks for.
+///
+/// The history of a session is kept up to `CHAT_HISTORY_TOKENS` estimated tokens. Beyond that, it's compacted by
+/// dropping the oldest turns until half of the limit is left. It's done in one go rather than a turn at a time,
+/// because every compaction changes the prefix and the whole history has to be prefilled again, so it should happen rarely.
+/// Up to `CHAT_MAX_SESSIONS` sessions are kept, the least recently used one is forgotten first.
+public class OllamaChatService implements ChatService {
+    private static final String CHAT_URL = System.getenv().getOrDefault("OLLAMA_URL", "http://localhost:11434") + "/api/chat";
+    private static final String MODEL = System.getenv().getOrDefault("OLLAMA_GENERATING_MODEL", "deepseek-r1:14b");
+
+    private final ObjectMapper objectMapper;
+    private final HttpClient httpClient;
+    private final Settings settings;
+    private final Map<String, Session> sessions;
+    private final LongAdder turns = new LongAdder();
+    private final LongAdder compactions = new LongAdder();
+    private final GenerationMetrics metrics = new GenerationMetrics(1000);
+
+    /// @param systemPrompt  the first message of every conversation, never compacted
+    /// @param keepAlive     how long the model stays loaded after a request, e.g. `30m`, see `keep_alive` in Ollama's API
+    /// @param historyTokens estimated number of tokens of the history of a session, above which it's compacted
+    /// @param maxSessions   number of sessions kept
+    public record Settings(String systemPrompt, String keepAlive, int historyTokens, int maxSessions) {
+
+        public Settings {
+            if (historyTokens < 1 || maxSessions < 1) {
+                throw new IllegalArgumentException("History tokens and max sessions must be at least 1, got: " + historyTokens + " and " + maxSessions);
+            }
+        }
+
+        public static Settings fromEnvironment() {
+            return new Settings(
+                System.getenv().getOrDefault("CHAT_SYSTEM_PROMPT",
+                    "You are a helpful assistant answering questions about Java and the JDK. Answer based on the context given with each question."),
+                System.getenv().getOrDefault("OLLAMA_KEEP_ALIVE", "30m"),
+                Integer.parseInt(System.getenv().getOrDefault("CHAT_HISTORY_TOKENS", "8192")),
+                Integer.parseInt(System.getenv().getOrDefault("CHAT_MAX_SESSIONS", "1000")));
+        }
+    }
+
+    public OllamaChatService(ObjectMapper objectMapper) {
+        this(objectMapper, HttpClients.newHttpClient(), Settings.fromEnvironment());
+    }
+
+    public OllamaChatService(ObjectMapper objectMapper, HttpClient httpClient, Settings settings) {
+        this.objectMapper = objectMapper;
+        this.httpClient = httpClient;
+        this.settings = settings;
+        this.sessions = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Session> eldest) {
+                return size() > settings.maxSessions();
+            }
+        });
+    }
+
+    @Override
+    public Stream<String> chat(String sessionId, String message, String context, Map<String, ?> options) throws IOException, InterruptedException {
+        Session session = sessions.computeIfAbsent(sessionId, id -> new Session());
+        Message question = new Message("user", message);
+        List<Message> messages = new ArrayList<>();
+        messages.add(new Message("system", settings.systemPrompt()));
+        messages.addAll(session.history());
+        if (context != null && !context.isBlank()) {
+            messages.add(new Message("system", "Answer the next question based on the following context:\n\n" + context));
+        }
+        messages.add(question);
+
+        var requestMap = Map.of(
+            "model", MODEL,
+            "messages", messages,
+            "options", options,
+            "stream", true,
+            "keep_alive", settings.keepAlive()
+        );
+        HttpRequest request = HttpRequest.newBuilder()
+            .uri(URI.create(CHAT_URL))
+            .header("Content-Type", "application/json")
+            .POST(HttpRequest.BodyPublishers.ofString(objectMapper.writeValueAsString(requestMap)))
+            .build();
+
+        long start = System.nanoTime();
+        var response = httpClient.send(request, HttpResponse.BodyHandlers.ofInputStream());
+        if (response.statusCode() != 200) {
+            try (InputStream body = response.body()) {
+                throw new IOException("Failed to chat. Status code: " + response.statusCode() + ", Response: " + new String(body.readAllBytes(), StandardCharsets.UTF_8));
+            }
+        }
+
+        StringBuilder answer = new StringBuilder();
+        return GenerationStream.tokens(objectMapper, response.body(), start, generation -> {
+            metrics.record(generation);
+            // without the new line following the last token, so that the history is exactly what the model generated
+            session.add(question, new Message("assistant", answer.substring(0, answer.length() - 1)));
+        }).peek(answer::append);
+    }
+
+    @Override
+    public void endSession(String sessionId) {
+        sessions.remove(sessionId);
+    }
+
+    /// @return the messages of the session, without the system one, the oldest first
+    public List<Message> history(String sessionId) {
+        Session session = sessions.get(sessionId);
+        return session == null ? List.of() : session.history();
+    }
+
+    @Override
+    public GenerationMetrics metrics() {
+        return metrics;
+    }
+
+    @Override
+    public Stats stats() {
+        return new Stats(sessions.size(), turns.sum(), compactions.sum());
+    }
+
+    public record Message(String role, String content) {
+    }
+
+    private final class Session {
+        private final Deque<Message> history = new ArrayDeque<>();
+        private int tokens;
+
+        synchronized List<Message> history() {
+            return List.copyOf(history);
+        }
+
+        synchronized void add(Message question, Message answer) {
+            history.addLast(question);
+            history.addLast(answer);
+            tokens += ContextAssembler.estimateTokens(question.content()) + ContextAssembler.estimateTokens(answer.content());
+            turns.increment();
+            if (tokens <= settings.historyTokens()) {
+                return;
+            }
+            // whole turns, so that the history never starts with an answer
+            while (tokens > settings.historyTokens() / 2 && !history.isEmpty()) {
+                tokens -= ContextAssembler.estimateTokens(history.removeFirst().content());
+                tokens -= ContextAssembler.estimateTokens(history.removeFirst().content());
+            }
+            compactions.increment();
+        }
+    }
+}
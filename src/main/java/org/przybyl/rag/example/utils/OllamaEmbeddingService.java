@@ -21,6 +21,8 @@ import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 /**
  * Implementation of EmbeddingService that uses Ollama's API to create embeddings.
@@ -28,10 +30,11 @@ import java.net.http.HttpResponse;
 public class OllamaEmbeddingService implements EmbeddingService {
 
     private static final String ENCODE_URL = System.getenv().getOrDefault("OLLAMA_URL", "http://localhost:11434")+"/api/embeddings";
+    private static final String BATCH_ENCODE_URL = System.getenv().getOrDefault("OLLAMA_URL", "http://localhost:11434")+"/api/embed";
     private final HttpClient httpClient;
 
     public OllamaEmbeddingService() {
-        this(HttpClient.newHttpClient());
+        this(HttpClients.newHttpClient());
     }
 
     public OllamaEmbeddingService(HttpClient httpClient) {
@@ -40,13 +43,53 @@ public class OllamaEmbeddingService implements EmbeddingService {
 
     @Override
     public String requestEmbedding(String requestBody) throws IOException, InterruptedException {
-        HttpRequest request = HttpRequest.newBuilder()
-            .uri(URI.create(ENCODE_URL))
+        HttpResponse<String> response = httpClient.send(embeddingRequest(ENCODE_URL, requestBody), HttpResponse.BodyHandlers.ofString());
+        return response.body();
+    }
+
+    @Override
+    public CompletableFuture<String> requestEmbeddingAsync(String requestBody) {
+        return httpClient.sendAsync(embeddingRequest(ENCODE_URL, requestBody), HttpResponse.BodyHandlers.ofString())
+            .thenApply(HttpResponse::body);
+    }
+
+    /// Uses [/api/embed](https://github.com/ollama/ollama/blob/main/docs/api.md#generate-embeddings),
+    /// which takes an `input` array and embeds all the texts in one model invocation.
+    @Override
+    public String requestEmbeddings(String requestBody) throws IOException, InterruptedException {
+        return checked(httpClient.send(embeddingRequest(BATCH_ENCODE_URL, requestBody), HttpResponse.BodyHandlers.ofString()));
+    }
+
+    @Override
+    public CompletableFuture<String> requestEmbeddingsAsync(String requestBody) {
+        return httpClient.sendAsync(embeddingRequest(BATCH_ENCODE_URL, requestBody), HttpResponse.BodyHandlers.ofString())
+            .thenApply(response -> {
+                try {
+                    return checked(response);
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+            });
+    }
+
+    private static HttpRequest embeddingRequest(String url, String requestBody) {
+        return HttpRequest.newBuilder()
+            .uri(URI.create(url))
             .header("Content-Type", "application/json")
             .POST(HttpRequest.BodyPublishers.ofString(requestBody))
             .build();
+    }
 
-        HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+    private static String checked(HttpResponse<String> response) throws IOException {
+        if (response.statusCode() != 200) {
+            throw new IOException("Failed to embed texts. Status code: " + response.statusCode() +
+                ", Response: " + response.body());
+        }
         return response.body();
     }
-}
\ No newline at end of file
+
+    @Override
+    public boolean supportsBatch() {
+        return true;
+    }
+}
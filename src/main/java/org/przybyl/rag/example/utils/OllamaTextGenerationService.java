@@ -20,21 +20,26 @@ package org.przybyl.rag.example.utils;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
 import java.util.Map;
 import java.util.stream.Stream;
 
 public class OllamaTextGenerationService implements TextGenerationService {
     private static final String GENERATE_URL = System.getenv().getOrDefault("OLLAMA_URL", "http://localhost:11434")+"/api/generate";
     private static final String MODEL = System.getenv().getOrDefault("OLLAMA_GENERATING_MODEL", "deepseek-r1:14b");
+    // how long the model stays loaded after a request, so that the next one doesn't wait for it to load again
+    private static final String KEEP_ALIVE = System.getenv().getOrDefault("OLLAMA_KEEP_ALIVE", "30m");
     private final HttpClient httpClient;
     private final ObjectMapper objectMapper;
+    private final GenerationMetrics metrics = new GenerationMetrics(1000);
 
     public OllamaTextGenerationService(ObjectMapper objectMapper) {
-        this(objectMapper, HttpClient.newBuilder().build());
+        this(objectMapper, HttpClients.newHttpClient());
     }
 
     public OllamaTextGenerationService(ObjectMapper objectMapper, HttpClient httpClient) {
@@ -50,7 +55,8 @@ public class OllamaTextGenerationService implements TextGenerationService {
             "model", MODEL,
             "prompt", prompt,
             "options", options,
-            "stream", true
+            "stream", true,
+            "keep_alive", KEEP_ALIVE
         );
         String requestBody = objectMapper.writeValueAsString(requestMap);
 
@@ -62,21 +68,18 @@ public class OllamaTextGenerationService implements TextGenerationService {
             .build();
 
         // Process streaming response
-        var response = httpClient.send(request, HttpResponse.BodyHandlers.ofLines());
-        return response.body().map(line -> {
-            try {
-                return objectMapper.readTree(line);
-            } catch (IOException e) {
-                throw new RuntimeException("Failed to process response line", e);
+        long start = System.nanoTime();
+        var response = httpClient.send(request, HttpResponse.BodyHandlers.ofInputStream());
+        if (response.statusCode() != 200) {
+            try (InputStream body = response.body()) {
+                throw new IOException("Failed to generate text. Status code: " + response.statusCode() + ", Response: " + new String(body.readAllBytes(), StandardCharsets.UTF_8));
             }
-        }).map(responseJson -> {
-            String responseText = responseJson.get("response").asText();
-            return switch(responseJson.get("done").asBoolean()) {
-                case true ->
-                    responseText + "\n";
-                case false ->
-                    responseText;
-            };
-        });
+        }
+        return GenerationStream.tokens(objectMapper, response.body(), start, metrics::record);
+    }
+
+    @Override
+    public GenerationMetrics metrics() {
+        return metrics;
     }
 }
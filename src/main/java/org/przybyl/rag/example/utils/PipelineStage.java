@@ -0,0 +1,274 @@
+/*
+ * Copyright 2025 Piotr Przybył
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.przybyl.rag.example.utils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/// One stage of a pipeline, with its own number of workers, taking items from a bounded queue.
+///
+/// Stages are chained with [#then(PipelineStage)]. Workers of a stage put their results into the queue of the next
+/// stage, and block when it's full. This way the slowest stage sets the pace of the whole pipeline, and nothing
+/// is buffered beyond the queue capacities. When the input of a stage is finished and its workers are done,
+/// the next stage is finished too.
+///
+/// If any stage fails, the whole pipeline is stopped and the failure is rethrown by [#awaitCompletion()].
+public class PipelineStage<I, O> {
+
+    @FunctionalInterface
+    public interface Processor<I, O> {
+        /// Processes a batch of items, passing results (if any) downstream.
+        void process(List<I> items, Consumer<O> downstream) throws Exception;
+    }
+
+    private static final Object END = new Object();
+    private static final long POLL_MILLIS = 50;
+
+    private final String name;
+    private final int workers;
+    private final int batchSize;
+    private final int queueCapacity;
+    private final BlockingQueue<Object> queue;
+    private final Processor<I, O> processor;
+
+    private final LongAdder items = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder busyNanos = new LongAdder();
+    private final LongAdder blockedNanos = new LongAdder();
+    private final LongAdder queueDepthSum = new LongAdder();
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+    private final AtomicInteger runningWorkers = new AtomicInteger();
+    private final CountDownLatch completed = new CountDownLatch(1);
+
+    /// Only the failure of the first stage is used, it's the one of the whole pipeline, see [#failure()]
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private volatile PipelineStage<?, ?> previous;
+    private PipelineStage<O, ?> next;
+    private ExecutorService executor;
+    private volatile long startNanos;
+    private volatile long endNanos;
+
+    /// @param batchSize maximum number of queued items given to the processor at once
+    public PipelineStage(String name, int workers, int batchSize, int queueCapacity, Processor<I, O> processor) {
+        if (workers < 1 || batchSize < 1 || queueCapacity < 1) {
+            throw new IllegalArgumentException("Workers, batch size and queue capacity of stage " + name + " must be at least 1");
+        }
+        this.name = name;
+        this.workers = workers;
+        this.batchSize = batchSize;
+        this.queueCapacity = queueCapacity;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity + workers);
+        this.processor = processor;
+    }
+
+    /// Connects the next stage, returning it, so that stages can be chained. Stages are connected before they're started.
+    public <R> PipelineStage<O, R> then(PipelineStage<O, R> next) {
+        if (executor != null || next.executor != null) {
+            throw new IllegalStateException("Stages " + name + " and " + next.name + " must be connected before they're started");
+        }
+        this.next = next;
+        next.previous = this;
+        return next;
+    }
+
+    /// Starts workers of this and all the following stages, on the given executor.
+    public void start(ExecutorService executor) {
+        this.executor = executor;
+        this.startNanos = System.nanoTime();
+        runningWorkers.set(workers);
+        for (int i = 0; i < workers; i++) {
+            executor.execute(this::work);
+        }
+        if (next != null) {
+            next.start(executor);
+        }
+    }
+
+    /// Puts an item into the queue of this stage, waiting while the queue is full.
+    public void put(I item) throws IOException, InterruptedException {
+        offer(item);
+        int depth = queue.size();
+        queueDepthSum.add(depth);
+        maxQueueDepth.accumulateAndGet(depth, Math::max);
+    }
+
+    /// Signals that no more items will be put into this stage.
+    public void finish() throws IOException, InterruptedException {
+        for (int i = 0; i < workers; i++) {
+            offer(END);
+        }
+    }
+
+    /// Waits for the last stage of the pipeline to complete.
+    public void awaitCompletion() throws IOException, InterruptedException {
+        PipelineStage<?, ?> last = this;
+        while (last.next != null) {
+            last = last.next;
+        }
+        last.completed.await();
+        rethrowFailure();
+    }
+
+    public Stats stats() {
+        long end = endNanos != 0 ? endNanos : System.nanoTime();
+        long processed = items.sum();
+        long blocked = blockedNanos.sum();
+        return new Stats(name, workers, processed, batches.sum(), busyNanos.sum() - blocked, blocked, end - startNanos,
+            processed == 0 ? 0 : (double) queueDepthSum.sum() / processed, maxQueueDepth.get(), queueCapacity);
+    }
+
+    private void offer(Object item) throws IOException, InterruptedException {
+        while (!queue.offer(item, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+            rethrowFailure();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void work() {
+        List<I> batch = new ArrayList<>(batchSize);
+        try {
+            boolean end = false;
+            while (!end) {
+                Object item = queue.take();
+                if (item == END) {
+                    break;
+                }
+                batch.add((I) item);
+                // Fill the batch with what arrives shortly, each worker consumes exactly one END
+                while (batch.size() < batchSize) {
+                    Object more = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                    if (more == null) {
+                        break;
+                    }
+                    if (more == END) {
+                        end = true;
+                        break;
+                    }
+                    batch.add((I) more);
+                }
+
+                long start = System.nanoTime();
+                processor.process(batch, this::emit);
+                busyNanos.add(System.nanoTime() - start);
+                items.add(batch.size());
+                batches.increment();
+                batch.clear();
+            }
+            if (runningWorkers.decrementAndGet() == 0) {
+                endNanos = System.nanoTime();
+                if (next != null) {
+                    next.finish();
+                }
+                completed.countDown();
+            }
+        } catch (Throwable e) {
+            fail(e);
+        }
+    }
+
+    private void emit(O result) {
+        if (next == null) {
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            next.put(result);
+            blockedNanos.add(System.nanoTime() - start);
+        } catch (IOException e) {
+            throw new PipelineFailure(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PipelineFailure(e);
+        }
+    }
+
+    private void fail(Throwable e) {
+        Throwable cause = e instanceof PipelineFailure ? e.getCause() : e;
+        if (failure().compareAndSet(null, new IOException("Pipeline stage " + name + " failed", cause))) {
+            executor.shutdownNow();
+        }
+        // Let anyone waiting for the pipeline see the failure
+        for (PipelineStage<?, ?> stage = this; stage != null; stage = stage.next) {
+            stage.completed.countDown();
+        }
+    }
+
+    private AtomicReference<Throwable> failure() {
+        PipelineStage<?, ?> first = this;
+        while (first.previous != null) {
+            first = first.previous;
+        }
+        return first.failure;
+    }
+
+    private void rethrowFailure() throws IOException {
+        Throwable e = failure().get();
+        if (e != null) {
+            throw (IOException) e;
+        }
+    }
+
+    private static class PipelineFailure extends RuntimeException {
+        PipelineFailure(Throwable cause) {
+            super(cause);
+        }
+    }
+
+    public record Stats(
+        String name,
+        int workers,
+        long items,
+        long batches,
+        long busyNanos,
+        long blockedNanos,
+        long elapsedNanos,
+        double averageQueueDepth,
+        int maxQueueDepth,
+        int queueCapacity
+    ) {
+
+        public double itemsPerSecond() {
+            return elapsedNanos == 0 ? 0 : items * 1e9 / elapsedNanos;
+        }
+
+        /// Share of the time the workers were busy processing, rather than waiting for input or for the next stage
+        public double utilisation() {
+            return elapsedNanos == 0 ? 0 : (double) busyNanos / (elapsedNanos * workers);
+        }
+
+        /// Share of the time the workers waited for room in the queue of the next stage, i.e. were held back by it
+        public double backpressure() {
+            return elapsedNanos == 0 ? 0 : (double) blockedNanos / (elapsedNanos * workers);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-6s %2d workers, %8d items in %6d batches, %8.1f items/s, %5.1f%% busy, %5.1f%% blocked, queue depth avg %.1f max %d/%d",
+                name, workers, items, batches, itemsPerSecond(), utilisation() * 100, backpressure() * 100, averageQueueDepth, maxQueueDepth, queueCapacity);
+        }
+    }
+}
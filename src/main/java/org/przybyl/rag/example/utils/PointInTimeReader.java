@@ -0,0 +1,253 @@
+/*
+ * Copyright 2025 Piotr Przybył
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.przybyl.rag.example.utils;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.MissingNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/// Reads all hits of an index using a point in time and `search_after`, page by page.
+///
+/// Unlike `from`/`size` paging, every page costs the same no matter how deep we are,
+/// and there is no `index.max_result_window` limit, so indices of any size can be read.
+/// The point in time is opened lazily with the first page and closed by [#close()].
+///
+/// Every [Hit] carries both the parsed `_source` and its original bytes, so that it can be indexed elsewhere
+/// without serializing it again.
+public class PointInTimeReader implements Iterator<PointInTimeReader.Hit>, AutoCloseable {
+
+    private static final String DEFAULT_KEEP_ALIVE = "2m";
+
+    private final ElasticsearchConnector esConnector;
+    private final ObjectMapper objectMapper;
+    private final String indexName;
+    private final int pageSize;
+    private final JsonNode query;
+    private final String keepAlive;
+    private final List<String> sourceFields;
+
+    private String pitId;
+    private JsonNode searchAfter;
+    private Iterator<Hit> currentPage = Collections.emptyIterator();
+    private boolean exhausted;
+    private long totalHits = -1;
+
+    public PointInTimeReader(ElasticsearchConnector esConnector, ObjectMapper objectMapper, String indexName, int pageSize) {
+        this(esConnector, objectMapper, indexName, pageSize, """
+            {"match_all": {}}""", null);
+    }
+
+    /// @param queryJson    the query clause (the value of `"query"`) selecting hits to read
+    /// @param sourceFields fields of `_source` to return, `null` for the whole `_source`
+    public PointInTimeReader(ElasticsearchConnector esConnector, ObjectMapper objectMapper, String indexName, int pageSize, String queryJson, List<String> sourceFields) {
+        this(esConnector, objectMapper, indexName, pageSize, queryJson, sourceFields, DEFAULT_KEEP_ALIVE);
+    }
+
+    public PointInTimeReader(ElasticsearchConnector esConnector, ObjectMapper objectMapper, String indexName, int pageSize, String queryJson, List<String> sourceFields, String keepAlive) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("Page size must be at least 1, got: " + pageSize);
+        }
+        this.esConnector = esConnector;
+        this.objectMapper = objectMapper;
+        this.indexName = indexName;
+        this.pageSize = pageSize;
+        this.keepAlive = keepAlive;
+        this.sourceFields = sourceFields;
+        try {
+            this.query = objectMapper.readTree(queryJson);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Invalid query: " + queryJson, e);
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!currentPage.hasNext() && !exhausted) {
+            fetchNextPage();
+        }
+        return currentPage.hasNext();
+    }
+
+    @Override
+    public Hit next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Hit hit = currentPage.next();
+        searchAfter = hit.sort();
+        return hit;
+    }
+
+    /// Total number of hits matching the query, the first page is fetched if it hasn't been yet.
+    public long totalHits() {
+        if (totalHits < 0) {
+            hasNext();
+        }
+        return Math.max(totalHits, 0);
+    }
+
+    public Stream<Hit> stream() {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL), false)
+            .onClose(this::close);
+    }
+
+    private void fetchNextPage() {
+        try {
+            if (pitId == null) {
+                pitId = esConnector.openPointInTime(indexName, keepAlive);
+            }
+
+            ObjectNode request = objectMapper.createObjectNode();
+            request.put("size", pageSize);
+            request.set("query", query);
+            if (sourceFields != null) {
+                sourceFields.forEach(request.putArray("_source")::add);
+            }
+            request.putObject("pit")
+                .put("id", pitId)
+                .put("keep_alive", keepAlive);
+            // _shard_doc is the cheapest tiebreaker, we don't care about any specific order
+            request.putArray("sort").addObject().put("_shard_doc", "asc");
+            request.put("track_total_hits", totalHits < 0);
+            if (searchAfter != null) {
+                request.set("search_after", searchAfter);
+            }
+
+            List<Hit> page = parsePage(esConnector.searchWithPointInTime(objectMapper.writeValueAsBytes(request)));
+            exhausted = page.size() < pageSize;
+            currentPage = page.iterator();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read page from " + indexName, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while reading page from " + indexName, e);
+        }
+    }
+
+    /// Streams through the response, keeping the byte range of each `_source` alongside its parsed form.
+    private List<Hit> parsePage(byte[] response) throws IOException {
+        List<Hit> page = new ArrayList<>(pageSize);
+        try (JsonParser parser = objectMapper.createParser(response)) {
+            expect(parser.nextToken(), JsonToken.START_OBJECT);
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                parser.nextToken();
+                switch (field) {
+                    // the id of the point in time may change between requests
+                    case "pit_id" -> pitId = parser.getText();
+                    case "hits" -> parseHits(parser, response, page);
+                    default -> parser.skipChildren();
+                }
+            }
+        }
+        return page;
+    }
+
+    private void parseHits(JsonParser parser, byte[] response, List<Hit> page) throws IOException {
+        expect(parser.currentToken(), JsonToken.START_OBJECT);
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            parser.nextToken();
+            switch (field) {
+                case "total" -> {
+                    JsonNode total = objectMapper.readTree(parser);
+                    if (totalHits < 0) {
+                        totalHits = total.path("value").asLong();
+                    }
+                }
+                case "hits" -> {
+                    expect(parser.currentToken(), JsonToken.START_ARRAY);
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        page.add(parseHit(parser, response));
+                    }
+                }
+                default -> parser.skipChildren();
+            }
+        }
+    }
+
+    private Hit parseHit(JsonParser parser, byte[] response) throws IOException {
+        String id = null;
+        JsonNode source = MissingNode.getInstance();
+        byte[] rawSource = null;
+        JsonNode sort = MissingNode.getInstance();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            parser.nextToken();
+            switch (field) {
+                case "_id" -> id = parser.getText();
+                case "_source" -> {
+                    int start = (int) parser.currentTokenLocation().getByteOffset();
+                    source = objectMapper.readTree(parser);
+                    int end = (int) parser.currentLocation().getByteOffset();
+                    rawSource = Arrays.copyOfRange(response, start, end);
+                }
+                case "sort" -> sort = objectMapper.readTree(parser);
+                default -> parser.skipChildren();
+            }
+        }
+        return new Hit(id, source, rawSource, sort);
+    }
+
+    private static void expect(JsonToken actual, JsonToken expected) throws IOException {
+        if (actual != expected) {
+            throw new IOException("Unexpected search response, expected " + expected + " but got " + actual);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (pitId == null) {
+            return;
+        }
+        try {
+            esConnector.closePointInTime(pitId);
+        } catch (IOException e) {
+            // the point in time expires by itself after keep_alive, so there's no need to fail here
+            System.err.println("Failed to close point in time: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            pitId = null;
+            exhausted = true;
+        }
+    }
+
+    /// A hit read from the index.
+    ///
+    /// @param source    the parsed `_source`, or a missing node if it wasn't returned
+    /// @param rawSource the `_source` exactly as returned by Elasticsearch, or `null` if it wasn't returned
+    /// @param sort      sort values of the hit, to continue with `search_after`
+    public record Hit(String id, JsonNode source, byte[] rawSource, JsonNode sort) {
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2025 Piotr Przybył
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.przybyl.rag.example.utils;
+
+import java.text.Normalizer;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/// In-memory cache of query embeddings, so that repeated questions don't wait for the embedding service.
+///
+/// Queries are normalized before lookup (Unicode compatibility form, case, surrounding and repeated whitespace),
+/// so trivially different spellings of the same question share an entry. Entries expire after the TTL and the
+/// least recently used one is evicted once the cache is full. Lookups are cheap compared to embedding, so a single
+/// lock is good enough; embedding happens outside of it.
+public class QueryEmbeddingCache {
+
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    private final int capacity;
+    private final Duration ttl;
+    private final Clock clock;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+    private final LinkedHashMap<Key, Entry> entries;
+
+    public QueryEmbeddingCache(int capacity, Duration ttl) {
+        this(capacity, ttl, Clock.systemUTC());
+    }
+
+    public QueryEmbeddingCache(int capacity, Duration ttl, Clock clock) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be at least 1, got: " + capacity);
+        }
+        this.capacity = capacity;
+        this.ttl = ttl;
+        this.clock = clock;
+        this.entries = new LinkedHashMap<>(Math.min(capacity, 1024), 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                if (size() > QueryEmbeddingCache.this.capacity) {
+                    evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /// @return the cache configured with `QUERY_CACHE_SIZE` and `QUERY_CACHE_TTL_SECONDS`, or `null` if the size is 0
+    public static QueryEmbeddingCache fromEnvironment() {
+        int capacity = Integer.parseInt(System.getenv().getOrDefault("QUERY_CACHE_SIZE", "1000"));
+        if (capacity == 0) {
+            return null;
+        }
+        return new QueryEmbeddingCache(capacity,
+            Duration.ofSeconds(Long.parseLong(System.getenv().getOrDefault("QUERY_CACHE_TTL_SECONDS", "3600"))));
+    }
+
+    /// @return the cached embedding, which must not be modified, or `null` if there is none or it has expired
+    public synchronized float[] get(String model, String query) {
+        Key key = new Key(model, normalize(query));
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        if (entry.expiresAt().isBefore(clock.instant())) {
+            entries.remove(key);
+            expirations.increment();
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry.embedding();
+    }
+
+    public synchronized void put(String model, String query, float[] embedding) {
+        entries.put(new Key(model, normalize(query)), new Entry(embedding, clock.instant().plus(ttl)));
+    }
+
+    public synchronized Stats stats() {
+        return new Stats(hits.sum(), misses.sum(), evictions.sum(), expirations.sum(), entries.size(), capacity);
+    }
+
+    static String normalize(String query) {
+        String normalized = Normalizer.normalize(query, Normalizer.Form.NFKC).strip().toLowerCase(Locale.ROOT);
+        return WHITESPACE.matcher(normalized).replaceAll(" ");
+    }
+
+    private record Key(String model, String query) {
+    }
+
+    private record Entry(float[] embedding, Instant expiresAt) {
+    }
+
+    public record Stats(long hits, long misses, long evictions, long expirations, int size, int capacity) {
+
+        public double hitRate() {
+            long lookups = hits + misses;
+            return lookups == 0 ? 0 : (double) hits / lookups;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d hits, %d misses (%.1f%% hit rate), %d evictions, %d expirations, %d/%d entries",
+                hits, misses, hitRate() * 100, evictions, expirations, size, capacity);
+        }
+    }
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright 2025 Piotr Przybył
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.przybyl.rag.example.utils;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/// Parses search responses with a streaming parser, straight from the HTTP response, so that neither the whole
+/// response nor a tree of it is ever held in memory. Fields other than the ones of [SearchResult] are skipped.
+final class SearchResponses {
+
+    private SearchResponses() {
+    }
+
+    static ElasticsearchConnector.ResponseReader<List<SearchResult>> searchReader(ObjectMapper objectMapper) {
+        return body -> {
+            try (JsonParser parser = objectMapper.createParser(body)) {
+                expect(parser.nextToken(), JsonToken.START_OBJECT);
+                Response response = readResponse(parser, null);
+                if (response.error() != null) {
+                    throw new IOException("Failed to search documents: " + response.error());
+                }
+                return response.results();
+            }
+        };
+    }
+
+    /// Reads the hits along with the vectors of their `_source.bodyChunks`, for rescoring them.
+    static ElasticsearchConnector.ResponseReader<List<Candidate>> candidatesReader(ObjectMapper objectMapper) {
+        return body -> {
+            try (JsonParser parser = objectMapper.createParser(body)) {
+                expect(parser.nextToken(), JsonToken.START_OBJECT);
+                List<List<float[]>> vectors = new ArrayList<>();
+                Response response = readResponse(parser, vectors);
+                if (response.error() != null) {
+                    throw new IOException("Failed to search documents: " + response.error());
+                }
+                List<Candidate> candidates = new ArrayList<>(response.results().size());
+                for (int i = 0; i < response.results().size(); i++) {
+                    candidates.add(new Candidate(response.results().get(i), vectors.get(i)));
+                }
+                return candidates;
+            }
+        };
+    }
+
+    static ElasticsearchConnector.ResponseReader<List<Response>> multiSearchReader(ObjectMapper objectMapper) {
+        return body -> parseMultiSearchResponse(objectMapper, body);
+    }
+
+    private static List<Response> parseMultiSearchResponse(ObjectMapper objectMapper, InputStream body) throws IOException {
+        List<Response> responses = new ArrayList<>();
+        try (JsonParser parser = objectMapper.createParser(body)) {
+            expect(parser.nextToken(), JsonToken.START_OBJECT);
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                parser.nextToken();
+                if ("responses".equals(field)) {
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        responses.add(readResponse(parser, null));
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        return responses;
+    }
+
+    /// Reads a search response, the parser has to be at its `START_OBJECT`.
+    ///
+    /// @param vectors if not `null`, gets the vectors of each hit, in the order of hits
+    private static Response readResponse(JsonParser parser, List<List<float[]>> vectors) throws IOException {
+        List<SearchResult> results = new ArrayList<>();
+        String error = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            parser.nextToken();
+            switch (field) {
+                case "hits" -> {
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        String hitsField = parser.currentName();
+                        parser.nextToken();
+                        if ("hits".equals(hitsField)) {
+                            expect(parser.currentToken(), JsonToken.START_ARRAY);
+                            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                                results.add(readHit(parser, vectors));
+                            }
+                        } else {
+                            parser.skipChildren();
+                        }
+                    }
+                }
+                // errors are small, so they're read as a tree to be reported
+                case "error" -> error = parser.readValueAsTree().toString();
+                default -> parser.skipChildren();
+            }
+        }
+        return new Response(error == null ? results : List.of(), error);
+    }
+
+    private static SearchResult readHit(JsonParser parser, List<List<float[]>> vectors) throws IOException {
+        List<float[]> hitVectors = new ArrayList<>();
+        String id = null;
+        float score = Float.NaN;
+        String title = null;
+        String url = null;
+        String body = "";
+        List<SearchResult.Passage> passages = new ArrayList<>();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken value = parser.nextToken();
+            switch (field) {
+                case "_id" -> id = parser.getText();
+                case "_score" -> score = value == JsonToken.VALUE_NULL ? Float.NaN : parser.getFloatValue();
+                case "fields" -> {
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        String name = parser.currentName();
+                        parser.nextToken();
+                        switch (name) {
+                            case "title" -> title = firstValue(parser);
+                            case "url" -> url = firstValue(parser);
+                            case "body" -> body = Objects.requireNonNullElse(firstValue(parser), "");
+                            default -> parser.skipChildren();
+                        }
+                    }
+                }
+                case "_source" -> {
+                    if (vectors != null) {
+                        readVectors(parser, hitVectors);
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+                case "inner_hits" -> readPassages(parser, passages);
+                default -> parser.skipChildren();
+            }
+        }
+        if (vectors != null) {
+            vectors.add(hitVectors);
+        }
+        return new SearchResult(id, title, url, body, score, passages);
+    }
+
+    /// Reads the passages from `inner_hits.bodyChunks.hits.hits[]`, each with `_score` and `fields.bodyChunks[].passage`,
+    /// the parser has to be at the `START_OBJECT` of `inner_hits`.
+    private static void readPassages(JsonParser parser, List<SearchResult.Passage> passages) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            parser.nextToken();
+            // the only inner hits requested are the ones of the nested field searched
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String hitsField = parser.currentName();
+                if (parser.nextToken() != JsonToken.START_OBJECT || !"hits".equals(hitsField)) {
+                    parser.skipChildren();
+                    continue;
+                }
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String field = parser.currentName();
+                    if (parser.nextToken() != JsonToken.START_ARRAY || !"hits".equals(field)) {
+                        parser.skipChildren();
+                        continue;
+                    }
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        SearchResult.Passage passage = readPassage(parser);
+                        if (passage != null) {
+                            passages.add(passage);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /// @return the passage of an inner hit, or `null` if it has no text
+    private static SearchResult.Passage readPassage(JsonParser parser) throws IOException {
+        float score = Float.NaN;
+        String text = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken value = parser.nextToken();
+            switch (field) {
+                case "_score" -> score = value == JsonToken.VALUE_NULL ? Float.NaN : parser.getFloatValue();
+                // nested fields come as objects: {"bodyChunks": [{"passage": ["..."]}]}
+                case "fields" -> {
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        if (parser.nextToken() != JsonToken.START_ARRAY) {
+                            parser.skipChildren();
+                            continue;
+                        }
+                        for (JsonToken chunk = parser.nextToken(); chunk != JsonToken.END_ARRAY; chunk = parser.nextToken()) {
+                            if (chunk != JsonToken.START_OBJECT) {
+                                parser.skipChildren();
+                                continue;
+                            }
+                            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                                String name = parser.currentName();
+                                parser.nextToken();
+                                if ("passage".equals(name)) {
+                                    text = firstValue(parser);
+                                } else {
+                                    parser.skipChildren();
+                                }
+                            }
+                        }
+                    }
+                }
+                default -> parser.skipChildren();
+            }
+        }
+        return text == null ? null : new SearchResult.Passage(text, score);
+    }
+
+    /// Reads `bodyChunks[].predictedValue` of the `_source`, the parser has to be at its `START_OBJECT`.
+    private static void readVectors(JsonParser parser, List<float[]> vectors) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken value = parser.nextToken();
+            if (!"bodyChunks".equals(field) || value != JsonToken.START_ARRAY) {
+                parser.skipChildren();
+                continue;
+            }
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String chunkField = parser.currentName();
+                    if (parser.nextToken() == JsonToken.START_ARRAY && "predictedValue".equals(chunkField)) {
+                        vectors.add(FloatVectors.read(parser));
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+            }
+        }
+    }
+
+    /// `fields` are always arrays, the parser has to be at the `START_ARRAY`
+    private static String firstValue(JsonParser parser) throws IOException {
+        if (parser.currentToken() != JsonToken.START_ARRAY) {
+            parser.skipChildren();
+            return null;
+        }
+        String first = null;
+        if (parser.nextToken() != JsonToken.END_ARRAY) {
+            first = parser.getValueAsString();
+            parser.skipChildren();
+            while (parser.nextToken() != JsonToken.END_ARRAY) {
+                parser.skipChildren();
+            }
+        }
+        return first;
+    }
+
+    private static void expect(JsonToken actual, JsonToken expected) throws IOException {
+        if (actual != expected) {
+            throw new IOException("Unexpected search response, expected " + expected + " but got " + actual);
+        }
+    }
+
+    /// One search response, `error` is `null` unless the search failed
+    record Response(List<SearchResult> results, String error) {
+    }
+
+    /// A hit with the vectors of its passages
+    record Candidate(SearchResult result, List<float[]> vectors) {
+    }
+}
@@ -16,11 +16,27 @@
  */
 package org.przybyl.rag.example.utils;
 
+import java.util.List;
+
+/// @param passages passages of the document which matched best, the best first, empty if the search doesn't tell;
+///                 their scores are comparable with each other, not necessarily with `score`
 public record SearchResult(
     String id,
     String title,
     String url,
     String body,
-    float score
+    float score,
+    List<Passage> passages
 ) {
+
+    public SearchResult {
+        passages = passages == null ? List.of() : List.copyOf(passages);
+    }
+
+    public SearchResult(String id, String title, String url, String body, float score) {
+        this(id, title, url, body, score, List.of());
+    }
+
+    public record Passage(String text, float score) {
+    }
 }
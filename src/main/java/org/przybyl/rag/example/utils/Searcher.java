@@ -16,80 +16,343 @@
  */
 package org.przybyl.rag.example.utils;
 
-import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.StructuredTaskScope;
+import java.util.concurrent.StructuredTaskScope.Subtask;
+import java.util.concurrent.TimeUnit;
 
 public class Searcher {
     private final Encoder encoder;
     private final ElasticsearchConnector esConnector;
     private final ObjectMapper objectMapper;
+    private final QueryEmbeddingCache queryCache;
+    private final VectorStore vectorStore;
+    private final SingleFlight<Query, List<SearchResult>> flights = new SingleFlight<>();
 
     public Searcher(Encoder encoder, ElasticsearchConnector esConnector, ObjectMapper objectMapper) {
+        this(encoder, esConnector, objectMapper, QueryEmbeddingCache.fromEnvironment());
+    }
+
+    /// @param queryCache cache of query embeddings, may be `null`
+    public Searcher(Encoder encoder, ElasticsearchConnector esConnector, ObjectMapper objectMapper, QueryEmbeddingCache queryCache) {
+        this(encoder, esConnector, objectMapper, queryCache, new ElasticsearchVectorStore(esConnector, objectMapper));
+    }
+
+    /// @param vectorStore where kNN search runs, the lexical arm of [#hybridSearch(String, String)] always goes to Elasticsearch
+    public Searcher(Encoder encoder, ElasticsearchConnector esConnector, ObjectMapper objectMapper, QueryEmbeddingCache queryCache, VectorStore vectorStore) {
         this.encoder = encoder;
         this.esConnector = esConnector;
         this.objectMapper = objectMapper;
+        this.queryCache = queryCache;
+        this.vectorStore = vectorStore;
     }
 
+    /// Searches with kNN, or with both kNN and BM25 if `SEARCH_MODE` is `hybrid`, see [#hybridSearch(String, String)].
+    ///
+    /// Concurrent searches for the same query share one search and its results, see [SingleFlight],
+    /// so a burst of the same question embeds and searches it once. The results must not be modified.
     public List<SearchResult> search(String indexName, String query) throws IOException, InterruptedException {
-        // Convert query to embedding using Ollama
-        double[] queryEmbedding = encoder.encode(query);
+        return flights.execute(new Query(indexName, query), () -> searchOnce(indexName, query));
+    }
+
+    private List<SearchResult> searchOnce(String indexName, String query) throws IOException, InterruptedException {
+        if ("hybrid".equals(System.getenv().getOrDefault("SEARCH_MODE", "knn"))) {
+            return hybridSearch(indexName, query);
+        }
+        return knnSearch(indexName, query, Integer.parseInt(System.getenv().getOrDefault("SEARCH_K", "3")));
+    }
+
+    /// Runs a lexical `match` query and a kNN query at the same time and merges their results with reciprocal
+    /// rank fusion: each document scores `1 / (SEARCH_RRF_RANK_CONSTANT + rank)` summed over both result lists.
+    /// Lexical search catches exact terms, like `JEP 444` or API names, which embeddings tend to blur.
+    ///
+    /// The lexical query doesn't wait for the query to be embedded. Each arm has its own timeout
+    /// (`SEARCH_LEXICAL_TIMEOUT_MS` and `SEARCH_KNN_TIMEOUT_MS`, the latter including embedding), and if one arm
+    /// fails or times out, the results of the other are returned on their own.
+    public List<SearchResult> hybridSearch(String indexName, String query) throws IOException, InterruptedException {
+        int k = Integer.parseInt(System.getenv().getOrDefault("SEARCH_K", "3"));
+        int window = Math.max(k, Integer.parseInt(System.getenv().getOrDefault("SEARCH_RRF_WINDOW", "10")));
+        Duration lexicalTimeout = Duration.ofMillis(Long.parseLong(System.getenv().getOrDefault("SEARCH_LEXICAL_TIMEOUT_MS", "1000")));
+        Duration knnTimeout = Duration.ofMillis(Long.parseLong(System.getenv().getOrDefault("SEARCH_KNN_TIMEOUT_MS", "2000")));
+
+        try (var scope = new StructuredTaskScope<List<SearchResult>>()) {
+            Subtask<List<SearchResult>> lexical = scope.fork(() -> withTimeout(lexicalTimeout, () -> lexicalSearch(indexName, query, window)));
+            Subtask<List<SearchResult>> knn = scope.fork(() -> withTimeout(knnTimeout, () -> knnSearch(indexName, query, window)));
+            scope.join();
+
+            boolean lexicalSucceeded = lexical.state() == Subtask.State.SUCCESS;
+            boolean knnSucceeded = knn.state() == Subtask.State.SUCCESS;
+            return fuse(lexicalSucceeded ? lexical.get() : null, lexicalSucceeded ? null : lexical.exception(),
+                knnSucceeded ? knn.get() : null, knnSucceeded ? null : knn.exception(), k);
+        }
+    }
+
+    /// Like [#search(String, String)], but made of futures, so that no thread waits while the query is embedded
+    /// or searched, and one JVM can keep thousands of searches in flight. The stages run in the executor of
+    /// the HTTP clients, see [HttpClients].
+    ///
+    /// In `hybrid` mode both arms are sent at once, with the same timeouts and fallbacks as in [#hybridSearch(String, String)].
+    /// An arm which times out has its request to Elasticsearch cancelled, rather than left running.
+    /// Concurrent searches for the same query are shared with the blocking ones too.
+    public CompletableFuture<List<SearchResult>> searchAsync(String indexName, String query) {
+        return flights.executeAsync(new Query(indexName, query), () -> searchOnceAsync(indexName, query));
+    }
+
+    private CompletableFuture<List<SearchResult>> searchOnceAsync(String indexName, String query) {
+        int k = Integer.parseInt(System.getenv().getOrDefault("SEARCH_K", "3"));
+        if (!"hybrid".equals(System.getenv().getOrDefault("SEARCH_MODE", "knn"))) {
+            return knnSearchAsync(indexName, query, k);
+        }
+        int window = Math.max(k, Integer.parseInt(System.getenv().getOrDefault("SEARCH_RRF_WINDOW", "10")));
+        long lexicalTimeoutMs = Long.parseLong(System.getenv().getOrDefault("SEARCH_LEXICAL_TIMEOUT_MS", "1000"));
+        long knnTimeoutMs = Long.parseLong(System.getenv().getOrDefault("SEARCH_KNN_TIMEOUT_MS", "2000"));
+
+        CompletableFuture<List<SearchResult>> lexical = lexicalSearchAsync(indexName, query, window)
+            .orTimeout(lexicalTimeoutMs, TimeUnit.MILLISECONDS);
+        CompletableFuture<List<SearchResult>> knn = knnSearchAsync(indexName, query, window)
+            .orTimeout(knnTimeoutMs, TimeUnit.MILLISECONDS);
+        // completes once both arms have, whether they succeeded or not
+        return CompletableFuture.allOf(lexical, knn).handle((ignored, failure) -> {
+            boolean lexicalSucceeded = lexical.state() == Future.State.SUCCESS;
+            boolean knnSucceeded = knn.state() == Future.State.SUCCESS;
+            try {
+                return fuse(lexicalSucceeded ? lexical.resultNow() : null, lexicalSucceeded ? null : lexical.exceptionNow(),
+                    knnSucceeded ? knn.resultNow() : null, knnSucceeded ? null : knn.exceptionNow(), k);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    /// Fuses results of both arms of hybrid search, or falls back to the results of the one which succeeded.
+    ///
+    /// @param lexical results of lexical search, `null` if it failed with `lexicalFailure`
+    /// @param knn     results of kNN search, `null` if it failed with `knnFailure`
+    private static List<SearchResult> fuse(List<SearchResult> lexical, Throwable lexicalFailure,
+                                           List<SearchResult> knn, Throwable knnFailure, int k) throws IOException {
+        if (lexical != null && knn != null) {
+            return reciprocalRankFusion(List.of(lexical, knn), k);
+        }
+        if (lexical != null) {
+            System.err.println("kNN search failed, using lexical results only: " + knnFailure);
+            return lexical.stream().limit(k).toList();
+        }
+        if (knn != null) {
+            System.err.println("Lexical search failed, using kNN results only: " + lexicalFailure);
+            return knn.stream().limit(k).toList();
+        }
+        IOException failure = new IOException("Both lexical and kNN search failed", knnFailure);
+        failure.addSuppressed(lexicalFailure);
+        throw failure;
+    }
+
+    /// Searches for all the queries with kNN: they're embedded in batches and, with Elasticsearch, searched with
+    /// one `_msearch` request. Embeddings of the queries go to the query cache too, so this can warm it up.
+    ///
+    /// @return results of each query, in the order of queries, a query whose search failed has no results
+    public List<List<SearchResult>> searchAll(String indexName, List<String> queries) throws IOException, InterruptedException {
+        int k = Integer.parseInt(System.getenv().getOrDefault("SEARCH_K", "3"));
+        List<float[]> queryEmbeddings = embedAll(queries);
+        if (!(vectorStore instanceof ElasticsearchVectorStore elasticsearch)) {
+            List<List<SearchResult>> results = new ArrayList<>(queries.size());
+            for (float[] queryEmbedding : queryEmbeddings) {
+                results.add(vectorStore.search(indexName, queryEmbedding, k));
+            }
+            return results;
+        }
+
+        List<SearchResponses.Response> responses = elasticsearch.searchAll(indexName, queryEmbeddings, k);
+        List<List<SearchResult>> results = new ArrayList<>(queries.size());
+        for (int i = 0; i < queries.size(); i++) {
+            SearchResponses.Response response = i < responses.size() ? responses.get(i) : new SearchResponses.Response(List.of(), "no response");
+            if (response.error() != null) {
+                System.err.printf("Search for \"%s\" failed: %s%n", queries.get(i), response.error());
+            }
+            results.add(response.results());
+        }
+        return results;
+    }
+
+    private List<float[]> embedAll(List<String> queries) {
+        float[][] embeddings = new float[queries.size()][];
+        List<Integer> missing = new ArrayList<>();
+        for (int i = 0; i < queries.size(); i++) {
+            embeddings[i] = queryCache == null ? null : queryCache.get(encoder.model(), queries.get(i));
+            if (embeddings[i] == null) {
+                missing.add(i);
+            }
+        }
+        List<float[]> embedded = encoder.encodeAll(missing.stream().map(queries::get).toList());
+        for (int i = 0; i < missing.size(); i++) {
+            int query = missing.get(i);
+            embeddings[query] = embedded.get(i);
+            if (queryCache != null) {
+                queryCache.put(encoder.model(), queries.get(query), embedded.get(i));
+            }
+        }
+        return Arrays.asList(embeddings);
+    }
 
-        // Create kNN search query
-        String searchQuery = createKnnQuery(queryEmbedding);
-        String searchResponse = esConnector.searchWithCustomQuery(indexName, searchQuery);
+    private List<SearchResult> knnSearch(String indexName, String query, int k) throws IOException, InterruptedException {
+        // Convert query to embedding using Ollama, unless it's been asked recently
+        float[] queryEmbedding = embed(query);
 
-        // Parse response and return top 3 results
-        JsonNode searchResponseJson = objectMapper.readTree(searchResponse);
-        return parseSearchResponse(searchResponseJson);
+        return vectorStore.search(indexName, queryEmbedding, k);
     }
 
-    private String createKnnQuery(double[] queryEmbedding) {
-        // Convert queryEmbedding to JSON array as string
-        String queryVector = objectMapper.valueToTree(queryEmbedding).toString();
+    /// Completing the returned future early, e.g. by `orTimeout`, cancels the vector search in flight, or skips it
+    /// if the query is still being embedded. The embedding itself goes on, since other searches may share it.
+    private CompletableFuture<List<SearchResult>> knnSearchAsync(String indexName, String query, int k) {
+        CompletableFuture<List<SearchResult>> results = new CompletableFuture<>();
+        embedAsync(query).whenComplete((queryEmbedding, embeddingFailure) -> {
+            if (embeddingFailure != null) {
+                results.completeExceptionally(embeddingFailure);
+                return;
+            }
+            if (results.isDone()) {
+                return;
+            }
+            CompletableFuture<List<SearchResult>> search = vectorStore.searchAsync(indexName, queryEmbedding, k);
+            results.whenComplete((ignored, failure) -> {
+                if (failure != null) {
+                    search.cancel(true);
+                }
+            });
+            search.whenComplete((found, searchFailure) -> {
+                if (searchFailure != null) {
+                    results.completeExceptionally(searchFailure);
+                } else {
+                    results.complete(found);
+                }
+            });
+        });
+        return results;
+    }
+
+    private List<SearchResult> lexicalSearch(String indexName, String query, int size) throws IOException, InterruptedException {
+        return esConnector.searchWithCustomQuery(indexName, lexicalQuery(query, size), SearchResponses.searchReader(objectMapper));
+    }
 
+    private CompletableFuture<List<SearchResult>> lexicalSearchAsync(String indexName, String query, int size) {
+        try {
+            return esConnector.searchAsync(indexName, lexicalQuery(query, size), SearchResponses.searchReader(objectMapper));
+        } catch (JsonProcessingException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    private String lexicalQuery(String query, int size) throws JsonProcessingException {
         return String.format("""
                 {
                   "_source": false,
                   "fields": ["title", "url", "body"],
-                  "knn": {
-                    "field": "bodyChunks.predictedValue",
-                    "k": %s,
-                    "num_candidates": %s,
-                    "query_vector": %s
+                  "size": %d,
+                  "query": {
+                    "bool": {
+                      "should": [
+                        {"match": {"title": {"query": %s, "boost": 2}}},
+                        {"match": {"body": {"query": %s}}}
+                      ]
+                    }
                   }
                 }
                 """,
-            System.getenv().getOrDefault("SEARCH_K", "3"),
-            System.getenv().getOrDefault("SEARCH_NUM_CANDIDATES", "100"),
-            queryVector
+            size,
+            objectMapper.writeValueAsString(query),
+            objectMapper.writeValueAsString(query)
         );
     }
 
-    private List<SearchResult> parseSearchResponse(JsonNode response) {
-        List<SearchResult> results = new ArrayList<>();
-        JsonNode hits = response.get("hits").get("hits");
+    /// Runs the task in a scope of its own, so that it's cancelled once the timeout passes
+    private static <T> T withTimeout(Duration timeout, Callable<T> task) throws Exception {
+        try (var scope = new StructuredTaskScope.ShutdownOnFailure()) {
+            Subtask<T> subtask = scope.fork(task);
+            scope.joinUntil(Instant.now().plus(timeout));
+            scope.throwIfFailed();
+            return subtask.get();
+        }
+    }
+
+    /// Ranks are what counts, so scores of different scales (BM25 and vector similarity) don't need normalizing
+    private static List<SearchResult> reciprocalRankFusion(List<List<SearchResult>> rankings, int k) {
+        int rankConstant = Integer.parseInt(System.getenv().getOrDefault("SEARCH_RRF_RANK_CONSTANT", "60"));
+        Map<String, SearchResult> documents = new LinkedHashMap<>();
+        Map<String, Float> scores = new HashMap<>();
+        for (List<SearchResult> ranking : rankings) {
+            for (int rank = 0; rank < ranking.size(); rank++) {
+                SearchResult result = ranking.get(rank);
+                // lexical hits have no passages, so the ones of the kNN hit are kept
+                documents.merge(result.id(), result, (kept, other) -> kept.passages().isEmpty() ? other : kept);
+                scores.merge(result.id(), 1f / (rankConstant + rank + 1), Float::sum);
+            }
+        }
+        return documents.values().stream()
+            .map(result -> new SearchResult(result.id(), result.title(), result.url(), result.body(), scores.get(result.id()), result.passages()))
+            .sorted(Comparator.comparingDouble(SearchResult::score).reversed())
+            .limit(k)
+            .toList();
+    }
 
-        for (JsonNode hit : hits) {
-            JsonNode fields = hit.get("fields");
-            float score = hit.get("_score").floatValue();
+    /// @return statistics of the query embedding cache, or `null` if there is no cache
+    public QueryEmbeddingCache.Stats queryCacheStats() {
+        return queryCache == null ? null : queryCache.stats();
+    }
+
+    /// @return how many searches shared the results of another one
+    public SingleFlight.Stats searchCoalescingStats() {
+        return flights.stats();
+    }
 
-            var bodyNode = fields.get("body");
-            String body = bodyNode != null && bodyNode.isArray() && bodyNode.size() > 0 ? bodyNode.get(0).asText() : "";
+    /// @return how many query embeddings shared the request of another one, or `null` if there is no encoder
+    public SingleFlight.Stats embeddingCoalescingStats() {
+        return encoder == null ? null : encoder.coalescingStats();
+    }
 
-            results.add(new SearchResult(
-                hit.get("_id").asText(),
-                fields.get("title").get(0).asText(),
-                fields.get("url").get(0).asText(),
-                body,
-                score
-            ));
+    /// Embeds the query the way [#search(String, String)] does, using the query cache if there is one.
+    public float[] embed(String query) {
+        if (queryCache == null) {
+            return encoder.encode(query);
+        }
+        float[] cached = queryCache.get(encoder.model(), query);
+        if (cached != null) {
+            return cached;
         }
+        float[] embedding = encoder.encode(query);
+        queryCache.put(encoder.model(), query, embedding);
+        return embedding;
+    }
 
-        return results;
+    /// Like [#embed(String)], but without waiting for the embedding service.
+    public CompletableFuture<float[]> embedAsync(String query) {
+        if (queryCache == null) {
+            return encoder.encodeAsync(query);
+        }
+        float[] cached = queryCache.get(encoder.model(), query);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        return encoder.encodeAsync(query).thenApply(embedding -> {
+            queryCache.put(encoder.model(), query, embedding);
+            return embedding;
+        });
     }
 
+    private record Query(String indexName, String query) {
+    }
 }
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2025 Piotr Przybył
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.przybyl.rag.example.utils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/// Cache of generated answers, looked up by the meaning of the question rather than its exact text.
+///
+/// A cached answer is replayed when the embedding of a new question is close enough to the cached one
+/// (cosine similarity at least the threshold) and retrieval found the same documents, in the same order,
+/// so the prompt would have had the same context. Entries expire after the TTL, and the least recently used
+/// ones are evicted to keep both the number of entries and their approximate size within limits.
+/// All entries are dropped when the search index is rebuilt, which is detected by its UUID, see [#useIndex(String)].
+///
+/// Since each run of the RAG demo answers one question, the cache can be persisted to a file between runs.
+public class SemanticAnswerCache {
+
+    private final Path path;
+    private final int capacity;
+    private final long maxBytes;
+    private final Duration ttl;
+    private final float threshold;
+    private final Clock clock;
+    private final ObjectMapper objectMapper;
+    private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private String indexGeneration;
+    private long nextId;
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long invalidations;
+
+    /// @param path      file the cache is loaded from and saved to, `null` to keep it in memory only
+    /// @param threshold minimum cosine similarity of questions for an answer to be reused
+    public SemanticAnswerCache(Path path, int capacity, long maxBytes, Duration ttl, float threshold, ObjectMapper objectMapper, Clock clock) throws IOException {
+        if (capacity < 1 || maxBytes < 1) {
+            throw new IllegalArgumentException("Capacity and size limit of the answer cache must be at least 1");
+        }
+        this.path = path;
+        this.capacity = capacity;
+        this.maxBytes = maxBytes;
+        this.ttl = ttl;
+        this.threshold = threshold;
+        this.objectMapper = objectMapper;
+        this.clock = clock;
+        if (path != null && Files.exists(path)) {
+            load();
+        }
+    }
+
+    /// @return the cache configured with `ANSWER_CACHE_*` variables, or `null` if `ANSWER_CACHE_SIZE` is 0
+    public static SemanticAnswerCache fromEnvironment(ObjectMapper objectMapper) throws IOException {
+        int capacity = Integer.parseInt(System.getenv().getOrDefault("ANSWER_CACHE_SIZE", "500"));
+        if (capacity == 0) {
+            return null;
+        }
+        String path = System.getenv("ANSWER_CACHE_PATH");
+        return new SemanticAnswerCache(
+            path == null ? null : Path.of(path),
+            capacity,
+            Long.parseLong(System.getenv().getOrDefault("ANSWER_CACHE_MAX_BYTES", String.valueOf(16 * 1024 * 1024))),
+            Duration.ofSeconds(Long.parseLong(System.getenv().getOrDefault("ANSWER_CACHE_TTL_SECONDS", "86400"))),
+            Float.parseFloat(System.getenv().getOrDefault("ANSWER_CACHE_SIMILARITY", "0.95")),
+            objectMapper,
+            Clock.systemUTC());
+    }
+
+    /// Drops all entries if the answers were generated from another generation of the index, e.g. its previous UUID.
+    public synchronized void useIndex(String generation) {
+        if (generation.equals(indexGeneration)) {
+            return;
+        }
+        if (!entries.isEmpty()) {
+            invalidations++;
+            entries.clear();
+            bytes = 0;
+        }
+        indexGeneration = generation;
+    }
+
+    /// @return tokens of the answer to the most similar question retrieving the same documents, or `null` if there's none
+    public synchronized List<String> lookup(float[] questionEmbedding, List<String> documentIds) {
+        float[] question = VectorMath.normalize(questionEmbedding);
+        long expiredBefore = clock.millis() - ttl.toMillis();
+        Long bestId = null;
+        float bestSimilarity = threshold;
+        for (Iterator<Map.Entry<Long, Entry>> it = entries.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Long, Entry> cached = it.next();
+            Entry entry = cached.getValue();
+            if (entry.createdAt() < expiredBefore) {
+                it.remove();
+                bytes -= entry.bytes();
+                continue;
+            }
+            if (!entry.documentIds().equals(documentIds)) {
+                continue;
+            }
+            float similarity = dot(question, entry.embedding());
+            if (similarity >= bestSimilarity) {
+                bestSimilarity = similarity;
+                bestId = cached.getKey();
+            }
+        }
+        if (bestId == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        // get() marks the entry as recently used
+        return entries.get(bestId).tokens();
+    }
+
+    public synchronized void put(float[] questionEmbedding, List<String> documentIds, List<String> tokens) {
+        Entry entry = new Entry(VectorMath.normalize(questionEmbedding), List.copyOf(documentIds), List.copyOf(tokens), clock.millis());
+        entries.put(nextId++, entry);
+        bytes += entry.bytes();
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (entries.size() > capacity || bytes > maxBytes) {
+            bytes -= eldest.next().bytes();
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    /// Writes the cache to its file, if it has one. The file is replaced atomically, so a crash can't corrupt it.
+    public synchronized void save() throws IOException {
+        if (path == null) {
+            return;
+        }
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        objectMapper.writeValue(temp.toFile(), new State(indexGeneration, new ArrayList<>(entries.values())));
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public synchronized Stats stats() {
+        return new Stats(hits, misses, evictions, invalidations, entries.size(), bytes);
+    }
+
+    private void load() throws IOException {
+        State state = objectMapper.readValue(path.toFile(), State.class);
+        indexGeneration = state.indexGeneration();
+        // entries were saved from the least to the most recently used
+        for (Entry entry : state.entries()) {
+            entries.put(nextId++, entry);
+            bytes += entry.bytes();
+        }
+    }
+
+    /// Cosine similarity, as both vectors are of unit length
+    private static float dot(float[] a, float[] b) {
+        if (a.length != b.length) {
+            return -1;
+        }
+        float sum = 0;
+        for (int i = 0; i < a.length; i++) {
+            sum += a[i] * b[i];
+        }
+        return sum;
+    }
+
+    private record State(String indexGeneration, List<Entry> entries) {
+    }
+
+    private record Entry(
+        @JsonDeserialize(using = FloatVectors.Deserializer.class)
+        float[] embedding,
+        List<String> documentIds,
+        List<String> tokens,
+        long createdAt
+    ) {
+
+        /// Rough heap size, chars are counted as two bytes
+        long bytes() {
+            long size = 64 + (long) embedding.length * Float.BYTES;
+            for (String id : documentIds) {
+                size += 40 + 2L * id.length();
+            }
+            for (String token : tokens) {
+                size += 40 + 2L * token.length();
+            }
+            return size;
+        }
+    }
+
+    public record Stats(long hits, long misses, long evictions, long invalidations, int size, long bytes) {
+
+        public double hitRate() {
+            long lookups = hits + misses;
+            return lookups == 0 ? 0 : (double) hits / lookups;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d hits, %d misses (%.1f%% hit rate), %d evictions, %d invalidations, %d entries, %d bytes",
+                hits, misses, hitRate() * 100, evictions, invalidations, size, bytes);
+        }
+    }
+}
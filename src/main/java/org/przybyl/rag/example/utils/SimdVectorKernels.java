@@ -0,0 +1,144 @@
+/*
+ * Copyright 2025 Piotr Przybył
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.przybyl.rag.example.utils;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteOrder;
+
+/// [VectorMath] loops on the widest SIMD lanes of the CPU, with the tails of the vectors done one by one.
+/// Products are summed with fused multiply-add, lane by lane, and the lanes are added up at the end.
+final class SimdVectorKernels implements VectorMath.Kernels {
+
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+
+    @Override
+    public float dot(float[] a, float[] b) {
+        FloatVector sums = FloatVector.zero(SPECIES);
+        int i = 0;
+        for (int bound = SPECIES.loopBound(a.length); i < bound; i += SPECIES.length()) {
+            sums = FloatVector.fromArray(SPECIES, a, i).fma(FloatVector.fromArray(SPECIES, b, i), sums);
+        }
+        float sum = sums.reduceLanes(VectorOperators.ADD);
+        for (; i < a.length; i++) {
+            sum += a[i] * b[i];
+        }
+        return sum;
+    }
+
+    @Override
+    public float cosine(float[] a, float[] b) {
+        FloatVector dots = FloatVector.zero(SPECIES);
+        FloatVector normsA = FloatVector.zero(SPECIES);
+        FloatVector normsB = FloatVector.zero(SPECIES);
+        int i = 0;
+        for (int bound = SPECIES.loopBound(a.length); i < bound; i += SPECIES.length()) {
+            FloatVector va = FloatVector.fromArray(SPECIES, a, i);
+            FloatVector vb = FloatVector.fromArray(SPECIES, b, i);
+            dots = va.fma(vb, dots);
+            normsA = va.fma(va, normsA);
+            normsB = vb.fma(vb, normsB);
+        }
+        float dot = dots.reduceLanes(VectorOperators.ADD);
+        float normA = normsA.reduceLanes(VectorOperators.ADD);
+        float normB = normsB.reduceLanes(VectorOperators.ADD);
+        for (; i < a.length; i++) {
+            dot += a[i] * b[i];
+            normA += a[i] * a[i];
+            normB += b[i] * b[i];
+        }
+        return VectorMath.cosine(dot, normA, normB);
+    }
+
+    @Override
+    public float squareDistance(float[] a, float[] b) {
+        FloatVector sums = FloatVector.zero(SPECIES);
+        int i = 0;
+        for (int bound = SPECIES.loopBound(a.length); i < bound; i += SPECIES.length()) {
+            FloatVector difference = FloatVector.fromArray(SPECIES, a, i).sub(FloatVector.fromArray(SPECIES, b, i));
+            sums = difference.fma(difference, sums);
+        }
+        float sum = sums.reduceLanes(VectorOperators.ADD);
+        for (; i < a.length; i++) {
+            float difference = a[i] - b[i];
+            sum += difference * difference;
+        }
+        return sum;
+    }
+
+    @Override
+    public float dot(float[] query, MemorySegment segment, long offset) {
+        FloatVector sums = FloatVector.zero(SPECIES);
+        int i = 0;
+        for (int bound = SPECIES.loopBound(query.length); i < bound; i += SPECIES.length()) {
+            sums = FloatVector.fromArray(SPECIES, query, i).fma(load(segment, offset, i), sums);
+        }
+        float sum = sums.reduceLanes(VectorOperators.ADD);
+        for (; i < query.length; i++) {
+            sum += query[i] * segment.get(VectorMath.FLOAT, offset + (long) i * Float.BYTES);
+        }
+        return sum;
+    }
+
+    @Override
+    public float cosine(float[] query, MemorySegment segment, long offset) {
+        FloatVector dots = FloatVector.zero(SPECIES);
+        FloatVector normsA = FloatVector.zero(SPECIES);
+        FloatVector normsB = FloatVector.zero(SPECIES);
+        int i = 0;
+        for (int bound = SPECIES.loopBound(query.length); i < bound; i += SPECIES.length()) {
+            FloatVector va = FloatVector.fromArray(SPECIES, query, i);
+            FloatVector vb = load(segment, offset, i);
+            dots = va.fma(vb, dots);
+            normsA = va.fma(va, normsA);
+            normsB = vb.fma(vb, normsB);
+        }
+        float dot = dots.reduceLanes(VectorOperators.ADD);
+        float normA = normsA.reduceLanes(VectorOperators.ADD);
+        float normB = normsB.reduceLanes(VectorOperators.ADD);
+        for (; i < query.length; i++) {
+            float value = segment.get(VectorMath.FLOAT, offset + (long) i * Float.BYTES);
+            dot += query[i] * value;
+            normA += query[i] * query[i];
+            normB += value * value;
+        }
+        return VectorMath.cosine(dot, normA, normB);
+    }
+
+    @Override
+    public float squareDistance(float[] query, MemorySegment segment, long offset) {
+        FloatVector sums = FloatVector.zero(SPECIES);
+        int i = 0;
+        for (int bound = SPECIES.loopBound(query.length); i < bound; i += SPECIES.length()) {
+            FloatVector difference = FloatVector.fromArray(SPECIES, query, i).sub(load(segment, offset, i));
+            sums = difference.fma(difference, sums);
+        }
+        float sum = sums.reduceLanes(VectorOperators.ADD);
+        for (; i < query.length; i++) {
+            float difference = query[i] - segment.get(VectorMath.FLOAT, offset + (long) i * Float.BYTES);
+            sum += difference * difference;
+        }
+        return sum;
+    }
+
+    private static FloatVector load(MemorySegment segment, long offset, int index) {
+        return FloatVector.fromMemorySegment(SPECIES, segment, offset + (long) index * Float.BYTES, ByteOrder.LITTLE_ENDIAN);
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2025 Piotr Przybył
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.przybyl.rag.example.utils;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/// Coalesces identical concurrent calls: while a call for a key is in flight, other calls for the same key don't
+/// start their own, but wait for it and share its result or failure. Once it completes, the next call for the key
+/// starts a new one, so nothing is cached beyond the flight itself.
+///
+/// Flights are kept in a [ConcurrentHashMap], which locks per bin, so calls for different keys don't contend.
+/// Blocking and asynchronous calls share the flights, so a blocking call may wait for an asynchronous one and vice versa.
+/// Results are shared rather than copied, so they must not be modified.
+public class SingleFlight<K, V> {
+    private final ConcurrentMap<K, CompletableFuture<V>> flights = new ConcurrentHashMap<>();
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder collapsed = new LongAdder();
+
+    /// Runs the call in the current thread, unless one for the same key is in flight already, in which case its result is awaited.
+    ///
+    /// @throws IOException when the shared call failed with one, wrapped so that the stack trace shows the waiting thread too
+    public V execute(K key, Call<V> call) throws IOException, InterruptedException {
+        CompletableFuture<V> flight = new CompletableFuture<>();
+        CompletableFuture<V> existing = flights.putIfAbsent(key, flight);
+        if (existing != null) {
+            collapsed.increment();
+            return await(existing);
+        }
+        calls.increment();
+        try {
+            V result = call.call();
+            land(key, flight, result, null);
+            return result;
+        } catch (Throwable e) {
+            land(key, flight, null, e);
+            throw e;
+        }
+    }
+
+    /// Starts the call, unless one for the same key is in flight already, in which case its future is shared.
+    /// Every caller gets a future of its own, so completing or timing it out doesn't affect the others.
+    public CompletableFuture<V> executeAsync(K key, Supplier<CompletableFuture<V>> call) {
+        CompletableFuture<V> flight = new CompletableFuture<>();
+        CompletableFuture<V> existing = flights.putIfAbsent(key, flight);
+        if (existing != null) {
+            collapsed.increment();
+            return existing.copy();
+        }
+        calls.increment();
+        CompletableFuture<V> result;
+        try {
+            result = call.get();
+        } catch (RuntimeException e) {
+            result = CompletableFuture.failedFuture(e);
+        }
+        result.whenComplete((value, failure) -> land(key, flight, value, failure));
+        return flight.copy();
+    }
+
+    public Stats stats() {
+        return new Stats(calls.sum(), collapsed.sum(), flights.size());
+    }
+
+    /// Removed before being completed, so that callers arriving afterwards start a new call rather than reuse the result
+    private void land(K key, CompletableFuture<V> flight, V result, Throwable failure) {
+        flights.remove(key, flight);
+        if (failure == null) {
+            flight.complete(result);
+        } else {
+            flight.completeExceptionally(failure);
+        }
+    }
+
+    private static <V> V await(CompletableFuture<V> flight) throws IOException, InterruptedException {
+        try {
+            return flight.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException io) {
+                throw new IOException(io.getMessage(), io);
+            }
+            if (cause instanceof RuntimeException runtime) {
+                throw runtime;
+            }
+            if (cause instanceof Error error) {
+                throw error;
+            }
+            // the thread which made the call was interrupted, not this one
+            throw new IOException("Shared call failed: " + cause, cause);
+        }
+    }
+
+    @FunctionalInterface
+    public interface Call<V> {
+        V call() throws IOException, InterruptedException;
+    }
+
+    /// @param calls     calls which were made
+    /// @param collapsed calls which shared the result of another one instead
+    /// @param inFlight  calls in flight right now
+    public record Stats(long calls, long collapsed, int inFlight) {
+
+        public double collapsedRate() {
+            long requests = calls + collapsed;
+            return requests == 0 ? 0 : (double) collapsed / requests;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d calls, %d collapsed (%.1f%%), %d in flight", calls, collapsed, collapsedRate() * 100, inFlight);
+        }
+    }
+}
@@ -34,4 +34,9 @@ public interface TextGenerationService {
      * @throws InterruptedException if the request is interrupted
      */
     Stream<String> generate(String prompt, Map<String, ?> options) throws IOException, InterruptedException;
+
+    /**
+     * @return timings of the answers generated so far
+     */
+    GenerationMetrics metrics();
 }
\ No newline at end of file
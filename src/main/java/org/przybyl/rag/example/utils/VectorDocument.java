@@ -0,0 +1,39 @@
+/*
+ * Copyright 2025 Piotr Przybył
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.przybyl.rag.example.utils;
+
+import java.util.List;
+
+/// A document with the embeddings of its passages, see [WritableVectorStore].
+///
+/// @param vectors     embeddings of the passages, in the order of `passages`
+/// @param passages    passages of the body the vectors were computed from, empty if a store doesn't need them
+/// @param titleVector embedding of the title, `null` if there is none
+public record VectorDocument(String id, String title, String url, String body, List<float[]> vectors, List<String> passages, float[] titleVector) {
+
+    public VectorDocument {
+        vectors = List.copyOf(vectors);
+        passages = List.copyOf(passages);
+        if (!passages.isEmpty() && passages.size() != vectors.size()) {
+            throw new IllegalArgumentException("Document " + id + " has " + passages.size() + " passages and " + vectors.size() + " vectors");
+        }
+    }
+
+    public VectorDocument(String id, String title, String url, String body, List<float[]> vectors) {
+        this(id, title, url, body, vectors, List.of(), null);
+    }
+}
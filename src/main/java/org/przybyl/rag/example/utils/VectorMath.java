@@ -0,0 +1,234 @@
+/*
+ * Copyright 2025 Piotr Przybył
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.przybyl.rag.example.utils;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.util.Locale;
+
+/// Exact similarities of `float[]` vectors, and of vectors stored in a [MemorySegment] as little-endian floats.
+///
+/// With `--add-modules jdk.incubator.vector` the loops run on SIMD lanes of the Java Vector API, otherwise
+/// on plain scalar loops, which give the same results up to float rounding.
+public final class VectorMath {
+
+    /// Layout of vector components in memory segments
+    public static final ValueLayout.OfFloat FLOAT = ValueLayout.JAVA_FLOAT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+    private static final Kernels KERNELS = ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()
+        ? new SimdVectorKernels()
+        : new ScalarKernels();
+
+    private VectorMath() {
+    }
+
+    /// @return `simd` or `scalar`, depending on which loops are used
+    public static String implementation() {
+        return KERNELS instanceof ScalarKernels ? "scalar" : "simd";
+    }
+
+    public static float dot(float[] a, float[] b) {
+        checkDims(a.length, b.length);
+        return KERNELS.dot(a, b);
+    }
+
+    /// @return cosine of the angle between the vectors, 0 if either of them is all zeros
+    public static float cosine(float[] a, float[] b) {
+        checkDims(a.length, b.length);
+        return KERNELS.cosine(a, b);
+    }
+
+    /// @return Euclidean distance between the vectors
+    public static float l2(float[] a, float[] b) {
+        checkDims(a.length, b.length);
+        return (float) Math.sqrt(KERNELS.squareDistance(a, b));
+    }
+
+    /// @return a copy of the vector scaled to unit length, all zeros if the vector is all zeros
+    public static float[] normalize(float[] vector) {
+        float[] unit = new float[vector.length];
+        float norm = (float) Math.sqrt(KERNELS.dot(vector, vector));
+        if (norm == 0) {
+            return unit;
+        }
+        float scale = 1 / norm;
+        for (int i = 0; i < vector.length; i++) {
+            unit[i] = vector[i] * scale;
+        }
+        return unit;
+    }
+
+    /// @param offset byte offset of the vector in the segment, it has as many components as the query
+    public static float dot(float[] query, MemorySegment segment, long offset) {
+        return KERNELS.dot(query, segment, offset);
+    }
+
+    public static float cosine(float[] query, MemorySegment segment, long offset) {
+        return KERNELS.cosine(query, segment, offset);
+    }
+
+    public static float l2(float[] query, MemorySegment segment, long offset) {
+        return (float) Math.sqrt(KERNELS.squareDistance(query, segment, offset));
+    }
+
+    private static void checkDims(int a, int b) {
+        if (a != b) {
+            throw new IllegalArgumentException("Vectors have different dimensions: " + a + " and " + b);
+        }
+    }
+
+    /// Similarities named and scored the way Elasticsearch scores `dense_vector` fields, so higher is always closer
+    /// and scores can be compared with the ones Elasticsearch returns.
+    public enum Similarity {
+        /// `(1 + dot) / 2`, for unit vectors
+        DOT_PRODUCT {
+            @Override
+            public float score(float[] a, float[] b) {
+                return (1 + dot(a, b)) / 2;
+            }
+
+            @Override
+            public float score(float[] query, MemorySegment segment, long offset) {
+                return (1 + dot(query, segment, offset)) / 2;
+            }
+        },
+        /// `(1 + cosine) / 2`
+        COSINE {
+            @Override
+            public float score(float[] a, float[] b) {
+                return (1 + cosine(a, b)) / 2;
+            }
+
+            @Override
+            public float score(float[] query, MemorySegment segment, long offset) {
+                return (1 + cosine(query, segment, offset)) / 2;
+            }
+        },
+        /// `1 / (1 + l2^2)`
+        L2_NORM {
+            @Override
+            public float score(float[] a, float[] b) {
+                checkDims(a.length, b.length);
+                return 1 / (1 + KERNELS.squareDistance(a, b));
+            }
+
+            @Override
+            public float score(float[] query, MemorySegment segment, long offset) {
+                return 1 / (1 + KERNELS.squareDistance(query, segment, offset));
+            }
+        };
+
+        public abstract float score(float[] a, float[] b);
+
+        public abstract float score(float[] query, MemorySegment segment, long offset);
+
+        /// @param name as in the `similarity` of a `dense_vector` mapping, e.g. `dot_product`
+        public static Similarity of(String name) {
+            return valueOf(name.toUpperCase(Locale.ROOT));
+        }
+    }
+
+    /// The loops, the SIMD ones are in a class of their own, which isn't loaded without the incubator module.
+    interface Kernels {
+
+        float dot(float[] a, float[] b);
+
+        float cosine(float[] a, float[] b);
+
+        float squareDistance(float[] a, float[] b);
+
+        float dot(float[] query, MemorySegment segment, long offset);
+
+        float cosine(float[] query, MemorySegment segment, long offset);
+
+        float squareDistance(float[] query, MemorySegment segment, long offset);
+    }
+
+    private static final class ScalarKernels implements Kernels {
+
+        @Override
+        public float dot(float[] a, float[] b) {
+            float sum = 0;
+            for (int i = 0; i < a.length; i++) {
+                sum += a[i] * b[i];
+            }
+            return sum;
+        }
+
+        @Override
+        public float cosine(float[] a, float[] b) {
+            float dot = 0;
+            float normA = 0;
+            float normB = 0;
+            for (int i = 0; i < a.length; i++) {
+                dot += a[i] * b[i];
+                normA += a[i] * a[i];
+                normB += b[i] * b[i];
+            }
+            return VectorMath.cosine(dot, normA, normB);
+        }
+
+        @Override
+        public float squareDistance(float[] a, float[] b) {
+            float sum = 0;
+            for (int i = 0; i < a.length; i++) {
+                float difference = a[i] - b[i];
+                sum += difference * difference;
+            }
+            return sum;
+        }
+
+        @Override
+        public float dot(float[] query, MemorySegment segment, long offset) {
+            float sum = 0;
+            for (int i = 0; i < query.length; i++) {
+                sum += query[i] * segment.get(FLOAT, offset + (long) i * Float.BYTES);
+            }
+            return sum;
+        }
+
+        @Override
+        public float cosine(float[] query, MemorySegment segment, long offset) {
+            float dot = 0;
+            float normA = 0;
+            float normB = 0;
+            for (int i = 0; i < query.length; i++) {
+                float value = segment.get(FLOAT, offset + (long) i * Float.BYTES);
+                dot += query[i] * value;
+                normA += query[i] * query[i];
+                normB += value * value;
+            }
+            return VectorMath.cosine(dot, normA, normB);
+        }
+
+        @Override
+        public float squareDistance(float[] query, MemorySegment segment, long offset) {
+            float sum = 0;
+            for (int i = 0; i < query.length; i++) {
+                float difference = query[i] - segment.get(FLOAT, offset + (long) i * Float.BYTES);
+                sum += difference * difference;
+            }
+            return sum;
+        }
+    }
+
+    static float cosine(float dot, float normA, float normB) {
+        float norms = (float) Math.sqrt((double) normA * normB);
+        return norms == 0 ? 0 : dot / norms;
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2025 Piotr Przybył
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.przybyl.rag.example.utils;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/// Where documents are retrieved from by their embeddings. Stores documents can be added to are [WritableVectorStore]s.
+///
+/// A document is found by the closest of its vectors, so a document split into passages is returned once,
+/// scored by its best matching passage.
+///
+/// @see ElasticsearchVectorStore
+/// @see HnswVectorStore
+/// @see FlatVectorStore
+public interface VectorStore {
+
+    /// @return at most `k` documents closest to the query vector, the closest first
+    List<SearchResult> search(String indexName, float[] queryVector, int k) throws IOException, InterruptedException;
+
+    /// Like [#search(String, float[], int)], but without blocking the calling thread.
+    /// By default the search runs in [HttpClients#executor()], which suits stores searching in memory.
+    /// Stores sending the search elsewhere should cancel it when the returned future is completed first,
+    /// e.g. by a caller's timeout.
+    default CompletableFuture<List<SearchResult>> searchAsync(String indexName, float[] queryVector, int k) {
+        return HttpClients.supplyAsync(() -> search(indexName, queryVector, k));
+    }
+}
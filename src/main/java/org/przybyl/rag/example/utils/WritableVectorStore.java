@@ -0,0 +1,30 @@
+/*
+ * Copyright 2025 Piotr Przybył
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.przybyl.rag.example.utils;
+
+import java.io.IOException;
+import java.util.List;
+
+/// [VectorStore] which documents can be added to. Stores over data written by something else, like [FlatVectorStore], are read-only.
+public interface WritableVectorStore extends VectorStore {
+
+    /// Creates the index, if the store needs it created before documents are added.
+    void createIndex(String indexName, DenseVectorMapping mapping) throws IOException, InterruptedException;
+
+    /// Adds the documents to the index, replacing the ones with the same ids.
+    void upsert(String indexName, List<VectorDocument> documents) throws IOException, InterruptedException;
+}
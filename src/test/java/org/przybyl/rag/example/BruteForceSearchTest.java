@@ -0,0 +1,53 @@
+package org.przybyl.rag.example;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import org.junit.jupiter.api.Test;
+import org.przybyl.rag.example.utils.BruteForceSearch;
+import org.przybyl.rag.example.utils.VectorMath;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+class BruteForceSearchTest {
+
+    @Test
+    void shouldFindSameTopKInListAndSegmentAcrossWorkers() {
+        // given: enough vectors to be split across workers
+        Random random = new Random(3);
+        int dims = 8;
+        List<float[]> vectors = new ArrayList<>();
+        for (int i = 0; i < 20_000; i++) {
+            float[] vector = new float[dims];
+            IntStream.range(0, dims).forEach(d -> vector[d] = (float) random.nextGaussian());
+            vectors.add(vector);
+        }
+        float[] query = vectors.get(12_345).clone();
+        List<Integer> expected = IntStream.range(0, vectors.size()).boxed()
+            .sorted(Comparator.comparingDouble((Integer i) -> VectorMath.cosine(query, vectors.get(i))).reversed())
+            .limit(5)
+            .toList();
+
+        try (Arena arena = Arena.ofShared()) {
+            MemorySegment segment = arena.allocate((long) vectors.size() * dims * Float.BYTES);
+            for (int i = 0; i < vectors.size(); i++) {
+                for (int d = 0; d < dims; d++) {
+                    segment.set(VectorMath.FLOAT, ((long) i * dims + d) * Float.BYTES, vectors.get(i)[d]);
+                }
+            }
+
+            // when
+            List<BruteForceSearch.Match> fromList = BruteForceSearch.topK(query, vectors, 5, VectorMath.Similarity.COSINE);
+            List<BruteForceSearch.Match> fromSegment = BruteForceSearch.topK(query, segment, vectors.size(), 5, VectorMath.Similarity.COSINE);
+
+            // then
+            assertEquals(expected, fromList.stream().map(BruteForceSearch.Match::index).toList());
+            assertEquals(expected, fromSegment.stream().map(BruteForceSearch.Match::index).toList());
+            assertEquals(1f, fromList.getFirst().score(), 0.0001f, "The query itself should score (1 + 1) / 2");
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package org.przybyl.rag.example;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.przybyl.rag.example.utils.BulkProcessor;
+import org.przybyl.rag.example.utils.ElasticsearchConnector;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.net.ssl.SSLSession;
+
+class BulkProcessorTest {
+
+    private static class TestElasticsearchConnector extends ElasticsearchConnector {
+        private final ConcurrentLinkedQueue<TestResponse> responses;
+        private final List<String> requestBodies = Collections.synchronizedList(new ArrayList<>());
+
+        TestElasticsearchConnector(ObjectMapper objectMapper, TestResponse... responses) {
+            super(objectMapper, "http://test-es-url:9200");
+            this.responses = new ConcurrentLinkedQueue<>(List.of(responses));
+        }
+
+        @Override
+        public HttpResponse<String> sendBulk(List<byte[]> ndjsonChunks) {
+            StringBuilder body = new StringBuilder();
+            ndjsonChunks.forEach(chunk -> body.append(new String(chunk, StandardCharsets.UTF_8)));
+            requestBodies.add(body.toString());
+            return responses.remove();
+        }
+    }
+
+    private record TestResponse(int statusCode, String body) implements HttpResponse<String> {
+        @Override
+        public HttpRequest request() { return null; }
+
+        @Override
+        public Optional<HttpResponse<String>> previousResponse() { return Optional.empty(); }
+
+        @Override
+        public HttpHeaders headers() { return HttpHeaders.of(Map.of(), (s1, s2) -> true); }
+
+        @Override
+        public Optional<SSLSession> sslSession() { return Optional.empty(); }
+
+        @Override
+        public URI uri() { return URI.create("http://test-es-url:9200/_bulk"); }
+
+        @Override
+        public HttpClient.Version version() { return HttpClient.Version.HTTP_1_1; }
+    }
+
+    private static final BulkProcessor.Settings SETTINGS =
+        new BulkProcessor.Settings(6, 1024 * 1024, 1, 2, Duration.ofMillis(1), Duration.ofSeconds(10));
+
+    @Test
+    void shouldRetryOnlyRejectedItems() throws Exception {
+        // given
+        ObjectMapper objectMapper = new ObjectMapper();
+        TestElasticsearchConnector connector = new TestElasticsearchConnector(objectMapper,
+            new TestResponse(200, """
+                {"errors": true, "items": [
+                    {"index": {"_id": "1", "status": 201}},
+                    {"index": {"_id": "2", "status": 429, "error": {"type": "es_rejected_execution_exception"}}},
+                    {"index": {"_id": "3", "status": 400, "error": {"type": "mapper_parsing_exception"}}}
+                ]}"""),
+            new TestResponse(200, """
+                {"errors": false, "items": [
+                    {"index": {"_id": "2", "status": 201}}
+                ]}"""));
+
+        // when
+        BulkProcessor bulkProcessor = new BulkProcessor(connector, objectMapper, "target", SETTINGS);
+        for (int id = 1; id <= 3; id++) {
+            bulkProcessor.add(Map.of("id", String.valueOf(id), "title", "Doc " + id));
+        }
+        bulkProcessor.close();
+
+        // then
+        BulkProcessor.Stats stats = bulkProcessor.stats();
+        assertEquals(2, stats.indexed());
+        assertEquals(1, stats.failed(), "Item rejected with a non-retryable status should not be retried");
+        assertEquals(1, stats.retried());
+        assertEquals(2, stats.requests());
+
+        String retry = connector.requestBodies.get(1);
+        assertTrue(retry.contains("\"_id\":\"2\""), "Retry should contain the rejected item");
+        assertEquals(2, retry.lines().count(), "Retry should contain only the rejected item");
+    }
+
+    @Test
+    void shouldRetryWholeRequestRejectedWith429() throws Exception {
+        // given
+        ObjectMapper objectMapper = new ObjectMapper();
+        TestElasticsearchConnector connector = new TestElasticsearchConnector(objectMapper,
+            new TestResponse(429, "{}"),
+            new TestResponse(200, """
+                {"errors": false, "items": [{"index": {"status": 201}}]}"""));
+
+        // when
+        BulkProcessor bulkProcessor = new BulkProcessor(connector, objectMapper, "target", SETTINGS);
+        bulkProcessor.add(Map.of("id", "1"));
+        bulkProcessor.close();
+
+        // then
+        assertEquals(1, bulkProcessor.stats().indexed());
+        assertEquals(1, bulkProcessor.stats().retried());
+    }
+
+    @Test
+    void shouldRethrowNonRetryableRequestFailure() {
+        // given
+        ObjectMapper objectMapper = new ObjectMapper();
+        TestElasticsearchConnector connector = new TestElasticsearchConnector(objectMapper,
+            new TestResponse(401, "{\"error\": \"unauthorized\"}"));
+
+        // when/then
+        BulkProcessor bulkProcessor = new BulkProcessor(connector, objectMapper, "target", SETTINGS);
+        IOException thrown = assertThrows(IOException.class, () -> {
+            bulkProcessor.add(Map.of("id", "1"));
+            bulkProcessor.close();
+        });
+        assertTrue(thrown.getMessage().contains("401"));
+    }
+
+    @Test
+    void shouldPassSerializedSourceThroughOnSingleLine() throws Exception {
+        // given
+        ObjectMapper objectMapper = new ObjectMapper();
+        TestElasticsearchConnector connector = new TestElasticsearchConnector(objectMapper,
+            new TestResponse(200, """
+                {"errors": false, "items": [{"index": {"status": 201}}]}"""));
+        byte[] source = """
+            {
+              "title": "Line\\nbreak",
+              "views": 12
+            }""".getBytes(StandardCharsets.UTF_8);
+
+        // when
+        BulkProcessor bulkProcessor = new BulkProcessor(connector, objectMapper, "target", SETTINGS);
+        bulkProcessor.add("42", source);
+        bulkProcessor.close();
+
+        // then
+        List<String> lines = connector.requestBodies.getFirst().lines().toList();
+        assertEquals(2, lines.size(), "Pretty printed source should be put on a single line");
+        assertEquals("{\"index\":{\"_index\":\"target\",\"_id\":\"42\"}}", lines.get(0));
+        assertEquals("Line\nbreak", objectMapper.readTree(lines.get(1)).path("title").asText(), "Escaped new lines should be kept");
+        assertEquals(12, objectMapper.readTree(lines.get(1)).path("views").asInt());
+    }
+}
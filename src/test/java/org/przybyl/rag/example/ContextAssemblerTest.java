@@ -0,0 +1,108 @@
+package org.przybyl.rag.example;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.przybyl.rag.example.utils.ContextAssembler;
+import org.przybyl.rag.example.utils.SearchResult;
+import org.przybyl.rag.example.utils.TextSplitter;
+
+import java.util.List;
+
+class ContextAssemblerTest {
+
+    private static SearchResult result(String id, float score, SearchResult.Passage... passages) {
+        return new SearchResult(id, "JEP " + id, "https://openjdk.org/jeps/" + id, "", score, List.of(passages));
+    }
+
+    @Test
+    void shouldRankPassagesAcrossDocuments() {
+        // given
+        ContextAssembler assembler = new ContextAssembler(1000, 0.5, new TextSplitter());
+        List<SearchResult> results = List.of(
+            result("444", 0.9f,
+                new SearchResult.Passage("Virtual threads are lightweight threads managed by the JVM.", 0.9f),
+                new SearchResult.Passage("Pinning happens when a virtual thread runs synchronized code.", 0.45f)),
+            result("453", 0.8f,
+                new SearchResult.Passage("Structured concurrency treats related tasks as a single unit of work.", 0.8f)));
+
+        // when
+        ContextAssembler.Context context = assembler.assemble("What are virtual threads?", results);
+
+        // then
+        assertEquals(3, context.passages());
+        assertEquals(3, context.candidates());
+        String text = context.text();
+        assertTrue(text.startsWith("# JEP 444\nVirtual threads are lightweight"), text);
+        assertTrue(text.indexOf("Structured concurrency") < text.indexOf("Pinning"),
+            "Best passage of the second document should come before a poor one of the first");
+    }
+
+    @Test
+    void shouldDropOverlappingPassages() {
+        // given
+        ContextAssembler assembler = new ContextAssembler(1000, 0.5, new TextSplitter());
+        List<SearchResult> results = List.of(
+            result("444", 0.9f, new SearchResult.Passage("Virtual threads are lightweight threads that reduce the effort of writing concurrent applications.", 0.9f)),
+            result("425", 0.8f, new SearchResult.Passage("Preview: virtual threads are lightweight threads that reduce the effort of writing concurrent applications.", 0.8f)));
+
+        // when
+        ContextAssembler.Context context = assembler.assemble("virtual threads", results);
+
+        // then
+        assertEquals(1, context.passages());
+        assertEquals(1, context.duplicates());
+        assertFalse(context.text().contains("Preview"));
+    }
+
+    @Test
+    void shouldKeepWithinTokenBudget() {
+        // given
+        ContextAssembler assembler = new ContextAssembler(40, 0.5, new TextSplitter());
+        String longPassage = "Virtual threads ".repeat(30).trim() + ".";
+        List<SearchResult> results = List.of(
+            result("444", 0.9f,
+                new SearchResult.Passage("Scoped values share immutable data within and across threads.", 0.9f),
+                new SearchResult.Passage(longPassage, 0.8f),
+                new SearchResult.Passage("Virtual threads are cheap to block.", 0.7f)));
+
+        // when
+        ContextAssembler.Context context = assembler.assemble("virtual threads", results);
+
+        // then
+        assertTrue(context.tokens() <= 40, "Context should fit the budget: " + context);
+        assertEquals(2, context.passages(), "Passage too long for the rest of the budget should be skipped, not the ones after it");
+        assertTrue(context.text().contains("cheap to block"));
+    }
+
+    @Test
+    void shouldSplitBodiesOfResultsWithoutPassages() {
+        // given
+        ContextAssembler assembler = new ContextAssembler(1000, 0.5, new TextSplitter());
+        SearchResult result = new SearchResult("444", "JEP 444", null,
+            "Scoped values are unrelated. Virtual threads are lightweight.", 0.9f);
+
+        // when
+        ContextAssembler.Context context = assembler.assemble("virtual threads", List.of(result));
+
+        // then
+        assertEquals(1, context.passages());
+        assertTrue(context.text().contains("Virtual threads are lightweight."));
+    }
+
+    @Test
+    void shouldCutBestPassageLongerThanBudget() {
+        // given
+        ContextAssembler assembler = new ContextAssembler(10, 0.5, new TextSplitter());
+        String longPassage = "Virtual threads ".repeat(30).trim() + ".";
+
+        // when
+        ContextAssembler.Context context = assembler.assemble("virtual threads",
+            List.of(result("444", 0.9f, new SearchResult.Passage(longPassage, 0.9f))));
+
+        // then
+        assertEquals(1, context.passages());
+        assertTrue(context.tokens() <= 10, "Context should fit the budget: " + context);
+    }
+}
@@ -0,0 +1,45 @@
+package org.przybyl.rag.example;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import org.junit.jupiter.api.Test;
+import org.przybyl.rag.example.utils.DenseVectorMapping;
+
+class DenseVectorMappingTest {
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    @Test
+    void shouldMapQuantizedHnswWithGraphParameters() throws Exception {
+        // given
+        DenseVectorMapping mapping = new DenseVectorMapping(768, "dot_product", "int8_hnsw", 32, 200);
+
+        // when
+        JsonNode json = OBJECT_MAPPER.readTree(mapping.toJson(OBJECT_MAPPER));
+
+        // then
+        assertEquals("dense_vector", json.path("type").asText());
+        assertEquals(768, json.path("dims").asInt());
+        assertEquals("dot_product", json.path("similarity").asText());
+        assertEquals("int8_hnsw", json.path("index_options").path("type").asText());
+        assertEquals(32, json.path("index_options").path("m").asInt());
+        assertEquals(200, json.path("index_options").path("ef_construction").asInt());
+    }
+
+    @Test
+    void shouldLeaveOutOptionsWhichDontApply() throws Exception {
+        // given
+        DenseVectorMapping flat = new DenseVectorMapping(384, "cosine", "int8_flat", 32, 200);
+        DenseVectorMapping defaults = new DenseVectorMapping(384, "cosine", null, 32, null);
+
+        // when
+        JsonNode flatJson = OBJECT_MAPPER.readTree(flat.toJson(OBJECT_MAPPER));
+        JsonNode defaultsJson = OBJECT_MAPPER.readTree(defaults.toJson(OBJECT_MAPPER));
+
+        // then
+        assertFalse(flatJson.path("index_options").has("m"), "Flat index has no graph");
+        assertFalse(defaultsJson.has("index_options"), "Options need the index type");
+    }
+}
@@ -1,17 +1,178 @@
 package org.przybyl.rag.example;
 
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.io.TempDir;
 import static org.junit.jupiter.api.Assertions.*;
 import org.przybyl.rag.example.demos.DocumentEnricher;
+import org.przybyl.rag.example.utils.BulkProcessor;
+import org.przybyl.rag.example.utils.ElasticsearchConnector;
+import org.przybyl.rag.example.utils.ElasticsearchVectorStore;
+import org.przybyl.rag.example.utils.Encoder;
+import org.przybyl.rag.example.utils.TextSplitter;
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.PrintStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+import javax.net.ssl.SSLSession;
 
 class DocumentEnricherTest {
 
+    /// Serves the documents of its indices through a point in time, in one page, and remembers what was written.
+    /// Documents are found by their `id`, and only `last_crawled_at` range queries are understood.
+    private static class TestElasticsearchConnector extends ElasticsearchConnector {
+        private final ObjectMapper objectMapper;
+        private final Map<String, List<String>> indices = new LinkedHashMap<>();
+        private final Map<String, String> bulkSources = Collections.synchronizedMap(new LinkedHashMap<>());
+        private final List<String> createdIndices = new ArrayList<>();
+        private final Map<String, List<JsonNode>> queries = new LinkedHashMap<>();
+        private final List<String> deletedIds = new ArrayList<>();
+        private Set<String> rejectedIds = Set.of();
+
+        TestElasticsearchConnector(ObjectMapper objectMapper) {
+            super(objectMapper, "http://test-es-url:9200");
+            this.objectMapper = objectMapper;
+        }
+
+        @Override
+        public String getIndexMapping(String indexName) {
+            return """
+                {"%s": {"mappings": {"properties": {"title": {"type": "text"}}}}}""".formatted(indexName);
+        }
+
+        @Override
+        public void createIndex(String indexName, String mappingJson) {
+            createdIndices.add(indexName);
+        }
+
+        @Override
+        public boolean indexExists(String indexName) {
+            return indices.containsKey(indexName);
+        }
+
+        /// Answers the aggregation of the latest crawl timestamp only
+        @Override
+        public String searchWithCustomQuery(String indexName, String queryJson) throws IOException {
+            String latest = null;
+            for (String document : indices.getOrDefault(indexName, List.of())) {
+                String crawledAt = objectMapper.readTree(document).path("last_crawled_at").asText(null);
+                if (crawledAt != null && (latest == null || crawledAt.compareTo(latest) > 0)) {
+                    latest = crawledAt;
+                }
+            }
+            return latest == null
+                ? "{\"aggregations\": {\"latest\": {\"value\": null}}}"
+                : "{\"aggregations\": {\"latest\": {\"value\": 1, \"value_as_string\": \"%s\"}}}".formatted(latest);
+        }
+
+        @Override
+        public void bulkDelete(String indexName, Collection<String> ids) {
+            deletedIds.addAll(ids);
+        }
+
+        @Override
+        public String openPointInTime(String indexName, String keepAlive) {
+            return indexName;
+        }
+
+        @Override
+        public void closePointInTime(String pitId) {
+        }
+
+        @Override
+        public byte[] searchWithPointInTime(byte[] queryJson) throws IOException {
+            JsonNode request = objectMapper.readTree(queryJson);
+            String indexName = request.path("pit").path("id").asText();
+            queries.computeIfAbsent(indexName, name -> new ArrayList<>()).add(request.path("query"));
+            List<String> documents = request.has("search_after") ? List.of() : indices.getOrDefault(indexName, List.of());
+            String crawledAfter = request.path("query").path("range").path("last_crawled_at").path("gt").asText(null);
+            StringBuilder hits = new StringBuilder();
+            int total = 0;
+            for (int i = 0; i < documents.size(); i++) {
+                JsonNode document = objectMapper.readTree(documents.get(i));
+                if (crawledAfter != null && document.path("last_crawled_at").asText().compareTo(crawledAfter) <= 0) {
+                    continue;
+                }
+                if (!hits.isEmpty()) {
+                    hits.append(",");
+                }
+                hits.append("""
+                    {"_id": "%s", "_source": %s, "sort": [%d]}""".formatted(document.path("id").asText("hit-" + i), documents.get(i), i));
+                total++;
+            }
+            return """
+                {"pit_id": "%s", "hits": {"total": {"value": %d}, "hits": [%s]}}"""
+                .formatted(indexName, total, hits).getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public HttpResponse<String> sendBulk(List<byte[]> ndjsonChunks) throws IOException {
+            StringBuilder items = new StringBuilder();
+            boolean errors = false;
+            for (int i = 0; i < ndjsonChunks.size(); i += 2) {
+                String id = objectMapper.readTree(ndjsonChunks.get(i)).path("index").path("_id").asText();
+                bulkSources.put(id, new String(ndjsonChunks.get(i + 1), StandardCharsets.UTF_8));
+                if (!items.isEmpty()) {
+                    items.append(",");
+                }
+                boolean rejected = rejectedIds.contains(id);
+                errors |= rejected;
+                items.append("{\"index\": {\"_id\": \"%s\", \"status\": %d}}".formatted(id, rejected ? 400 : 201));
+            }
+            return new TestResponse(200, "{\"errors\": %s, \"items\": [%s]}".formatted(errors, items));
+        }
+    }
+
+    private record TestResponse(int statusCode, String body) implements HttpResponse<String> {
+        @Override
+        public HttpRequest request() { return null; }
+
+        @Override
+        public Optional<HttpResponse<String>> previousResponse() { return Optional.empty(); }
+
+        @Override
+        public HttpHeaders headers() { return HttpHeaders.of(Map.of(), (s1, s2) -> true); }
+
+        @Override
+        public Optional<SSLSession> sslSession() { return Optional.empty(); }
+
+        @Override
+        public URI uri() { return URI.create("http://test-es-url:9200/_bulk"); }
+
+        @Override
+        public HttpClient.Version version() { return HttpClient.Version.HTTP_1_1; }
+    }
+
+    private static final DocumentEnricher.Settings SETTINGS = new DocumentEnricher.Settings(10, 1, 2, 10,
+        new BulkProcessor.Settings(100, 1024 * 1024, 1, 0, Duration.ofMillis(1), Duration.ofSeconds(10)));
+
     private final ByteArrayOutputStream outputStreamCaptor = new ByteArrayOutputStream();
     private final PrintStream standardOut = System.out;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final TestElasticsearchConnector connector = new TestElasticsearchConnector(objectMapper);
+    private final DocumentEnricher enricher = new DocumentEnricher(
+        new Encoder(requestBody -> "{\"embedding\": [0.6, 0.8]}", objectMapper), connector, objectMapper, new TextSplitter(), SETTINGS);
 
     @BeforeEach
     void setUp() {
@@ -26,6 +187,107 @@ class DocumentEnricherTest {
             "Should print usage message when no index name is provided");
     }
 
+    @Test
+    void shouldAddEnrichmentFieldsToOriginalSource() throws Exception {
+        // given
+        connector.indices.put("crawl", List.of(
+            """
+                {"id": "1", "title": "Virtual threads", "url": "http://example.com/1", "body": "Threads are cheap.", "last_crawled_at": "2025-01-01"}""",
+            // enriched before, e.g. copied from the search index, or hashed by the crawler
+            """
+                {"id": "2", "title": "Old", "body": "Old body.", "contentHash": "stale", "bodyChunks": [], "titleEmbedding": [1.0, 0.0]}""",
+            "{ }"));
+
+        // when
+        enricher.processDocuments("crawl", "search");
+
+        // then
+        assertEquals(List.of("search"), connector.createdIndices);
+        assertEquals(Set.of("1", "2", "hit-2"), Set.copyOf(connector.bulkSources.keySet()));
+        // Elasticsearch rejects documents with duplicate keys
+        ObjectMapper strict = new ObjectMapper().enable(JsonParser.Feature.STRICT_DUPLICATE_DETECTION);
+
+        JsonNode first = strict.readTree(connector.bulkSources.get("1"));
+        assertEquals(List.of("contentHash", "titleEmbedding", "bodyChunks", "id", "title", "url", "body", "last_crawled_at"), fieldNames(first));
+        assertEquals("2025-01-01", first.path("last_crawled_at").asText());
+        assertEquals(2, first.path("titleEmbedding").size());
+        assertEquals("Threads are cheap.", first.path("bodyChunks").get(0).path("passage").asText());
+        assertEquals(0.8, first.path("bodyChunks").get(0).path("predictedValue").get(1).asDouble(), 1e-6);
+
+        JsonNode second = strict.readTree(connector.bulkSources.get("2"));
+        assertEquals(List.of("contentHash", "titleEmbedding", "bodyChunks", "id", "title", "body"), fieldNames(second));
+        assertNotEquals("stale", second.path("contentHash").asText(), "Previous enrichment should be replaced");
+        assertEquals(0.6, second.path("titleEmbedding").get(0).asDouble(), 1e-6);
+        assertEquals("Old body.", second.path("bodyChunks").get(0).path("passage").asText());
+
+        JsonNode empty = strict.readTree(connector.bulkSources.get("hit-2"));
+        assertEquals(List.of("contentHash", "bodyChunks"), fieldNames(empty));
+        assertTrue(empty.path("bodyChunks").isEmpty());
+    }
+
+    @Test
+    void shouldEnrichOnlyDocumentsChangedSinceWatermark(@TempDir Path tempDir) throws Exception {
+        // given
+        givenCrawledAndEnrichedIndices();
+        Path watermark = Files.writeString(tempDir.resolve("search.watermark"), "2025-01-02");
+
+        // when
+        enricher.processDocumentsIncrementally("crawl", "search", watermark);
+
+        // then
+        assertTrue(connector.queries.get("crawl").contains(objectMapper.readTree("""
+            {"range": {"last_crawled_at": {"gt": "2025-01-02"}}}""")), "Only documents crawled after the watermark should be read");
+        assertEquals(Set.of("changed", "new"), Set.copyOf(connector.bulkSources.keySet()), "Unchanged documents should be skipped");
+        assertEquals(List.of("vanished"), connector.deletedIds);
+        assertTrue(connector.createdIndices.isEmpty(), "Existing target index should be kept");
+        assertEquals("2025-01-05", Files.readString(watermark));
+    }
+
+    @Test
+    void shouldKeepWatermarkWhenDocumentsFailToBeIndexed(@TempDir Path tempDir) throws Exception {
+        // given
+        givenCrawledAndEnrichedIndices();
+        connector.rejectedIds = Set.of("new");
+        Path watermark = Files.writeString(tempDir.resolve("search.watermark"), "2025-01-02");
+
+        // when
+        enricher.processDocumentsIncrementally("crawl", "search", watermark);
+
+        // then
+        assertEquals(Set.of("changed", "new"), Set.copyOf(connector.bulkSources.keySet()));
+        assertEquals(List.of("vanished"), connector.deletedIds);
+        assertEquals("2025-01-02", Files.readString(watermark), "Failed documents should be retried by the next run");
+    }
+
+    /// `old` was crawled before the watermark, `unchanged` after it with the same content, `vanished` is gone from the crawl
+    private void givenCrawledAndEnrichedIndices() {
+        connector.indices.put("crawl", List.of(
+            """
+                {"id": "old", "title": "Old", "body": "Old body.", "last_crawled_at": "2025-01-01"}""",
+            """
+                {"id": "unchanged", "title": "Unchanged", "body": "Same body.", "last_crawled_at": "2025-01-03"}""",
+            """
+                {"id": "changed", "title": "Changed", "body": "New body.", "last_crawled_at": "2025-01-04"}""",
+            """
+                {"id": "new", "title": "New", "body": "First body.", "last_crawled_at": "2025-01-05"}"""));
+        connector.indices.put("search", List.of(
+            enriched("old", ElasticsearchVectorStore.contentHash("Old", "Old body.")),
+            enriched("unchanged", ElasticsearchVectorStore.contentHash("Unchanged", "Same body.")),
+            enriched("changed", ElasticsearchVectorStore.contentHash("Changed", "Old body.")),
+            enriched("vanished", ElasticsearchVectorStore.contentHash("Vanished", "Gone."))));
+    }
+
+    private static String enriched(String id, String contentHash) {
+        return """
+            {"id": "%s", "contentHash": "%s"}""".formatted(id, contentHash);
+    }
+
+    private static List<String> fieldNames(JsonNode node) {
+        List<String> names = new ArrayList<>();
+        node.fieldNames().forEachRemaining(names::add);
+        return names;
+    }
+
     @org.junit.jupiter.api.AfterEach
     void tearDown() {
         System.setOut(standardOut);
@@ -7,8 +7,18 @@ import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import org.junit.jupiter.api.Test;
 import org.przybyl.rag.example.utils.ElasticsearchConnector;
+import com.sun.net.httpserver.HttpServer;
 
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 class ElasticsearchConnectorTest {
 
@@ -103,4 +113,72 @@ class ElasticsearchConnectorTest {
         assertEquals("text", properties.path("body").path("type").asText(), "Should preserve body field type");
         assertEquals("keyword", properties.path("newField").path("type").asText(), "Should add new field with correct type");
     }
+
+    @Test
+    void shouldFailBulkRequestWhenBodyFailsToBeWritten() throws Exception {
+        // given
+        AtomicInteger requests = new AtomicInteger();
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/_bulk", exchange -> {
+            // counted only once the whole body has been received
+            exchange.getRequestBody().readAllBytes();
+            requests.incrementAndGet();
+            byte[] response = "{\"errors\": false, \"items\": []}".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, response.length);
+            exchange.getResponseBody().write(response);
+            exchange.close();
+        });
+        server.start();
+        ObjectMapper objectMapper = new ObjectMapper();
+        ElasticsearchConnector connector = new ElasticsearchConnector(objectMapper, "http://localhost:" + server.getAddress().getPort());
+
+        try {
+            // when/then
+            connector.bulkIndex("docs", List.of(Map.of("id", "1", "title", "Fine")));
+            IOException thrown = assertThrows(IOException.class, () -> connector.bulkIndex("docs", List.of(
+                Map.of("id", "1", "title", "Fine"),
+                // no serializer for a plain Object, so writing the body fails half way
+                Map.of("id", "2", "title", new Object()))));
+            assertTrue(thrown.getMessage().contains("Failed to write request body"), "Unexpected failure: " + thrown);
+            assertEquals(1, requests.get(), "Truncated body should not be received as a whole");
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    void shouldCancelSearchWhenCallerTimesOut() throws Exception {
+        // given
+        CountDownLatch disconnected = new CountDownLatch(1);
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/docs/_search", exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            // a response which never ends, until the client goes away
+            exchange.sendResponseHeaders(200, 0);
+            try {
+                while (true) {
+                    exchange.getResponseBody().write(new byte[8192]);
+                    exchange.getResponseBody().flush();
+                    Thread.sleep(10);
+                }
+            } catch (IOException | InterruptedException e) {
+                disconnected.countDown();
+            }
+        });
+        server.start();
+        ElasticsearchConnector connector = new ElasticsearchConnector(new ObjectMapper(), "http://localhost:" + server.getAddress().getPort());
+
+        try {
+            // when
+            var search = connector.searchAsync("docs", "{}", body -> body.readAllBytes().length)
+                .orTimeout(200, TimeUnit.MILLISECONDS);
+
+            // then
+            ExecutionException thrown = assertThrows(ExecutionException.class, search::get);
+            assertTrue(thrown.getCause() instanceof TimeoutException, "Unexpected failure: " + thrown);
+            assertTrue(disconnected.await(5, TimeUnit.SECONDS), "Exchange should be cancelled, closing its connection");
+        } finally {
+            server.stop(0);
+        }
+    }
 }
@@ -0,0 +1,156 @@
+package org.przybyl.rag.example;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.przybyl.rag.example.utils.DenseVectorMapping;
+import org.przybyl.rag.example.utils.ElasticsearchConnector;
+import org.przybyl.rag.example.utils.ElasticsearchVectorStore;
+import org.przybyl.rag.example.utils.SearchResult;
+import org.przybyl.rag.example.utils.VectorDocument;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+class ElasticsearchVectorStoreTest {
+
+    private static class TestElasticsearchConnector extends ElasticsearchConnector {
+        private String lastQuery;
+        private String createdMapping;
+
+        TestElasticsearchConnector(ObjectMapper objectMapper) {
+            super(objectMapper, "http://test-es-url:9200");
+        }
+
+        @Override
+        public void createIndex(String indexName, String mappingJson) {
+            createdMapping = mappingJson;
+        }
+
+        @Override
+        public <T> T searchWithCustomQuery(String indexName, String queryJson, ResponseReader<T> reader) throws IOException {
+            lastQuery = queryJson;
+            // approximate scores put "far" first, its vectors say otherwise
+            return reader.read(new ByteArrayInputStream("""
+                {
+                    "hits": {
+                        "hits": [
+                            {
+                                "_id": "far",
+                                "_score": 0.99,
+                                "_source": {"bodyChunks": [{"predictedValue": [0, 1]}]},
+                                "fields": {"title": ["Far"], "url": ["http://example.com/far"], "body": [""]}
+                            },
+                            {
+                                "_id": "near",
+                                "_score": 0.98,
+                                "_source": {"bodyChunks": [{"predictedValue": [0, 1]}, {"predictedValue": [1, 0.1]}]},
+                                "fields": {"title": ["Near"], "url": ["http://example.com/near"], "body": [""]},
+                                "inner_hits": {
+                                    "bodyChunks": {
+                                        "hits": {
+                                            "total": {"value": 2, "relation": "eq"},
+                                            "max_score": 0.97,
+                                            "hits": [
+                                                {
+                                                    "_id": "near",
+                                                    "_nested": {"field": "bodyChunks", "offset": 1},
+                                                    "_score": 0.97,
+                                                    "fields": {"bodyChunks": [{"passage": ["Closest passage"]}]}
+                                                },
+                                                {
+                                                    "_id": "near",
+                                                    "_nested": {"field": "bodyChunks", "offset": 0},
+                                                    "_score": 0.5,
+                                                    "fields": {"bodyChunks": [{"passage": ["Other passage"]}]}
+                                                }
+                                            ]
+                                        }
+                                    }
+                                }
+                            },
+                            {
+                                "_id": "unknown",
+                                "_score": 0.6,
+                                "fields": {"title": ["Unknown"], "url": ["http://example.com/unknown"], "body": [""]}
+                            }
+                        ]
+                    }
+                }
+                """.getBytes(StandardCharsets.UTF_8)));
+        }
+    }
+
+    @Test
+    void shouldRescoreCandidatesByClosestPassage() throws Exception {
+        // given
+        ObjectMapper objectMapper = new ObjectMapper();
+        TestElasticsearchConnector connector = new TestElasticsearchConnector(objectMapper);
+        ElasticsearchVectorStore store = new ElasticsearchVectorStore(connector, objectMapper);
+
+        // when
+        List<SearchResult> results = store.searchAndRescore("docs", new float[]{1, 0}, 3);
+
+        // then
+        JsonNode query = objectMapper.readTree(connector.lastQuery);
+        assertTrue(query.path("_source").isArray(), "Vectors should be requested");
+        assertEquals(query.path("knn").path("num_candidates").asInt(), query.path("knn").path("k").asInt(), "All candidates should be rescored");
+        assertEquals(query.path("knn").path("k").asInt(), query.path("size").asInt(), "All candidates should be returned, not just the default 10 hits");
+        assertEquals(List.of("near", "unknown", "far"), results.stream().map(SearchResult::id).toList());
+        assertEquals((1 + 1 / (float) Math.sqrt(1.01)) / 2, results.get(0).score(), 0.0001f);
+        assertEquals(0.6f, results.get(1).score(), 0.0001f, "Hit without vectors should keep its score");
+        assertEquals(0.5f, results.get(2).score(), 0.0001f);
+    }
+
+    @Test
+    void shouldReturnBestPassagesOfEachDocument() throws Exception {
+        // given
+        ObjectMapper objectMapper = new ObjectMapper();
+        TestElasticsearchConnector connector = new TestElasticsearchConnector(objectMapper);
+        ElasticsearchVectorStore store = new ElasticsearchVectorStore(connector, objectMapper);
+
+        // when
+        List<SearchResult> results = store.search("docs", new float[]{1, 0}, 3);
+
+        // then
+        assertEquals(3, objectMapper.readTree(connector.lastQuery).path("size").asInt());
+        assertEquals("bodyChunks.passage", objectMapper.readTree(connector.lastQuery).path("knn").path("inner_hits").path("fields").path(0).asText());
+        assertEquals(List.of(new SearchResult.Passage("Closest passage", 0.97f), new SearchResult.Passage("Other passage", 0.5f)),
+            results.get(1).passages());
+        assertTrue(results.get(0).passages().isEmpty(), "Hit without inner hits should have no passages");
+    }
+
+    @Test
+    void shouldWriteDocumentsInTheLayoutOfTheMapping() throws Exception {
+        // given
+        ObjectMapper objectMapper = new ObjectMapper();
+        TestElasticsearchConnector connector = new TestElasticsearchConnector(objectMapper);
+        ElasticsearchVectorStore store = new ElasticsearchVectorStore(connector, objectMapper);
+        VectorDocument document = new VectorDocument("a", "A", "http://example.com/a", "First. Second.",
+            List.of(new float[]{1, 0}, new float[]{0, 1}), List.of("First.", "Second."), new float[]{0.6f, 0.8f});
+
+        // when
+        store.createIndex("docs", new DenseVectorMapping(2, "dot_product", null, null, null));
+        JsonNode source = objectMapper.readTree(store.source(document));
+
+        // then
+        JsonNode properties = objectMapper.readTree(connector.createdMapping).path("mappings").path("properties");
+        assertEquals("text", properties.path("title").path("type").asText());
+        assertEquals("keyword", properties.path("contentHash").path("type").asText());
+        assertEquals(2, properties.path("titleEmbedding").path("dims").asInt());
+        assertEquals("nested", properties.path("bodyChunks").path("type").asText());
+        assertEquals(2, properties.path("bodyChunks").path("properties").path("predictedValue").path("dims").asInt());
+        assertFalse(properties.path("bodyChunks").path("properties").path("passage").path("index").asBoolean(true));
+
+        assertEquals(ElasticsearchVectorStore.contentHash("A", "First. Second."), source.path("contentHash").asText());
+        assertEquals(0.8, source.path("titleEmbedding").get(1).asDouble(), 1e-6);
+        assertEquals("Second.", source.path("bodyChunks").get(1).path("passage").asText());
+        assertEquals(1.0, source.path("bodyChunks").get(1).path("predictedValue").get(1).asDouble(), 1e-6);
+        assertEquals("http://example.com/a", source.path("url").asText());
+    }
+}
@@ -0,0 +1,73 @@
+package org.przybyl.rag.example;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.przybyl.rag.example.utils.EmbeddingCache;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+class EmbeddingCacheTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void shouldReturnStoredEmbeddingForSameModelAndText() throws IOException {
+        try (EmbeddingCache cache = EmbeddingCache.open(tempDir.resolve("embeddings.cache"), 10)) {
+            // given
+            cache.put("all-minilm", "Virtual Threads", new float[]{0.25f, -0.5f, 1.0f});
+
+            // when/then
+            assertArrayEquals(new float[]{0.25f, -0.5f, 1.0f}, cache.get("all-minilm", "Virtual Threads"), 0.0001f);
+            assertNull(cache.get("other-model", "Virtual Threads"), "Model should be part of the key");
+            assertNull(cache.get("all-minilm", "Structured Concurrency"));
+
+            EmbeddingCache.Stats stats = cache.stats();
+            assertEquals(1, stats.hits());
+            assertEquals(2, stats.misses());
+            assertEquals(1, stats.size());
+        }
+    }
+
+    @Test
+    void shouldKeepEmbeddingsAfterReopening() throws IOException {
+        // given
+        Path path = tempDir.resolve("embeddings.cache");
+        try (EmbeddingCache cache = EmbeddingCache.open(path, 10)) {
+            cache.put("all-minilm", "Virtual Threads", new float[]{0.1f, 0.2f});
+        }
+
+        // when
+        try (EmbeddingCache reopened = EmbeddingCache.open(path, 10)) {
+
+            // then
+            float[] embedding = reopened.get("all-minilm", "Virtual Threads");
+            assertNotNull(embedding);
+            assertArrayEquals(new float[]{0.1f, 0.2f}, embedding, 0.0001f);
+        }
+    }
+
+    @Test
+    void shouldEvictLeastRecentlyUsedEntryWhenFull() throws IOException {
+        try (EmbeddingCache cache = EmbeddingCache.open(tempDir.resolve("embeddings.cache"), 2)) {
+            // given
+            cache.put("m", "first", new float[]{1f});
+            cache.put("m", "second", new float[]{2f});
+            cache.get("m", "first");
+
+            // when
+            cache.put("m", "third", new float[]{3f});
+
+            // then
+            assertNull(cache.get("m", "second"), "Least recently used entry should be evicted");
+            assertArrayEquals(new float[]{1f}, cache.get("m", "first"), 0.0001f);
+            assertArrayEquals(new float[]{3f}, cache.get("m", "third"), 0.0001f);
+            assertEquals(1, cache.stats().evictions());
+        }
+    }
+}
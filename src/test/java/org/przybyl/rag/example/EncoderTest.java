@@ -4,12 +4,22 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import org.junit.jupiter.api.Test;
 import org.przybyl.rag.example.utils.EmbeddingService;
 import org.przybyl.rag.example.utils.Encoder;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 class EncoderTest {
 
@@ -42,6 +52,32 @@ class EncoderTest {
         }
     }
 
+    /// Batch service returning for every input text an embedding holding just the length of that text.
+    private static class BatchTestEmbeddingService implements EmbeddingService {
+        private final List<List<String>> batches = new ArrayList<>();
+
+        @Override
+        public String requestEmbedding(String requestBody) {
+            throw new AssertionError("Single text endpoint should not be used when batch is supported");
+        }
+
+        @Override
+        public String requestEmbeddings(String requestBody) throws IOException {
+            List<String> input = new ArrayList<>();
+            OBJECT_MAPPER.readTree(requestBody).path("input").forEach(text -> input.add(text.asText()));
+            batches.add(input);
+            String embeddings = input.stream()
+                .map(text -> "[" + text.length() + "]")
+                .collect(Collectors.joining(","));
+            return "{\"embeddings\": [" + embeddings + "]}";
+        }
+
+        @Override
+        public boolean supportsBatch() {
+            return true;
+        }
+    }
+
     public static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
 
     @Test
@@ -54,12 +90,12 @@ class EncoderTest {
         Encoder encoder = new Encoder(new TestEmbeddingService(mockResponse), OBJECT_MAPPER);
 
         // when
-        double[] result = encoder.encode(text);
+        float[] result = encoder.encode(text);
 
         // then
         assertNotNull(result);
         assertEquals(4, result.length);
-        assertArrayEquals(new double[]{0.1, 0.2, 0.3, 0.4}, result, 0.0001);
+        assertArrayEquals(new float[]{0.1f, 0.2f, 0.3f, 0.4f}, result, 0.0001f);
     }
 
     @Test
@@ -72,12 +108,12 @@ class EncoderTest {
         Encoder encoder = new Encoder(new TestEmbeddingService(mockResponse), OBJECT_MAPPER);
 
         // when
-        double[] result = encoder.encode(text);
+        float[] result = encoder.encode(text);
 
         // then
         assertNotNull(result);
         assertEquals(3, result.length);
-        assertArrayEquals(new double[]{-0.1, 0.0, 0.1}, result, 0.0001);
+        assertArrayEquals(new float[]{-0.1f, 0.0f, 0.1f}, result, 0.0001f);
     }
 
     @Test
@@ -104,4 +140,72 @@ class EncoderTest {
         assertEquals("Failed to encode text", thrown.getMessage());
         assertEquals(expectedError, thrown.getCause());
     }
+
+    @Test
+    void shouldEncodeAllInLengthBucketedBatchesKeepingOrder() {
+        // given
+        BatchTestEmbeddingService service = new BatchTestEmbeddingService();
+        Encoder encoder = new Encoder(service, OBJECT_MAPPER, "test-model", 2);
+        List<String> texts = List.of("aaaaa", "a", "aaaa", "aa", "aaa");
+
+        // when
+        List<float[]> result = encoder.encodeAll(texts);
+
+        // then
+        assertEquals(5, result.size());
+        for (int i = 0; i < texts.size(); i++) {
+            assertArrayEquals(new float[]{texts.get(i).length()}, result.get(i), 0.0001f);
+        }
+        assertEquals(List.of(List.of("a", "aa"), List.of("aaa", "aaaa"), List.of("aaaaa")), service.batches,
+            "Texts of similar length should be sent together");
+    }
+
+    @Test
+    void shouldNormalizeEmbeddingsToUnitLength() {
+        // given
+        String mockResponse = """
+            {"embedding": [3.0, 4.0]}
+            """;
+        Encoder encoder = new Encoder(new TestEmbeddingService(mockResponse), OBJECT_MAPPER, "test-model", 1, null, true);
+
+        // when
+        float[] result = encoder.encode("Some text");
+
+        // then
+        assertTrue(encoder.normalizes());
+        assertArrayEquals(new float[]{0.6f, 0.8f}, result, 0.0001f);
+    }
+
+    @Test
+    void shouldShareRequestAmongConcurrentCallsForSameText() throws Exception {
+        // given
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger requests = new AtomicInteger();
+        Encoder encoder = new Encoder(requestBody -> {
+            requests.incrementAndGet();
+            release.await();
+            return "{\"embedding\": [0.6, 0.8]}";
+        }, OBJECT_MAPPER);
+
+        // when
+        List<Future<float[]>> embeddings = new ArrayList<>();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < 10; i++) {
+                embeddings.add(executor.submit(() -> encoder.encode("What is a virtual thread?")));
+            }
+            while (encoder.coalescingStats().collapsed() < 9) {
+                Thread.sleep(1);
+            }
+            release.countDown();
+        }
+
+        // then
+        assertEquals(1, requests.get(), "Concurrent calls for the same text should send one request");
+        for (Future<float[]> embedding : embeddings) {
+            assertSame(embeddings.getFirst().get(), embedding.get());
+        }
+        assertEquals(1, encoder.coalescingStats().calls());
+        assertEquals(9, encoder.coalescingStats().collapsed());
+        assertEquals(0, encoder.coalescingStats().inFlight());
+    }
 }
@@ -0,0 +1,71 @@
+package org.przybyl.rag.example;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.przybyl.rag.example.utils.BruteForceSearch;
+import org.przybyl.rag.example.utils.FlatVectorFile;
+import org.przybyl.rag.example.utils.FlatVectorStore;
+import org.przybyl.rag.example.utils.SearchResult;
+import org.przybyl.rag.example.utils.VectorMath;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+class FlatVectorFileTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void shouldReadBackWhatWasWritten() throws Exception {
+        // given
+        Path path = tempDir.resolve("docs.vectors");
+        try (FlatVectorFile.Writer writer = FlatVectorFile.create(path, "all-minilm")) {
+            writer.add("a", "Virtual threads", "http://example.com/a", "Cheap threads", new float[]{1, 0, 0});
+            writer.add("a", "Virtual threads", "http://example.com/a", "Pinning", new float[]{0.8f, 0.6f, 0});
+            writer.add("b", null, "http://example.com/b", "Zażółć gęślą jaźń", new float[]{0, 0, 1});
+        }
+
+        // when
+        try (FlatVectorFile file = FlatVectorFile.open(path)) {
+
+            // then
+            assertEquals("all-minilm", file.model());
+            assertEquals(3, file.dims());
+            assertEquals(3, file.count());
+            assertEquals(3 * 3 * Float.BYTES, file.vectors().byteSize());
+            assertEquals(new FlatVectorFile.Passage("a", "Virtual threads", "http://example.com/a", "Pinning"), file.passage(1));
+            assertNull(file.passage(2).title());
+            assertEquals("Zażółć gęślą jaźń", file.passage(2).text());
+            assertEquals(List.of(1, 0), file.search(new float[]{0.6f, 0.8f, 0}, 2, VectorMath.Similarity.COSINE).stream()
+                .map(BruteForceSearch.Match::index)
+                .toList());
+        }
+        assertFalse(Files.exists(tempDir.resolve("docs.vectors.records.tmp")), "Temporary files should be removed");
+    }
+
+    @Test
+    void shouldReturnEachDocumentOnceWithItsClosestPassage() throws Exception {
+        // given
+        Path path = tempDir.resolve("docs.vectors");
+        try (FlatVectorFile.Writer writer = FlatVectorFile.create(path, "all-minilm")) {
+            writer.add("a", "A", "http://example.com/a", "first", new float[]{1, 0});
+            writer.add("a", "A", "http://example.com/a", "second", new float[]{0.9f, 0.1f});
+            writer.add("b", "B", "http://example.com/b", "only", new float[]{0, 1});
+        }
+
+        try (FlatVectorFile file = FlatVectorFile.open(path)) {
+            // when
+            List<SearchResult> results = new FlatVectorStore(file, VectorMath.Similarity.COSINE).search("ignored", new float[]{1, 0}, 2);
+
+            // then
+            assertEquals(List.of("a", "b"), results.stream().map(SearchResult::id).toList());
+            assertEquals("first", results.get(0).body());
+            assertEquals(1f, results.get(0).score(), 0.0001f);
+        }
+    }
+}
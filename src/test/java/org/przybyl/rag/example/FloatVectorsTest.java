@@ -0,0 +1,59 @@
+package org.przybyl.rag.example;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import org.junit.jupiter.api.Test;
+import org.przybyl.rag.example.utils.FloatVectors;
+
+import java.io.StringWriter;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+class FloatVectorsTest {
+
+    private record Response(
+        @JsonDeserialize(using = FloatVectors.Deserializer.class)
+        float[] embedding,
+        @JsonDeserialize(using = FloatVectors.MatrixDeserializer.class)
+        float[][] embeddings
+    ) {
+    }
+
+    @Test
+    void shouldParseVectorsOfAnyLengthIntoFloats() throws Exception {
+        // given
+        String longVector = IntStream.range(0, 1000)
+            .mapToObj(i -> i + ".5")
+            .collect(Collectors.joining(",", "[", "]"));
+        String json = """
+            {"embedding": %s, "embeddings": [[0.1, -2], [], [3e-2]]}""".formatted(longVector);
+
+        // when
+        Response response = new ObjectMapper().readValue(json, Response.class);
+
+        // then
+        assertEquals(1000, response.embedding().length);
+        assertEquals(999.5f, response.embedding()[999]);
+        assertEquals(3, response.embeddings().length);
+        assertArrayEquals(new float[]{0.1f, -2f}, response.embeddings()[0]);
+        assertArrayEquals(new float[]{}, response.embeddings()[1]);
+        assertArrayEquals(new float[]{0.03f}, response.embeddings()[2]);
+    }
+
+    @Test
+    void shouldWriteOnlyDigitsFloatsHold() throws Exception {
+        // given
+        StringWriter json = new StringWriter();
+
+        // when
+        try (JsonGenerator generator = new ObjectMapper().getFactory().createGenerator(json)) {
+            FloatVectors.write(generator, new float[]{0.1f, -1.0f, (float) 0.123456789012345});
+        }
+
+        // then
+        assertEquals("[0.1,-1.0,0.12345679]", json.toString());
+    }
+}
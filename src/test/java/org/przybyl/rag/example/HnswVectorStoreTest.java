@@ -0,0 +1,130 @@
+package org.przybyl.rag.example;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.przybyl.rag.example.utils.DenseVectorMapping;
+import org.przybyl.rag.example.utils.ElasticsearchConnector;
+import org.przybyl.rag.example.utils.HnswVectorStore;
+import org.przybyl.rag.example.utils.SearchResult;
+import org.przybyl.rag.example.utils.VectorDocument;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.stream.IntStream;
+
+class HnswVectorStoreTest {
+
+    private static final int DIMS = 16;
+
+    @Test
+    void shouldFindNearestNeighboursInsertedConcurrently() throws Exception {
+        // given
+        Random random = new Random(42);
+        List<VectorDocument> documents = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            documents.add(document(String.valueOf(i), randomVector(random)));
+        }
+        HnswVectorStore store = new HnswVectorStore(16, 100, 100);
+        store.createIndex("docs", new DenseVectorMapping(DIMS, "cosine", "hnsw", 16, 100));
+
+        // when
+        try (var executor = Executors.newFixedThreadPool(8)) {
+            for (int thread = 0; thread < 8; thread++) {
+                List<VectorDocument> part = documents.subList(thread * 250, (thread + 1) * 250);
+                executor.submit(() -> store.upsert("docs", part));
+            }
+        }
+
+        // then
+        assertEquals(2000, store.size("docs"));
+        int found = 0;
+        for (int query = 0; query < 50; query++) {
+            float[] queryVector = randomVector(random);
+            List<String> expected = documents.stream()
+                .sorted(Comparator.comparingDouble((VectorDocument document) -> cosine(queryVector, document.vectors().getFirst())).reversed())
+                .limit(10)
+                .map(VectorDocument::id)
+                .toList();
+            List<SearchResult> results = store.search("docs", queryVector, 10);
+            found += (int) results.stream().map(SearchResult::id).filter(expected::contains).count();
+        }
+        double recall = found / 500.0;
+        assertTrue(recall > 0.9, "Recall should be above 0.9, was " + recall);
+    }
+
+    @Test
+    void shouldReturnEachDocumentOnceAndOnlyItsLatestVersion() {
+        // given
+        HnswVectorStore store = new HnswVectorStore(4, 10, 10);
+        store.createIndex("docs", new DenseVectorMapping(2, "cosine", "hnsw", 4, 10));
+        store.upsert("docs", List.of(
+            new VectorDocument("a", "A", "http://example.com/a", "", List.of(new float[]{1, 0}, new float[]{0.9f, 0.1f})),
+            new VectorDocument("b", "B", "http://example.com/b", "", List.of(new float[]{0.8f, 0.2f}))));
+
+        // when
+        store.upsert("docs", List.of(new VectorDocument("b", "B v2", "http://example.com/b", "", List.of(new float[]{0, 1}))));
+        List<SearchResult> results = store.search("docs", new float[]{1, 0}, 2);
+
+        // then
+        assertEquals(List.of("a", "b"), results.stream().map(SearchResult::id).toList());
+        assertEquals(1f, results.get(0).score(), 0.0001f);
+        assertEquals("B v2", results.get(1).title());
+        assertEquals(0.5f, results.get(1).score(), 0.0001f, "Replaced vector of b should not be found");
+    }
+
+    private static VectorDocument document(String id, float[] vector) {
+        return new VectorDocument(id, "Title " + id, "http://example.com/" + id, "", List.of(vector));
+    }
+
+    private static float[] randomVector(Random random) {
+        float[] vector = new float[DIMS];
+        IntStream.range(0, DIMS).forEach(i -> vector[i] = (float) random.nextGaussian());
+        return vector;
+    }
+
+    private static double cosine(float[] a, float[] b) {
+        double dot = 0, normA = 0, normB = 0;
+        for (int i = 0; i < a.length; i++) {
+            dot += a[i] * b[i];
+            normA += a[i] * a[i];
+            normB += b[i] * b[i];
+        }
+        return dot / Math.sqrt(normA * normB);
+    }
+
+    @Test
+    void shouldCopyIndexWithoutVectorsAsEmptyIndex() {
+        // given
+        ObjectMapper objectMapper = new ObjectMapper();
+        ElasticsearchConnector connector = new ElasticsearchConnector(objectMapper, "http://test-es-url:9200") {
+            @Override
+            public String openPointInTime(String indexName, String keepAlive) {
+                return "pit-1";
+            }
+
+            @Override
+            public void closePointInTime(String pitId) {
+            }
+
+            @Override
+            public byte[] searchWithPointInTime(byte[] queryJson) {
+                return """
+                    {"pit_id": "pit-1", "hits": {"total": {"value": 0}, "hits": []}}""".getBytes(StandardCharsets.UTF_8);
+            }
+        };
+        HnswVectorStore store = new HnswVectorStore(4, 10, 10);
+
+        // when
+        store.copyFrom(connector, objectMapper, "docs");
+
+        // then
+        assertEquals(0, store.size("docs"));
+        assertTrue(store.search("docs", new float[]{1, 0}, 3).isEmpty());
+    }
+}
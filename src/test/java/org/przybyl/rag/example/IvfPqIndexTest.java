@@ -0,0 +1,67 @@
+package org.przybyl.rag.example;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.przybyl.rag.example.utils.FlatVectorFile;
+import org.przybyl.rag.example.utils.IvfPqIndex;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+class IvfPqIndexTest {
+
+    private static final int DIMS = 16;
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void shouldFindNeighboursWithCompressedVectors() throws Exception {
+        // given: vectors around a few topics, like embeddings of related passages
+        Random random = new Random(11);
+        float[][] topics = new float[20][DIMS];
+        for (float[] topic : topics) {
+            fill(topic, random, 1);
+        }
+        Path path = tempDir.resolve("docs.vectors");
+        List<float[]> queries = new ArrayList<>();
+        try (FlatVectorFile.Writer writer = FlatVectorFile.create(path, "all-minilm")) {
+            for (int i = 0; i < 3000; i++) {
+                float[] vector = new float[DIMS];
+                fill(vector, random, 0.5f);
+                float[] topic = topics[random.nextInt(topics.length)];
+                for (int d = 0; d < DIMS; d++) {
+                    vector[d] += topic[d];
+                }
+                writer.add(String.valueOf(i), null, null, "passage " + i, vector);
+                if (i % 100 == 0) {
+                    queries.add(vector);
+                }
+            }
+        }
+
+        try (FlatVectorFile file = FlatVectorFile.open(path)) {
+            // when
+            IvfPqIndex index = IvfPqIndex.build(file, new IvfPqIndex.Settings(32, 4, 3000, 8, 42));
+            index.save(tempDir.resolve("docs.ivfpq"));
+            IvfPqIndex loaded = IvfPqIndex.load(tempDir.resolve("docs.ivfpq"));
+
+            // then
+            assertTrue(index.memoryBytes() < 3000L * DIMS * Float.BYTES / 2, "Index should take less than half of the vectors");
+            double recall = index.recall(file, queries, 5, 8, 100);
+            assertTrue(recall > 0.9, "Recall should be above 0.9, was " + recall);
+            assertTrue(index.recall(file, queries, 5, 1, 5) < recall, "Fewer probes and a shorter list should find less");
+            assertEquals(index.search(file, queries.getFirst(), 5, 8, 100), loaded.search(file, queries.getFirst(), 5, 8, 100));
+        }
+    }
+
+    private static void fill(float[] vector, Random random, float scale) {
+        for (int d = 0; d < vector.length; d++) {
+            vector[d] = (float) random.nextGaussian() * scale;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package org.przybyl.rag.example;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import org.junit.jupiter.api.Test;
+import org.przybyl.rag.example.utils.LatencyStats;
+
+class LatencyStatsTest {
+
+    @Test
+    void shouldComputePercentilesOverRecentRequestsOnly() {
+        // given
+        LatencyStats stats = new LatencyStats(100);
+
+        // when
+        for (int i = 0; i < 100; i++) {
+            stats.record(1_000_000_000L, false);
+        }
+        for (int ms = 1; ms <= 100; ms++) {
+            stats.record(ms * 1_000_000L, ms % 10 == 0);
+        }
+
+        // then
+        LatencyStats.Snapshot snapshot = stats.snapshot();
+        assertEquals(200, snapshot.count());
+        assertEquals(10, snapshot.failures());
+        assertEquals(50, snapshot.p50Ms(), 0.001);
+        assertEquals(90, snapshot.p90Ms(), 0.001);
+        assertEquals(99, snapshot.p99Ms(), 0.001);
+        assertEquals(100, snapshot.maxMs(), 0.001);
+        assertEquals((100 * 1000 + 5050) / 200.0, snapshot.meanMs(), 0.001, "Mean should cover the whole lifetime");
+    }
+}
@@ -0,0 +1,117 @@
+package org.przybyl.rag.example;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.przybyl.rag.example.utils.GenerationMetrics;
+import org.przybyl.rag.example.utils.OllamaChatService;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+class OllamaChatServiceTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    /// The streamed response of `/api/chat` generating the given tokens
+    private static StubHttpClient answering(String... tokens) {
+        List<String> lines = new ArrayList<>();
+        for (String token : tokens) {
+            lines.add("{\"message\":{\"role\":\"assistant\",\"content\":\"" + token + "\"},\"done\":false}");
+        }
+        lines.add("{\"message\":{\"role\":\"assistant\",\"content\":\"\"},\"done\":true,"
+            + "\"prompt_eval_count\":12,\"prompt_eval_duration\":60000000,\"eval_count\":" + tokens.length + ",\"eval_duration\":100000000}");
+        return new StubHttpClient(200, String.join("\n", lines));
+    }
+
+    private static String answer(Stream<String> tokens) {
+        try (tokens) {
+            return tokens.collect(Collectors.joining());
+        }
+    }
+
+    @Test
+    void shouldSendSamePrefixWithFollowUpQuestion() throws Exception {
+        // given
+        StubHttpClient httpClient = answering("Virtual threads ", "are cheap.");
+        OllamaChatService chatService = new OllamaChatService(objectMapper, httpClient,
+            new OllamaChatService.Settings("You answer questions about Java.", "10m", 1000, 10));
+
+        // when
+        String first = answer(chatService.chat("session", "What are virtual threads?", "JEP 444: Virtual Threads", Map.of("temperature", 0.6)));
+        answer(chatService.chat("session", "Can they be pinned?", "JEP 491: Synchronize Virtual Threads without Pinning", Map.of("temperature", 0.6)));
+        answer(chatService.chat("session", "Since when?", "", Map.of("temperature", 0.6)));
+
+        // then
+        assertEquals("Virtual threads are cheap.\n", first);
+        JsonNode firstRequest = objectMapper.readTree(httpClient.requestBodies().get(0));
+        JsonNode followUp = objectMapper.readTree(httpClient.requestBodies().get(1));
+        JsonNode last = objectMapper.readTree(httpClient.requestBodies().get(2));
+        assertEquals("10m", followUp.path("keep_alive").asText());
+        assertEquals(3, firstRequest.path("messages").size());
+        assertTrue(firstRequest.path("messages").get(1).path("content").asText().contains("JEP 444"), "Context should come before the question");
+        assertEquals(5, followUp.path("messages").size());
+        assertEquals(firstRequest.path("messages").get(0), followUp.path("messages").get(0));
+        assertEquals(firstRequest.path("messages").get(2), followUp.path("messages").get(1), "History should hold the question as asked");
+        assertEquals("assistant", followUp.path("messages").get(2).path("role").asText());
+        assertEquals("Virtual threads are cheap.", followUp.path("messages").get(2).path("content").asText());
+        assertTrue(followUp.path("messages").get(3).path("content").asText().contains("JEP 491"));
+        assertEquals("Can they be pinned?", followUp.path("messages").get(4).path("content").asText());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(followUp.path("messages").get(i), last.path("messages").get(i), "Follow-up should start with the previous history");
+        }
+        assertEquals(6, last.path("messages").size(), "Question without context should be sent on its own");
+        List<OllamaChatService.Message> history = chatService.history("session");
+        assertEquals(6, history.size());
+        assertTrue(history.stream().noneMatch(message -> message.content().contains("JEP")), "Context should not be kept in the history");
+        GenerationMetrics.Snapshot metrics = chatService.metrics().snapshot();
+        assertEquals(3, metrics.total().count());
+        assertEquals(6, metrics.generatedTokens());
+        assertEquals(20.0, metrics.tokensPerSecond(), 1e-9);
+        assertEquals(60.0, metrics.last().promptEvalNanos() / 1e6, 1e-9);
+    }
+
+    @Test
+    void shouldCompactHistoryOnceOverLimit() throws Exception {
+        // given
+        StubHttpClient httpClient = answering("x".repeat(40));
+        OllamaChatService chatService = new OllamaChatService(objectMapper, httpClient,
+            new OllamaChatService.Settings("System", "5m", 60, 10));
+
+        // when
+        for (int turn = 0; turn < 5; turn++) {
+            answer(chatService.chat("session", "Question " + turn, "", Map.of()));
+        }
+
+        // then
+        List<OllamaChatService.Message> history = chatService.history("session");
+        assertEquals(1, chatService.stats().compactions());
+        assertEquals(5, chatService.stats().turns());
+        assertEquals("user", history.getFirst().role(), "History should start with a question");
+        assertEquals("Question 4", history.get(history.size() - 2).content());
+        assertTrue(history.size() < 10, "Old turns should be dropped");
+    }
+
+    @Test
+    void shouldForgetLeastRecentlyUsedSession() throws Exception {
+        // given
+        OllamaChatService chatService = new OllamaChatService(objectMapper, answering("Yes."),
+            new OllamaChatService.Settings("System", "5m", 1000, 2));
+
+        // when
+        answer(chatService.chat("first", "Question", "", Map.of()));
+        answer(chatService.chat("second", "Question", "", Map.of()));
+        answer(chatService.chat("first", "Follow-up", "", Map.of()));
+        answer(chatService.chat("third", "Question", "", Map.of()));
+
+        // then
+        assertEquals(2, chatService.stats().sessions());
+        assertEquals(4, chatService.history("first").size());
+        assertTrue(chatService.history("second").isEmpty(), "Least recently used session should be forgotten");
+    }
+}
@@ -98,7 +98,11 @@ class OllamaEmbeddingServiceTest {
 
         @Override
         public <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request, HttpResponse.BodyHandler<T> responseBodyHandler) {
-            throw new UnsupportedOperationException("Async operations not supported in test client");
+            try {
+                return CompletableFuture.completedFuture(send(request, responseBodyHandler));
+            } catch (IOException e) {
+                return CompletableFuture.failedFuture(e);
+            }
         }
 
         @Override
@@ -220,6 +224,17 @@ class OllamaEmbeddingServiceTest {
         assertEquals(TEST_RESPONSE, response, "Should return response body");
     }
 
+    @Test
+    void shouldRequestEmbeddingAsynchronously() {
+        // when
+        String response = embeddingService.requestEmbeddingAsync(TEST_REQUEST).join();
+
+        // then
+        assertEquals(URI.create(EXPECTED_URL), httpClient.getLastRequest().uri(), "Should use correct URL");
+        assertEquals(TEST_REQUEST.trim(), httpClient.getLastRequestBody().trim(), "Request body should match test request");
+        assertEquals(TEST_RESPONSE, response, "Should return response body");
+    }
+
     @Test
     void shouldHandleHttpError() {
         // given
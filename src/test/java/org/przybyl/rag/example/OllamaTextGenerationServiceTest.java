@@ -0,0 +1,86 @@
+package org.przybyl.rag.example;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.przybyl.rag.example.utils.GenerationMetrics;
+import org.przybyl.rag.example.utils.OllamaTextGenerationService;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+class OllamaTextGenerationServiceTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Test
+    void shouldStreamTokensAndRecordTimingsOfFinalResponse() throws Exception {
+        // given
+        OllamaTextGenerationService generationService = new OllamaTextGenerationService(objectMapper, new StubHttpClient(200, """
+            {"model":"test","created_at":"2025-01-01T00:00:00Z","response":"Virtual \\"threads\\"","done":false}
+            {"model":"test","created_at":"2025-01-01T00:00:00Z","response":" are cheap.","done":false}
+            {"model":"test","response":"","done":true,"done_reason":"stop","context":[1,2,3],"total_duration":2500000000,\
+            "prompt_eval_count":300,"prompt_eval_duration":500000000,"eval_count":80,"eval_duration":2000000000}
+            """));
+
+        // when
+        List<String> tokens;
+        try (Stream<String> stream = generationService.generate("What are virtual threads?", Map.of())) {
+            tokens = stream.toList();
+        }
+
+        // then
+        assertEquals(List.of("Virtual \"threads\"", " are cheap.", "\n"), tokens);
+        GenerationMetrics.Snapshot metrics = generationService.metrics().snapshot();
+        assertEquals(1, metrics.firstToken().count());
+        assertEquals(80, metrics.generatedTokens());
+        assertEquals(40.0, metrics.tokensPerSecond(), 1e-9);
+        assertEquals(600.0, metrics.promptTokensPerSecond(), 1e-9);
+        assertEquals(300, metrics.last().promptTokens());
+        assertEquals(500.0, metrics.promptEval().maxMs(), 1e-9);
+        assertTrue(metrics.last().firstTokenNanos() <= metrics.last().totalNanos());
+    }
+
+    @Test
+    void shouldNotRecordTimingsOfUnfinishedAnswer() throws Exception {
+        // given
+        OllamaTextGenerationService generationService = new OllamaTextGenerationService(objectMapper, new StubHttpClient(200, """
+            {"response":"Virtual","done":false}
+            {"response":" threads","done":false}
+            """));
+
+        // when
+        String first;
+        try (Stream<String> stream = generationService.generate("What are virtual threads?", Map.of())) {
+            first = stream.findFirst().orElseThrow();
+        }
+
+        // then
+        assertEquals("Virtual", first);
+        assertEquals(0, generationService.metrics().snapshot().total().count());
+    }
+
+    @Test
+    void shouldFailOnErrorResponses() throws Exception {
+        // given
+        OllamaTextGenerationService missingModel = new OllamaTextGenerationService(objectMapper,
+            new StubHttpClient(404, "{\"error\":\"model 'test' not found\"}"));
+        OllamaTextGenerationService failingStream = new OllamaTextGenerationService(objectMapper, new StubHttpClient(200, """
+            {"response":"Virtual","done":false}
+            {"error":"an unexpected error occurred"}
+            """));
+
+        // when/then
+        IOException notFound = assertThrows(IOException.class, () -> missingModel.generate("prompt", Map.of()));
+        assertTrue(notFound.getMessage().contains("404"));
+        try (Stream<String> stream = failingStream.generate("prompt", Map.of())) {
+            UncheckedIOException failed = assertThrows(UncheckedIOException.class, stream::toList);
+            assertTrue(failed.getMessage().contains("an unexpected error occurred"));
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package org.przybyl.rag.example;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.przybyl.rag.example.utils.PipelineStage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+class PipelineStageTest {
+
+    @Test
+    void shouldPassAllItemsThroughStagesInBatches() throws Exception {
+        // given
+        List<Integer> written = Collections.synchronizedList(new ArrayList<>());
+        List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+
+        PipelineStage<Integer, Integer> doubling = new PipelineStage<>("double", 3, 1, 2,
+            (items, downstream) -> items.forEach(item -> downstream.accept(item * 2)));
+        PipelineStage<Integer, Void> writing = new PipelineStage<>("write", 1, 5, 2,
+            (items, downstream) -> {
+                written.addAll(items);
+                batchSizes.add(items.size());
+            });
+
+        // when
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            doubling.then(writing);
+            doubling.start(executor);
+            for (int i = 1; i <= 100; i++) {
+                doubling.put(i);
+            }
+            doubling.finish();
+            doubling.awaitCompletion();
+        }
+
+        // then
+        assertEquals(100, written.size());
+        assertEquals(10100, written.stream().mapToInt(Integer::intValue).sum());
+        assertTrue(batchSizes.stream().allMatch(size -> size <= 5), "Batches should not exceed the batch size");
+        assertEquals(100, doubling.stats().items());
+        assertEquals(100, writing.stats().items());
+        assertTrue(doubling.stats().maxQueueDepth() <= 2 + 3, "Queue should stay bounded");
+    }
+
+    @Test
+    void shouldStopPipelineAndRethrowWhenStageFails() {
+        // given
+        PipelineStage<Integer, Integer> passing = new PipelineStage<>("pass", 1, 1, 2,
+            (items, downstream) -> items.forEach(downstream));
+        PipelineStage<Integer, Void> failing = new PipelineStage<>("fail", 1, 1, 2,
+            (items, downstream) -> {
+                throw new IllegalStateException("Bulk rejected");
+            });
+
+        // when/then
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            passing.then(failing);
+            passing.start(executor);
+            IOException thrown = assertThrows(IOException.class, () -> {
+                for (int i = 0; i < 1000; i++) {
+                    passing.put(i);
+                }
+                passing.finish();
+                passing.awaitCompletion();
+            });
+            assertEquals("Pipeline stage fail failed", thrown.getMessage());
+            assertEquals("Bulk rejected", thrown.getCause().getMessage());
+        }
+    }
+
+    @Test
+    void shouldShareFailureWhicheverOrderStagesAreConnectedIn() {
+        // given
+        PipelineStage<Integer, Integer> first = new PipelineStage<>("first", 1, 1, 2,
+            (items, downstream) -> items.forEach(downstream));
+        PipelineStage<Integer, Integer> second = new PipelineStage<>("second", 1, 1, 2,
+            (items, downstream) -> items.forEach(downstream));
+        PipelineStage<Integer, Void> failing = new PipelineStage<>("fail", 1, 1, 2,
+            (items, downstream) -> {
+                throw new IllegalStateException("Bulk rejected");
+            });
+
+        // when/then
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            second.then(failing);
+            first.then(second);
+            first.start(executor);
+            assertThrows(IllegalStateException.class, () -> failing.then(new PipelineStage<>("late", 1, 1, 2, (items, downstream) -> {
+            })));
+            IOException thrown = assertThrows(IOException.class, () -> {
+                for (int i = 0; i < 1000; i++) {
+                    first.put(i);
+                }
+                first.finish();
+                first.awaitCompletion();
+            });
+            assertEquals("Pipeline stage fail failed", thrown.getMessage());
+        }
+    }
+}
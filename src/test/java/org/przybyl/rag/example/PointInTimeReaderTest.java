@@ -0,0 +1,102 @@
+package org.przybyl.rag.example;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.przybyl.rag.example.utils.ElasticsearchConnector;
+import org.przybyl.rag.example.utils.PointInTimeReader;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+class PointInTimeReaderTest {
+
+    private static class TestElasticsearchConnector extends ElasticsearchConnector {
+        private final ObjectMapper objectMapper;
+        private final List<String> pages;
+        private final List<JsonNode> requests = new ArrayList<>();
+        private String closedPitId;
+
+        TestElasticsearchConnector(ObjectMapper objectMapper, List<String> pages) {
+            super(objectMapper, "http://test-es-url:9200");
+            this.objectMapper = objectMapper;
+            this.pages = pages;
+        }
+
+        @Override
+        public String openPointInTime(String indexName, String keepAlive) {
+            return "pit-1";
+        }
+
+        @Override
+        public void closePointInTime(String pitId) {
+            closedPitId = pitId;
+        }
+
+        @Override
+        public byte[] searchWithPointInTime(byte[] queryJson) throws IOException {
+            requests.add(objectMapper.readTree(queryJson));
+            return pages.get(requests.size() - 1).getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    private static String page(String pitId, int... ids) {
+        StringBuilder hits = new StringBuilder();
+        for (int id : ids) {
+            if (!hits.isEmpty()) {
+                hits.append(",");
+            }
+            hits.append("""
+                {"_id": "%d", "_source": {"title": "Doc %d", "url":"https://example.com/%d"}, "sort": [%d]}""".formatted(id, id, id, id));
+        }
+        return """
+            {"pit_id": "%s", "hits": {"total": {"value": 5}, "hits": [%s]}}""".formatted(pitId, hits);
+    }
+
+    @Test
+    void shouldReadAllPagesUsingSearchAfter() {
+        // given
+        ObjectMapper objectMapper = new ObjectMapper();
+        TestElasticsearchConnector connector = new TestElasticsearchConnector(objectMapper, List.of(
+            page("pit-1", 1, 2),
+            page("pit-2", 3, 4),
+            page("pit-2", 5)
+        ));
+
+        // when
+        List<PointInTimeReader.Hit> hits = new ArrayList<>();
+        long totalHits;
+        try (PointInTimeReader reader = new PointInTimeReader(connector, objectMapper, "source", 2)) {
+            totalHits = reader.totalHits();
+            reader.forEachRemaining(hits::add);
+        }
+        List<String> ids = hits.stream().map(PointInTimeReader.Hit::id).toList();
+
+        // then
+        assertEquals(5, totalHits);
+        assertEquals(List.of("1", "2", "3", "4", "5"), ids);
+        assertEquals(3, connector.requests.size(), "The short last page should end reading without an extra request");
+
+        JsonNode first = connector.requests.get(0);
+        assertFalse(first.has("search_after"), "First page should not use search_after");
+        assertTrue(first.path("track_total_hits").asBoolean());
+
+        JsonNode third = connector.requests.get(2);
+        assertEquals(4, third.path("search_after").get(0).asInt(), "Should continue after the last hit of previous page");
+        assertEquals("pit-2", third.path("pit").path("id").asText(), "Should use the latest point in time id");
+        assertFalse(third.path("track_total_hits").asBoolean());
+
+        assertEquals("pit-2", connector.closedPitId, "Should close the point in time");
+
+        PointInTimeReader.Hit last = hits.getLast();
+        assertEquals("Doc 5", last.source().path("title").asText());
+        assertEquals("""
+            {"title": "Doc 5", "url":"https://example.com/5"}""", new String(last.rawSource(), StandardCharsets.UTF_8),
+            "Raw source should be passed through exactly as returned");
+    }
+}
@@ -0,0 +1,72 @@
+package org.przybyl.rag.example;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import org.junit.jupiter.api.Test;
+import org.przybyl.rag.example.utils.QueryEmbeddingCache;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+class QueryEmbeddingCacheTest {
+
+    private static class TestClock extends Clock {
+        private Instant now = Instant.parse("2025-01-01T00:00:00Z");
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return now;
+        }
+    }
+
+    @Test
+    void shouldExpireEntriesAfterTtl() {
+        // given
+        TestClock clock = new TestClock();
+        QueryEmbeddingCache cache = new QueryEmbeddingCache(10, Duration.ofMinutes(5), clock);
+        cache.put("all-minilm", "Virtual Threads", new float[]{0.1f});
+
+        // when
+        float[] fresh = cache.get("all-minilm", "virtual threads");
+        clock.now = clock.now.plus(Duration.ofMinutes(6));
+        float[] expired = cache.get("all-minilm", "virtual threads");
+
+        // then
+        assertArrayEquals(new float[]{0.1f}, fresh);
+        assertNull(expired);
+        assertEquals(1, cache.stats().expirations());
+        assertEquals(0, cache.stats().size());
+    }
+
+    @Test
+    void shouldEvictLeastRecentlyUsedAndSeparateModels() {
+        // given
+        QueryEmbeddingCache cache = new QueryEmbeddingCache(2, Duration.ofMinutes(5));
+        cache.put("m", "first", new float[]{1});
+        cache.put("m", "second", new float[]{2});
+
+        // when
+        cache.get("m", "first");
+        cache.put("m", "third", new float[]{3});
+
+        // then
+        assertNull(cache.get("m", "second"), "Least recently used entry should be evicted");
+        assertArrayEquals(new float[]{1}, cache.get("m", "first"));
+        assertNull(cache.get("other-model", "first"), "Embeddings of other models should not be returned");
+        assertEquals(1, cache.stats().evictions());
+    }
+}
@@ -0,0 +1,187 @@
+package org.przybyl.rag.example;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.przybyl.rag.example.demos.RagServer;
+import org.przybyl.rag.example.utils.ChatService;
+import org.przybyl.rag.example.utils.ContextAssembler;
+import org.przybyl.rag.example.utils.GenerationMetrics;
+import org.przybyl.rag.example.utils.SearchResult;
+import org.przybyl.rag.example.utils.Searcher;
+import org.przybyl.rag.example.utils.TextGenerationService;
+import org.przybyl.rag.example.utils.TextSplitter;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+class RagServerTest {
+
+    private static class TestSearcher extends Searcher {
+        TestSearcher(ObjectMapper objectMapper) {
+            super(null, null, objectMapper, null);
+        }
+
+        @Override
+        public List<SearchResult> search(String indexName, String query) {
+            return List.of(
+                new SearchResult("444", "JEP 444: Virtual Threads", "https://openjdk.org/jeps/444", "Virtual threads are lightweight threads", 0.9f),
+                new SearchResult("453", "JEP 453: Structured Concurrency", "https://openjdk.org/jeps/453", "Structured concurrency", 0.7f));
+        }
+    }
+
+    private static class TestChatService implements ChatService {
+        private final List<String> sessionIds = Collections.synchronizedList(new ArrayList<>());
+        private final List<String> messages = Collections.synchronizedList(new ArrayList<>());
+        private final List<String> contexts = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public Stream<String> chat(String sessionId, String message, String context, Map<String, ?> options) {
+            sessionIds.add(sessionId);
+            messages.add(message);
+            contexts.add(context);
+            return Stream.of("They can be ", "pinned.\n");
+        }
+
+        @Override
+        public void endSession(String sessionId) {
+        }
+
+        @Override
+        public GenerationMetrics metrics() {
+            return new GenerationMetrics(10);
+        }
+
+        @Override
+        public Stats stats() {
+            return new Stats(1, sessionIds.size(), 0);
+        }
+    }
+
+    private static class TestGenerationService implements TextGenerationService {
+
+        @Override
+        public Stream<String> generate(String prompt, Map<String, ?> options) {
+            return Stream.of("Virtual threads ", "are cheap.\n");
+        }
+
+        @Override
+        public GenerationMetrics metrics() {
+            return new GenerationMetrics(10);
+        }
+    }
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final TestChatService chatService = new TestChatService();
+    private final HttpClient httpClient = HttpClient.newHttpClient();
+    private RagServer server;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        server = new RagServer(new TestSearcher(objectMapper),
+            new TestGenerationService(),
+            chatService,
+            new ContextAssembler(2048, 0.5, new TextSplitter()),
+            null, objectMapper, "jeps", new InetSocketAddress("localhost", 0));
+        server.start();
+    }
+
+    @AfterEach
+    void tearDown() {
+        server.stop();
+    }
+
+    private HttpResponse<String> get(String pathAndQuery) throws Exception {
+        URI uri = URI.create("http://localhost:" + server.address().getPort() + pathAndQuery);
+        return httpClient.send(HttpRequest.newBuilder(uri).GET().build(), HttpResponse.BodyHandlers.ofString());
+    }
+
+    // a request is recorded after its response has been sent, so the client may see the response a bit earlier
+    private JsonNode awaitStats(int requests) throws Exception {
+        JsonNode stats = objectMapper.readTree(get("/stats").body());
+        for (int attempt = 0; attempt < 100 && stats.path("search").path("count").asInt() + stats.path("ask").path("count").asInt() < requests; attempt++) {
+            Thread.sleep(10);
+            stats = objectMapper.readTree(get("/stats").body());
+        }
+        return stats;
+    }
+
+    @Test
+    void shouldReturnSearchResultsAsJson() throws Exception {
+        // when
+        HttpResponse<String> response = get("/search?q=virtual%20threads");
+
+        // then
+        assertEquals(200, response.statusCode());
+        JsonNode results = objectMapper.readTree(response.body());
+        assertEquals(2, results.size());
+        assertEquals("444", results.get(0).path("id").asText());
+    }
+
+    @Test
+    void shouldStreamAnswerAsServerSentEvents() throws Exception {
+        // when
+        HttpResponse<String> response = get("/ask?q=What+are+virtual+threads%3F");
+
+        // then
+        assertEquals(200, response.statusCode());
+        assertTrue(response.headers().firstValue("Content-Type").orElse("").startsWith("text/event-stream"));
+        List<String> events = List.of(response.body().split("\n\n"));
+        assertEquals(4, events.size(), "Expected results, two tokens and done, got: " + response.body());
+        assertTrue(events.get(0).startsWith("event: results\ndata: ["));
+        assertEquals("event: token\ndata: \"Virtual threads \"", events.get(1));
+        assertEquals("event: token\ndata: \"are cheap.\\n\"", events.get(2), "New line in a token should be escaped");
+        assertEquals("event: done\ndata: {\"cached\":false}", events.get(3));
+    }
+
+    @Test
+    void shouldRejectMissingQueryAndCountRequests() throws Exception {
+        // when
+        HttpResponse<String> missing = get("/search");
+        get("/search?q=jep");
+        get("/ask?q=jep");
+
+        // then
+        assertEquals(400, missing.statusCode());
+        JsonNode stats = awaitStats(3);
+        assertEquals(2, stats.path("search").path("count").asInt());
+        assertEquals(1, stats.path("search").path("failures").asInt());
+        assertEquals(1, stats.path("ask").path("count").asInt());
+        assertEquals(1, stats.path("firstToken").path("count").asInt());
+    }
+
+    @Test
+    void shouldStreamChatTurnWithinGivenSession() throws Exception {
+        // when
+        HttpResponse<String> first = get("/chat?q=What+are+virtual+threads%3F");
+        String sessionId = objectMapper.readTree(first.body().split("\n\n")[0].substring("event: session\ndata: ".length())).path("id").asText();
+        HttpResponse<String> followUp = get("/chat?q=Can+they+be+pinned%3F&session=" + sessionId);
+
+        // then
+        assertEquals(200, followUp.statusCode());
+        List<String> events = List.of(followUp.body().split("\n\n"));
+        assertEquals(5, events.size(), "Expected session, results, two tokens and done, got: " + followUp.body());
+        assertEquals("event: session\ndata: {\"id\":\"" + sessionId + "\"}", events.get(0));
+        assertTrue(events.get(1).startsWith("event: results\ndata: ["));
+        assertEquals("event: token\ndata: \"They can be \"", events.get(2));
+        assertEquals("event: done\ndata: {\"cached\":false}", events.get(4));
+        assertEquals(List.of(sessionId, sessionId), chatService.sessionIds, "Follow-up should continue the same session");
+        assertEquals(List.of("What are virtual threads?", "Can they be pinned?"), chatService.messages, "Questions should be sent without the context");
+        assertTrue(chatService.contexts.getLast().contains("Virtual threads are lightweight threads"), "Context should be sent separately");
+        JsonNode stats = objectMapper.readTree(get("/stats").body());
+        assertEquals(2, stats.path("chatSessions").path("turns").asInt(), "Stats of any chat service should be reported");
+        assertTrue(stats.path("chatGeneration").isObject());
+    }
+}
@@ -7,25 +7,46 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.przybyl.rag.example.utils.ElasticsearchConnector;
 import org.przybyl.rag.example.utils.Encoder;
+import org.przybyl.rag.example.utils.QueryEmbeddingCache;
 import org.przybyl.rag.example.utils.SearchResult;
 import org.przybyl.rag.example.utils.Searcher;
+import org.przybyl.rag.example.utils.SingleFlight;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
 
 class SearcherTest {
 
     private static class TestEncoder extends Encoder {
-        private static final double[] TEST_EMBEDDING = {0.1, 0.2, 0.3};
+        private static final float[] TEST_EMBEDDING = {0.1f, 0.2f, 0.3f};
+        private int encoded;
 
         public TestEncoder() {
             super(null, null); // We don't need these for testing
         }
 
         @Override
-        public double[] encode(String text) {
+        public float[] encode(String text) {
+            encoded++;
             return TEST_EMBEDDING;
         }
+
+        @Override
+        public CompletableFuture<float[]> encodeAsync(String text) {
+            return CompletableFuture.supplyAsync(() -> encode(text));
+        }
+
+        @Override
+        public boolean supportsBatch() {
+            return false;
+        }
     }
 
     private static class TestElasticsearchConnector extends ElasticsearchConnector {
@@ -73,19 +94,31 @@ class SearcherTest {
         }
 
         @Override
-        public String searchWithCustomQuery(String indexName, String queryJson) throws IOException {
-            return testResponse;
+        public <T> T searchWithCustomQuery(String indexName, String queryJson, ResponseReader<T> reader) throws IOException {
+            return reader.read(new ByteArrayInputStream(testResponse.getBytes(StandardCharsets.UTF_8)));
+        }
+
+        @Override
+        public <T> CompletableFuture<T> searchAsync(String indexName, String queryJson, ResponseReader<T> reader) {
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    return searchWithCustomQuery(indexName, queryJson, reader);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
         }
     }
 
     private ObjectMapper objectMapper;
     private Searcher searcher;
     private TestElasticsearchConnector testConnector;
+    private TestEncoder encoder;
 
     @BeforeEach
     void setUp() {
         objectMapper = new ObjectMapper();
-        TestEncoder encoder = new TestEncoder();
+        encoder = new TestEncoder();
         testConnector = new TestElasticsearchConnector(objectMapper);
         searcher = new Searcher(encoder, testConnector, objectMapper);
     }
@@ -113,4 +146,168 @@ class SearcherTest {
         System.out.println("[DEBUG_LOG] Search results:");
         results.forEach(result -> System.out.println("[DEBUG_LOG] " + result));
     }
+
+    @Test
+    void shouldReuseEmbeddingOfRepeatedQuery() throws Exception {
+        // given
+        Searcher cachingSearcher = new Searcher(encoder, testConnector, objectMapper, new QueryEmbeddingCache(10, Duration.ofMinutes(5)));
+
+        // when
+        cachingSearcher.search("index", "What is a virtual thread?");
+        cachingSearcher.search("index", "  what is a   Virtual Thread?");
+
+        // then
+        assertEquals(1, encoder.encoded, "Repeated query should not be embedded again");
+        assertEquals(1, cachingSearcher.queryCacheStats().hits());
+        assertEquals(0.5, cachingSearcher.queryCacheStats().hitRate(), 0.001);
+    }
+
+    @Test
+    void shouldSearchAsynchronously() {
+        // given
+        Searcher cachingSearcher = new Searcher(encoder, testConnector, objectMapper, new QueryEmbeddingCache(10, Duration.ofMinutes(5)));
+
+        // when
+        List<CompletableFuture<List<SearchResult>>> searches = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            searches.add(cachingSearcher.searchAsync("index", "What is a virtual thread?"));
+        }
+        CompletableFuture.allOf(searches.toArray(CompletableFuture[]::new)).join();
+
+        // then
+        for (CompletableFuture<List<SearchResult>> search : searches) {
+            List<SearchResult> results = search.join();
+            assertEquals(3, results.size());
+            assertEquals("1", results.getFirst().id());
+        }
+        // identical searches in flight at once share one, and only the shared ones look the embedding up
+        SingleFlight.Stats coalescing = cachingSearcher.searchCoalescingStats();
+        assertEquals(100, coalescing.calls() + coalescing.collapsed());
+        assertEquals(coalescing.calls(), cachingSearcher.queryCacheStats().hits() + cachingSearcher.queryCacheStats().misses());
+    }
+
+    @Test
+    void shouldShareSearchAmongConcurrentIdenticalQueries() {
+        // given
+        CompletableFuture<Void> release = new CompletableFuture<>();
+        AtomicInteger embeddings = new AtomicInteger();
+        AtomicInteger knnSearches = new AtomicInteger();
+        Encoder realEncoder = new Encoder(requestBody -> {
+            embeddings.incrementAndGet();
+            return "{\"embedding\": [0.1, 0.2, 0.3]}";
+        }, objectMapper);
+        ElasticsearchConnector slowConnector = new TestElasticsearchConnector(objectMapper) {
+            @Override
+            public <T> CompletableFuture<T> searchAsync(String indexName, String queryJson, ResponseReader<T> reader) {
+                knnSearches.incrementAndGet();
+                return release.thenCompose(ignored -> super.searchAsync(indexName, queryJson, reader));
+            }
+        };
+        Searcher coalescingSearcher = new Searcher(realEncoder, slowConnector, objectMapper);
+
+        // when
+        List<CompletableFuture<List<SearchResult>>> searches = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            searches.add(coalescingSearcher.searchAsync("index", "What is a virtual thread?"));
+        }
+        release.complete(null);
+        CompletableFuture.allOf(searches.toArray(CompletableFuture[]::new)).join();
+
+        // then
+        for (CompletableFuture<List<SearchResult>> search : searches) {
+            assertEquals(3, search.join().size());
+        }
+        assertEquals(1, knnSearches.get(), "Identical searches in flight should be sent once");
+        assertEquals(1, embeddings.get(), "Query of a shared search should be embedded once");
+        assertEquals(1, coalescingSearcher.searchCoalescingStats().calls());
+        assertEquals(99, coalescingSearcher.searchCoalescingStats().collapsed());
+        assertEquals(0, coalescingSearcher.searchCoalescingStats().inFlight());
+        assertEquals(1, coalescingSearcher.embeddingCoalescingStats().calls());
+    }
+
+    private static class HybridTestConnector extends ElasticsearchConnector {
+
+        HybridTestConnector(ObjectMapper objectMapper) {
+            super(objectMapper, "http://test-es-url:9200");
+        }
+
+        @Override
+        public <T> T searchWithCustomQuery(String indexName, String queryJson, ResponseReader<T> reader) throws IOException {
+            // lexical ranks 1, 2, kNN ranks 2, 3
+            String response = queryJson.contains("\"knn\"") ? response("2", "3") : response("1", "2");
+            return reader.read(new ByteArrayInputStream(response.getBytes(StandardCharsets.UTF_8)));
+        }
+
+        private static String response(String... ids) {
+            StringBuilder hits = new StringBuilder();
+            for (String id : ids) {
+                if (!hits.isEmpty()) {
+                    hits.append(",");
+                }
+                hits.append("""
+                    {"_id": "%s", "_score": 1.0, "fields": {"title": ["Doc %s"], "url": ["http://example.com/%s"]}}""".formatted(id, id, id));
+            }
+            return "{\"hits\": {\"hits\": [" + hits + "]}}";
+        }
+    }
+
+    @Test
+    void shouldFuseLexicalAndKnnResults() throws Exception {
+        // given
+        Searcher hybridSearcher = new Searcher(encoder, new HybridTestConnector(objectMapper), objectMapper, null);
+
+        // when
+        List<SearchResult> results = hybridSearcher.hybridSearch("index", "JEP 444");
+
+        // then
+        assertEquals(List.of("2", "1", "3"), results.stream().map(SearchResult::id).toList(),
+            "Document found by both should come first");
+        assertEquals(1f / 62 + 1f / 61, results.get(0).score(), 0.0001f);
+    }
+
+    @Test
+    void shouldFallBackToLexicalResultsWhenKnnFails() throws Exception {
+        // given
+        Encoder failingEncoder = new TestEncoder() {
+            @Override
+            public float[] encode(String text) {
+                throw new RuntimeException("Failed to encode text");
+            }
+        };
+        Searcher hybridSearcher = new Searcher(failingEncoder, new HybridTestConnector(objectMapper), objectMapper, null);
+
+        // when
+        List<SearchResult> results = hybridSearcher.hybridSearch("index", "JEP 444");
+
+        // then
+        assertEquals(List.of("1", "2"), results.stream().map(SearchResult::id).toList());
+    }
+
+    @Test
+    void shouldSearchAllQueriesInOneMultiSearch() throws Exception {
+        // given
+        List<List<String>> multiSearches = new ArrayList<>();
+        ElasticsearchConnector connector = new ElasticsearchConnector(objectMapper, "http://test-es-url:9200") {
+            @Override
+            public <T> T multiSearch(String indexName, List<String> queriesJson, ResponseReader<T> reader) throws IOException {
+                multiSearches.add(queriesJson);
+                return reader.read(new ByteArrayInputStream("""
+                    {"responses": [
+                        {"hits": {"hits": [{"_id": "1", "_score": 0.9, "fields": {"title": ["Doc 1"], "url": ["http://example.com/1"]}}]}},
+                        {"error": {"type": "search_phase_execution_exception"}, "status": 400}
+                    ]}""".getBytes(StandardCharsets.UTF_8)));
+            }
+        };
+        Searcher batchSearcher = new Searcher(encoder, connector, objectMapper, new QueryEmbeddingCache(10, Duration.ofMinutes(5)));
+
+        // when
+        List<List<SearchResult>> results = batchSearcher.searchAll("index", List.of("first query", "second query"));
+
+        // then
+        assertEquals(1, multiSearches.size());
+        assertEquals(2, multiSearches.getFirst().size());
+        assertEquals("1", results.get(0).getFirst().id());
+        assertEquals(List.of(), results.get(1), "Failed search should have no results");
+        assertEquals(2, batchSearcher.queryCacheStats().size(), "Query embeddings should be cached");
+    }
 }
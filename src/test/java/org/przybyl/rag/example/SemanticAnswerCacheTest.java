@@ -0,0 +1,74 @@
+package org.przybyl.rag.example;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.przybyl.rag.example.utils.SemanticAnswerCache;
+
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.List;
+
+class SemanticAnswerCacheTest {
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private static SemanticAnswerCache cache(Path path) throws Exception {
+        return new SemanticAnswerCache(path, 10, 1024 * 1024, Duration.ofHours(1), 0.95f, OBJECT_MAPPER, Clock.systemUTC());
+    }
+
+    @Test
+    void shouldReplayAnswerToSimilarQuestionWithSameDocuments() throws Exception {
+        // given
+        SemanticAnswerCache cache = cache(null);
+        cache.useIndex("search/uuid-1");
+        cache.put(new float[]{1, 0, 0}, List.of("a", "b"), List.of("Virtual ", "threads", "\n"));
+
+        // when
+        List<String> similar = cache.lookup(new float[]{0.99f, 0.05f, 0}, List.of("a", "b"));
+        List<String> otherDocuments = cache.lookup(new float[]{0.99f, 0.05f, 0}, List.of("b", "a"));
+        List<String> otherQuestion = cache.lookup(new float[]{0.5f, 0.5f, 0}, List.of("a", "b"));
+
+        // then
+        assertEquals(List.of("Virtual ", "threads", "\n"), similar);
+        assertNull(otherDocuments, "Answer from other context should not be reused");
+        assertNull(otherQuestion, "Answer to a different question should not be reused");
+        assertEquals(1, cache.stats().hits());
+        assertEquals(2, cache.stats().misses());
+    }
+
+    @Test
+    void shouldDropAnswersWhenIndexIsRebuilt() throws Exception {
+        // given
+        SemanticAnswerCache cache = cache(null);
+        cache.useIndex("search/uuid-1");
+        cache.put(new float[]{1, 0}, List.of("a"), List.of("answer"));
+
+        // when
+        cache.useIndex("search/uuid-2");
+
+        // then
+        assertNull(cache.lookup(new float[]{1, 0}, List.of("a")));
+        assertEquals(1, cache.stats().invalidations());
+    }
+
+    @Test
+    void shouldKeepAnswersBetweenRuns(@TempDir Path tempDir) throws Exception {
+        // given
+        Path path = tempDir.resolve("answers.json");
+        SemanticAnswerCache cache = cache(path);
+        cache.useIndex("search/uuid-1");
+        cache.put(new float[]{0, 2}, List.of("a"), List.of("persisted"));
+        cache.save();
+
+        // when
+        SemanticAnswerCache reopened = cache(path);
+        reopened.useIndex("search/uuid-1");
+
+        // then
+        assertEquals(List.of("persisted"), reopened.lookup(new float[]{0, 1}, List.of("a")));
+    }
+}
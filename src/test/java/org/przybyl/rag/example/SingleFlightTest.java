@@ -0,0 +1,131 @@
+package org.przybyl.rag.example;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.przybyl.rag.example.utils.SingleFlight;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class SingleFlightTest {
+
+    /// Waits until the given number of calls wait for the flight, so that the test doesn't depend on timing
+    private static void awaitCollapsed(SingleFlight<?, ?> flights, int collapsed) throws InterruptedException {
+        for (int attempt = 0; attempt < 500 && flights.stats().collapsed() < collapsed; attempt++) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    void shouldShareResultOfCallInFlight() throws Exception {
+        // given
+        SingleFlight<String, List<String>> flights = new SingleFlight<>();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger calls = new AtomicInteger();
+        List<String> result = List.of("JEP 444");
+
+        // when
+        List<Future<List<String>>> searches = new ArrayList<>();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            searches.add(executor.submit(() -> flights.execute("virtual threads", () -> {
+                calls.incrementAndGet();
+                started.countDown();
+                release.await();
+                return result;
+            })));
+            started.await();
+            for (int i = 0; i < 9; i++) {
+                searches.add(executor.submit(() -> flights.execute("virtual threads", () -> {
+                    calls.incrementAndGet();
+                    return List.of();
+                })));
+            }
+            awaitCollapsed(flights, 9);
+            release.countDown();
+        }
+
+        // then
+        assertEquals(1, calls.get());
+        for (Future<List<String>> search : searches) {
+            assertSame(result, search.get());
+        }
+        SingleFlight.Stats stats = flights.stats();
+        assertEquals(1, stats.calls());
+        assertEquals(9, stats.collapsed());
+        assertEquals(0, stats.inFlight());
+    }
+
+    @Test
+    void shouldShareFailureAndCallAgainAfterwards() throws Exception {
+        // given
+        SingleFlight<String, String> flights = new SingleFlight<>();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        // when
+        Future<String> leader, follower;
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            leader = executor.submit(() -> flights.execute("query", () -> {
+                started.countDown();
+                release.await();
+                throw new IOException("Elasticsearch is down");
+            }));
+            started.await();
+            follower = executor.submit(() -> flights.execute("query", () -> "not called"));
+            awaitCollapsed(flights, 1);
+            release.countDown();
+        }
+        String retried = flights.execute("query", () -> "found");
+
+        // then
+        ExecutionException leaderFailure = assertThrows(ExecutionException.class, leader::get);
+        ExecutionException followerFailure = assertThrows(ExecutionException.class, follower::get);
+        assertTrue(leaderFailure.getCause() instanceof IOException);
+        assertTrue(followerFailure.getCause() instanceof IOException);
+        assertEquals("Elasticsearch is down", followerFailure.getCause().getMessage());
+        assertEquals("found", retried, "Failure should not be kept once the flight has landed");
+        assertEquals(2, flights.stats().calls());
+    }
+
+    @Test
+    void shouldShareAsynchronousCallWithoutSharingItsFuture() throws Exception {
+        // given
+        SingleFlight<String, float[]> flights = new SingleFlight<>();
+        CompletableFuture<float[]> response = new CompletableFuture<>();
+        AtomicInteger calls = new AtomicInteger();
+
+        // when
+        CompletableFuture<float[]> first = flights.executeAsync("query", () -> {
+            calls.incrementAndGet();
+            return response;
+        });
+        CompletableFuture<float[]> timedOut = flights.executeAsync("query", () -> {
+            calls.incrementAndGet();
+            return new CompletableFuture<>();
+        }).orTimeout(1, TimeUnit.MILLISECONDS);
+        assertThrows(ExecutionException.class, timedOut::get);
+        float[] embedding = {0.6f, 0.8f};
+        response.complete(embedding);
+
+        // then
+        assertEquals(1, calls.get());
+        assertSame(embedding, first.get(), "Timeout of one caller should not affect the others");
+        assertTrue(timedOut.isCompletedExceptionally());
+        assertEquals(1, flights.stats().collapsed());
+        assertFalse(flights.executeAsync("query", () -> new CompletableFuture<>()).isDone(), "Landed flight should not be reused");
+    }
+}
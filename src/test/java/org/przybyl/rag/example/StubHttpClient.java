@@ -0,0 +1,137 @@
+package org.przybyl.rag.example;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.net.Authenticator;
+import java.net.CookieHandler;
+import java.net.ProxySelector;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+
+/// Answers every request with the same status and body, given as an [InputStream], as by
+/// [HttpResponse.BodyHandlers#ofInputStream()], and remembers the request bodies.
+class StubHttpClient extends HttpClient {
+    private final int statusCode;
+    private final String body;
+    private final List<String> requestBodies = Collections.synchronizedList(new ArrayList<>());
+
+    StubHttpClient(int statusCode, String body) {
+        this.statusCode = statusCode;
+        this.body = body;
+    }
+
+    /// @return the bodies of the requests sent so far, the oldest first
+    List<String> requestBodies() {
+        return requestBodies;
+    }
+
+    @Override
+    public <T> HttpResponse<T> send(HttpRequest request, HttpResponse.BodyHandler<T> responseBodyHandler) {
+        requestBodies.add(request.bodyPublisher().map(StubHttpClient::read).orElse(null));
+
+        @SuppressWarnings("unchecked")
+        HttpResponse<T> response = (HttpResponse<T>) new HttpResponse<InputStream>() {
+            private final InputStream responseBody = new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8));
+
+            @Override
+            public int statusCode() { return statusCode; }
+
+            @Override
+            public HttpRequest request() { return request; }
+
+            @Override
+            public Optional<HttpResponse<InputStream>> previousResponse() { return Optional.empty(); }
+
+            @Override
+            public HttpHeaders headers() { return HttpHeaders.of(Map.of(), (s1, s2) -> true); }
+
+            @Override
+            public InputStream body() { return responseBody; }
+
+            @Override
+            public Optional<SSLSession> sslSession() { return Optional.empty(); }
+
+            @Override
+            public URI uri() { return request.uri(); }
+
+            @Override
+            public HttpClient.Version version() { return HttpClient.Version.HTTP_1_1; }
+        };
+        return response;
+    }
+
+    private static String read(HttpRequest.BodyPublisher publisher) {
+        CompletableFuture<String> body = new CompletableFuture<>();
+        publisher.subscribe(new Flow.Subscriber<>() {
+            private final StringBuilder content = new StringBuilder();
+
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) { subscription.request(Long.MAX_VALUE); }
+
+            @Override
+            public void onNext(ByteBuffer item) { content.append(StandardCharsets.UTF_8.decode(item)); }
+
+            @Override
+            public void onError(Throwable throwable) { body.completeExceptionally(throwable); }
+
+            @Override
+            public void onComplete() { body.complete(content.toString()); }
+        });
+        return body.join();
+    }
+
+    @Override
+    public <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request, HttpResponse.BodyHandler<T> responseBodyHandler) {
+        return CompletableFuture.completedFuture(send(request, responseBodyHandler));
+    }
+
+    @Override
+    public <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request, HttpResponse.BodyHandler<T> responseBodyHandler, HttpResponse.PushPromiseHandler<T> pushPromiseHandler) {
+        return sendAsync(request, responseBodyHandler);
+    }
+
+    @Override
+    public Optional<CookieHandler> cookieHandler() { return Optional.empty(); }
+
+    @Override
+    public Optional<Duration> connectTimeout() { return Optional.empty(); }
+
+    @Override
+    public Redirect followRedirects() { return Redirect.NEVER; }
+
+    @Override
+    public Optional<ProxySelector> proxy() { return Optional.empty(); }
+
+    @Override
+    public SSLContext sslContext() { return null; }
+
+    @Override
+    public SSLParameters sslParameters() { return null; }
+
+    @Override
+    public Optional<Authenticator> authenticator() { return Optional.empty(); }
+
+    @Override
+    public Version version() { return Version.HTTP_1_1; }
+
+    @Override
+    public Optional<Executor> executor() { return Optional.empty(); }
+}
@@ -0,0 +1,71 @@
+package org.przybyl.rag.example;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import org.junit.jupiter.api.Test;
+import org.przybyl.rag.example.utils.VectorMath;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.util.Random;
+
+class VectorMathTest {
+
+    @Test
+    void shouldComputeSimilaritiesOfArrays() {
+        // given
+        float[] a = {1, 2, 3};
+        float[] b = {4, 5, 6};
+
+        // when/then
+        assertEquals(32f, VectorMath.dot(a, b), 0.0001f);
+        assertEquals(32 / (float) Math.sqrt(14 * 77), VectorMath.cosine(a, b), 0.0001f);
+        assertEquals((float) Math.sqrt(27), VectorMath.l2(a, b), 0.0001f);
+        assertEquals(0f, VectorMath.cosine(a, new float[3]), "Cosine with a zero vector should be 0");
+        assertEquals(1 / 28f, VectorMath.Similarity.of("l2_norm").score(a, b), 0.0001f);
+    }
+
+    @Test
+    void shouldGiveSameResultsForSegmentsAndTails() {
+        // given: more dimensions than any SIMD lane count, and not a multiple of one
+        Random random = new Random(7);
+        float[] query = new float[389];
+        float[] vector = new float[389];
+        for (int i = 0; i < query.length; i++) {
+            query[i] = (float) random.nextGaussian();
+            vector[i] = (float) random.nextGaussian();
+        }
+        double expectedDot = 0;
+        for (int i = 0; i < query.length; i++) {
+            expectedDot += (double) query[i] * vector[i];
+        }
+
+        try (Arena arena = Arena.ofConfined()) {
+            // when: the vector is stored after 4 bytes of something else, so it's not aligned
+            MemorySegment segment = arena.allocate(Float.BYTES + vector.length * Float.BYTES);
+            for (int i = 0; i < vector.length; i++) {
+                segment.set(VectorMath.FLOAT, Float.BYTES + (long) i * Float.BYTES, vector[i]);
+            }
+
+            // then
+            assertEquals((float) expectedDot, VectorMath.dot(query, vector), 0.001f);
+            assertEquals(VectorMath.dot(query, vector), VectorMath.dot(query, segment, Float.BYTES), 0.001f);
+            assertEquals(VectorMath.cosine(query, vector), VectorMath.cosine(query, segment, Float.BYTES), 0.0001f);
+            assertEquals(VectorMath.l2(query, vector), VectorMath.l2(query, segment, Float.BYTES), 0.001f);
+        }
+    }
+
+    @Test
+    void shouldNormalizeIntoCopy() {
+        // given
+        float[] vector = {3, 4};
+
+        // when
+        float[] unit = VectorMath.normalize(vector);
+
+        // then
+        assertArrayEquals(new float[]{0.6f, 0.8f}, unit, 0.0001f);
+        assertArrayEquals(new float[]{3, 4}, vector, "The vector itself should not be modified");
+        assertArrayEquals(new float[]{0, 0}, VectorMath.normalize(new float[]{0, 0}));
+    }
+}